@@ -0,0 +1,73 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import com.segment.analytics.integrations.TrackPayload;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Track calls from 1, 2, 4 and 8 threads into one shared integration, to see how throughput
+ * scales with producers. Inline, callbacks run on the producers one at a time; with asynchronous
+ * dispatch, producers only enqueue and a single worker does the rest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrencyBenchmark {
+  @Param({ "inline", "async" })
+  public String dispatch;
+
+  @Param({ Payloads.SMALL, Payloads.WIDE })
+  public String shape;
+
+  private MixpanelIntegration integration;
+  private TrackPayload track;
+
+  @Setup public void setUp() {
+    integration = StubMixpanel.integration(StubMixpanel.mixpanel(), true, false, false, false,
+        Collections.<String>emptySet(),
+        new MixpanelOptions.Builder().asyncDispatch(dispatch.equals("async")).build());
+    track = new TrackPayload.Builder().event("Product Viewed")
+        .properties(Payloads.properties(shape))
+        .userId("user")
+        .build();
+  }
+
+  @TearDown(Level.Trial) public void tearDown() {
+    if (integration.dispatcher != null) {
+      integration.dispatcher.shutdown();
+    }
+  }
+
+  @Benchmark @Threads(1) public void track1() {
+    integration.track(track);
+  }
+
+  @Benchmark @Threads(2) public void track2() {
+    integration.track(track);
+  }
+
+  @Benchmark @Threads(4) public void track4() {
+    integration.track(track);
+  }
+
+  @Benchmark @Threads(8) public void track8() {
+    integration.track(track);
+  }
+}
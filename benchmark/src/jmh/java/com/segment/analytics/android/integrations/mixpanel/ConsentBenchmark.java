@@ -0,0 +1,96 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import com.segment.analytics.integrations.GroupPayload;
+import com.segment.analytics.integrations.IdentifyPayload;
+import com.segment.analytics.integrations.ScreenPayload;
+import com.segment.analytics.integrations.TrackPayload;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of payloads for a user who opted out of Mixpanel tracking, handed to Mixpanel to
+ * discard ({@code skip = false}, the default) and dropped up front with {@code skipWhenOptedOut}.
+ * Identify sends different traits each time so nothing is skipped as unchanged. {@code
+ * withheldTrack} is a track call in a consent category that wasn't granted.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsentBenchmark {
+  @Param({ "false", "true" })
+  public boolean skip;
+
+  @Param({ Payloads.SMALL, Payloads.NESTED })
+  public String shape;
+
+  private MixpanelIntegration integration;
+  private TrackPayload track;
+  private TrackPayload withheldTrack;
+  private ScreenPayload screen;
+  private IdentifyPayload[] identifies;
+  private int identifyIndex;
+  private GroupPayload group;
+
+  @Setup public void setUp() {
+    MixpanelOptions options = new MixpanelOptions.Builder().skipWhenOptedOut(skip)
+        .consentCategory("marketing", Collections.singleton("Ad *"))
+        .build();
+    integration = StubMixpanel.integration(StubMixpanel.mixpanel(true), true, false, false,
+        false, Collections.<String>emptySet(), options);
+
+    track = new TrackPayload.Builder().event("Product Viewed")
+        .properties(Payloads.properties(shape))
+        .userId("user")
+        .build();
+    withheldTrack = new TrackPayload.Builder().event("Ad Clicked")
+        .properties(Payloads.properties(shape))
+        .userId("user")
+        .build();
+    screen = new ScreenPayload.Builder().name("Home")
+        .properties(Payloads.properties(shape))
+        .userId("user")
+        .build();
+    identifies = new IdentifyPayload[] {
+        new IdentifyPayload.Builder().userId("user").traits(Payloads.traits(shape, 1)).build(),
+        new IdentifyPayload.Builder().userId("user").traits(Payloads.traits(shape, 2)).build(),
+    };
+    group = new GroupPayload.Builder().userId("user")
+        .groupId("group")
+        .traits(Payloads.traits(shape, 0).putName("Segment"))
+        .build();
+  }
+
+  @Benchmark public void track() {
+    integration.track(track);
+  }
+
+  @Benchmark public void withheldTrack() {
+    integration.track(withheldTrack);
+  }
+
+  @Benchmark public void screen() {
+    integration.screen(screen);
+  }
+
+  @Benchmark public void identify() {
+    integration.identify(identifies[identifyIndex++ & 1]);
+  }
+
+  @Benchmark public void group() {
+    integration.group(group);
+  }
+}
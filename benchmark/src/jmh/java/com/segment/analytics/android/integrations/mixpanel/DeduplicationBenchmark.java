@@ -0,0 +1,64 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Memory and time per remembered message id, for the Bloom filters {@code deduplicateEvents}
+ * uses and for an exact {@code HashSet} of the same ids. Each invocation remembers {@link #IDS}
+ * ids in a new structure, so the gc profiler's {@code gc.alloc.rate.norm} is the bytes each id
+ * costs (the id strings themselves are allocated up front and not counted).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeduplicationBenchmark {
+  private static final int IDS = 10_000;
+
+  @Param({ "filter", "hashSet" })
+  public String structure;
+
+  @Param({ "0.01", "0.001" })
+  public double falsePositiveRate;
+
+  private String[] ids;
+
+  @Setup public void setUp() {
+    ids = new String[IDS];
+    for (int i = 0; i < IDS; i++) {
+      ids[i] = UUID.randomUUID().toString();
+    }
+  }
+
+  @Benchmark @OperationsPerInvocation(IDS) public Object remember() {
+    if (structure.equals("hashSet")) {
+      Set<String> seen = new HashSet<>();
+      for (String id : ids) {
+        seen.add(id);
+      }
+      return seen;
+    }
+    MessageIdFilter filter = new MessageIdFilter(IDS, falsePositiveRate, 60_000, null);
+    for (String id : ids) {
+      filter.isDuplicate(id, 0);
+    }
+    return filter;
+  }
+}
@@ -0,0 +1,98 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import com.segment.analytics.integrations.AliasPayload;
+import com.segment.analytics.integrations.GroupPayload;
+import com.segment.analytics.integrations.IdentifyPayload;
+import com.segment.analytics.integrations.TrackPayload;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Track, identify, group and alias through {@link MixpanelIntegration} against a stubbed {@code
+ * MixpanelAPI}. Run with the gc profiler (the module default) for allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MixpanelIntegrationBenchmark {
+  @Param({ Payloads.SMALL, Payloads.WIDE, Payloads.NESTED })
+  public String shape;
+
+  private MixpanelIntegration integration;
+  private TrackPayload track;
+  private TrackPayload incrementedTrack;
+  private IdentifyPayload identify;
+  private IdentifyPayload[] changingIdentifies;
+  private int identifyIndex;
+  private GroupPayload group;
+  private AliasPayload alias;
+
+  @Setup public void setUp() {
+    integration = StubMixpanel.integration(StubMixpanel.mixpanel(), true, false, false, false,
+        Collections.singleton("Incremented"));
+
+    track = new TrackPayload.Builder().event("Product Viewed")
+        .properties(Payloads.properties(shape))
+        .userId("user")
+        .build();
+    incrementedTrack = new TrackPayload.Builder().event("Incremented")
+        .properties(Payloads.properties(shape))
+        .userId("user")
+        .build();
+    identify = new IdentifyPayload.Builder().userId("user")
+        .traits(Payloads.traits(shape, 0))
+        .build();
+    changingIdentifies = new IdentifyPayload[] {
+        new IdentifyPayload.Builder().userId("user").traits(Payloads.traits(shape, 1)).build(),
+        new IdentifyPayload.Builder().userId("user").traits(Payloads.traits(shape, 2)).build(),
+    };
+    group = new GroupPayload.Builder().userId("user")
+        .groupId("group")
+        .traits(Payloads.traits(shape, 0).putName("Segment"))
+        .build();
+    alias = new AliasPayload.Builder().previousId("anonymous")
+        .anonymousId("anonymous")
+        .userId("user")
+        .build();
+  }
+
+  @Benchmark public void track() {
+    integration.track(track);
+  }
+
+  @Benchmark public void trackIncrement() {
+    integration.track(incrementedTrack);
+  }
+
+  /** The same traits every time, the steady state of apps that identify on each launch. */
+  @Benchmark public void identifyUnchanged() {
+    integration.identify(identify);
+  }
+
+  /** Every trait changes on every call, so nothing can be skipped. */
+  @Benchmark public void identifyChanged() {
+    integration.identify(changingIdentifies[identifyIndex++ & 1]);
+  }
+
+  @Benchmark public void group() {
+    integration.group(group);
+  }
+
+  @Benchmark public void alias() {
+    integration.alias(alias);
+  }
+}
@@ -0,0 +1,79 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups in the sets built from the {@code increments}, {@code peopleProperties} and {@code
+ * superProperties} settings, as {@link NameSet} and as the {@code HashSet} they used to be, with
+ * hundreds of names. Names are copies of the configured strings, like the ones parsed out of each
+ * payload, so their hash codes aren't cached yet. {@code build} allocations (gc profiler) are
+ * close to the memory each set keeps, not counting the names themselves.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NameSetBenchmark {
+  @Param({ "nameSet", "hashSet" })
+  public String structure;
+
+  @Param({ "100", "500" })
+  public int size;
+
+  private List<String> names;
+  private Set<String> set;
+  private String hit;
+  private String miss;
+  private String lengthMiss;
+
+  @Setup public void setUp() {
+    names = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      names.add("Product Event " + i);
+    }
+    set = build();
+    hit = new String("Product Event " + (size / 2));
+    miss = new String("Product Viewed " + (size / 2));
+    lengthMiss = new String("Application Opened");
+  }
+
+  @Benchmark public Set<String> build() {
+    return structure.equals("nameSet") ? NameSet.of(names) : new HashSet<>(names);
+  }
+
+  @Benchmark public boolean hit() {
+    return set.contains(copy(hit));
+  }
+
+  /** A miss the same length as the names, so it has to be hashed. */
+  @Benchmark public boolean miss() {
+    return set.contains(copy(miss));
+  }
+
+  /** A miss of a length no name has, the common case for events that aren't increments. */
+  @Benchmark public boolean lengthMiss() {
+    return set.contains(copy(lengthMiss));
+  }
+
+  /** A fresh string each time, so the lookup pays for hashing it like a parsed payload does. */
+  private static String copy(String s) {
+    return new String(s.toCharArray());
+  }
+}
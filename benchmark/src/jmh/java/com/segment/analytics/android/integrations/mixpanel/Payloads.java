@@ -0,0 +1,107 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import com.segment.analytics.Properties;
+import com.segment.analytics.Traits;
+import com.segment.analytics.ValueMap;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Payload contents shaped like production traffic, in three sizes. */
+final class Payloads {
+  /** A handful of flat properties, the common case. */
+  static final String SMALL = "small";
+  /** 50 flat properties of mixed types. */
+  static final String WIDE = "wide";
+  /** A checkout-style payload with nested maps and a list of products. */
+  static final String NESTED = "nested";
+
+  private Payloads() {
+    throw new AssertionError("No instances.");
+  }
+
+  static Properties properties(String shape) {
+    Properties properties = new Properties();
+    switch (shape) {
+      case SMALL:
+        properties.putValue("item", "shoe").putValue("price", 19.99).putValue("currency", "USD");
+        break;
+      case WIDE:
+        for (int i = 0; i < 50; i++) {
+          properties.putValue("property_" + i, flatValue(i));
+        }
+        break;
+      case NESTED:
+        properties.putValue("orderId", "50314b8e9bcf000000000000").putRevenue(25.0);
+        properties.putValue("cart", nested(4));
+        List<ValueMap> products = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+          products.add(new ValueMap()
+              .putValue("sku", "sku-" + i)
+              .putValue("name", "Product " + i)
+              .putValue("price", 2.5 * i)
+              .putValue("quantity", i)
+              .putValue("categories", listOf("apparel", "shoes")));
+        }
+        properties.putValue("products", products);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown payload shape: " + shape);
+    }
+    return properties;
+  }
+
+  /** Traits of the given shape. Different {@code variant}s change every trait value. */
+  static Traits traits(String shape, int variant) {
+    Traits traits = new Traits();
+    traits.putEmail("user" + variant + "@segment.com").putFirstName("Jane").putLastName("Doe");
+    switch (shape) {
+      case SMALL:
+        traits.putAge(30 + variant);
+        break;
+      case WIDE:
+        for (int i = 0; i < 50; i++) {
+          traits.putValue("trait_" + i, flatValue(i + variant));
+        }
+        break;
+      case NESTED:
+        traits.putValue("address", new ValueMap()
+            .putValue("street", variant + " Main St")
+            .putValue("city", "San Francisco")
+            .putValue("geo", nested(3)));
+        traits.putValue("plans", listOf("free", "pro-" + variant));
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown payload shape: " + shape);
+    }
+    return traits;
+  }
+
+  private static Object flatValue(int i) {
+    switch (i % 4) {
+      case 0:
+        return "value-" + i;
+      case 1:
+        return i;
+      case 2:
+        return i * 1.5;
+      default:
+        return i % 2 == 0;
+    }
+  }
+
+  private static ValueMap nested(int depth) {
+    ValueMap map = new ValueMap().putValue("depth", depth).putValue("label", "level-" + depth);
+    if (depth > 0) {
+      map.putValue("child", nested(depth - 1));
+    }
+    return map;
+  }
+
+  private static List<Object> listOf(Object... values) {
+    List<Object> list = new ArrayList<>(values.length);
+    for (Object value : values) {
+      list.add(value);
+    }
+    return list;
+  }
+}
@@ -0,0 +1,68 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import com.segment.analytics.Properties;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time and allocations of handing an event's properties to Mixpanel as an eagerly built {@link
+ * JSONObject} and as a {@link LazyJsonObject} view, for what Mixpanel then does with them:
+ * {@code dropped} unread (opted out), {@code copied} into its own object the way {@code
+ * MixpanelAPI.track} merges them with super properties, or {@code spooled} to a string.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropertiesJsonBenchmark {
+  @Param({ "eager", "lazy" })
+  public String conversion;
+
+  @Param({ Payloads.SMALL, Payloads.WIDE, Payloads.NESTED })
+  public String payload;
+
+  private Properties properties;
+
+  @Setup public void setUp() {
+    properties = Payloads.properties(payload);
+  }
+
+  @Benchmark public JSONObject dropped() {
+    return convert();
+  }
+
+  @Benchmark public JSONObject copied() throws JSONException {
+    JSONObject json = convert();
+    JSONObject copy = new JSONObject();
+    Iterator<String> keys = json.keys();
+    while (keys.hasNext()) {
+      String key = keys.next();
+      copy.put(key, json.opt(key));
+    }
+    return copy;
+  }
+
+  @Benchmark public String spooled() {
+    return convert().toString();
+  }
+
+  private JSONObject convert() {
+    return conversion.equals("lazy")
+        ? new LazyJsonObject(properties) : JsonWriter.writeProperties(properties);
+  }
+}
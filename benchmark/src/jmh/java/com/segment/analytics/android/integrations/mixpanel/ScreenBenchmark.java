@@ -0,0 +1,53 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import com.segment.analytics.integrations.ScreenPayload;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Screen calls through each of the four page tracking modes. */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScreenBenchmark {
+  @Param({ "consolidated", "allPages", "categorizedPages", "namedPages" })
+  public String pageMode;
+
+  @Param({ Payloads.SMALL, Payloads.WIDE, Payloads.NESTED })
+  public String shape;
+
+  private MixpanelIntegration integration;
+  private ScreenPayload screen;
+
+  @Setup public void setUp() {
+    integration = StubMixpanel.integration(StubMixpanel.mixpanel(),
+        pageMode.equals("consolidated"),
+        pageMode.equals("allPages"),
+        pageMode.equals("categorizedPages"),
+        pageMode.equals("namedPages"),
+        Collections.<String>emptySet());
+
+    screen = new ScreenPayload.Builder().name("Checkout")
+        .category("Commerce")
+        .properties(Payloads.properties(shape))
+        .userId("user")
+        .build();
+  }
+
+  @Benchmark public void screen() {
+    integration.screen(screen);
+  }
+}
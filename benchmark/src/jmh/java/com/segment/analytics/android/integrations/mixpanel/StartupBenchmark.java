@@ -0,0 +1,71 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time spent on the calling thread (Segment's, at app startup) creating the integration, with
+ * eager and lazy Mixpanel initialization. {@code MixpanelAPI.getInstance} needs a real Context, so
+ * its cost (reading SharedPreferences, starting Mixpanel's own threads) is simulated by sleeping
+ * for {@code initMillis}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 500)
+@Measurement(iterations = 200)
+@Fork(1)
+public class StartupBenchmark {
+  @Param({ "eager", "lazy" })
+  public String initialization;
+
+  @Param({ "0", "20" })
+  public long initMillis;
+
+  private MixpanelAPI mixpanel;
+  private MixpanelIntegration integration;
+
+  @Setup public void setUp() {
+    mixpanel = StubMixpanel.mixpanel();
+  }
+
+  @TearDown(Level.Invocation) public void tearDown() {
+    if (integration.dispatcher != null) {
+      integration.dispatcher.shutdown();
+    }
+  }
+
+  @Benchmark public MixpanelIntegration create() throws Exception {
+    Callable<MixpanelAPI> getInstance = new Callable<MixpanelAPI>() {
+      @Override public MixpanelAPI call() throws InterruptedException {
+        Thread.sleep(initMillis);
+        return mixpanel;
+      }
+    };
+    if (initialization.equals("lazy")) {
+      integration = StubMixpanel.integration(null, false, false, false, false,
+          Collections.<String>emptySet(),
+          new MixpanelOptions.Builder().lazyInitialization(true).build());
+      integration.initializeLazily(getInstance);
+    } else {
+      integration = StubMixpanel.integration(getInstance.call(), false, false, false, false,
+          Collections.<String>emptySet());
+    }
+    return integration;
+  }
+}
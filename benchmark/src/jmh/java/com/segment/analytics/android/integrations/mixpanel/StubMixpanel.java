@@ -0,0 +1,107 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.integrations.Logger;
+import java.util.Collections;
+import java.util.Set;
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.implementation.FixedValue;
+import net.bytebuddy.implementation.MethodDelegation;
+import net.bytebuddy.implementation.StubMethod;
+import org.objenesis.ObjenesisStd;
+
+import static net.bytebuddy.matcher.ElementMatchers.isAbstract;
+import static net.bytebuddy.matcher.ElementMatchers.isDeclaredBy;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * Mixpanel objects that accept every call and do nothing, so benchmarks measure the integration
+ * rather than Mixpanel. They are generated subclasses whose methods return default values
+ * directly; mocking frameworks add enough interception overhead per call to swamp the numbers.
+ */
+final class StubMixpanel {
+  private static final ObjenesisStd OBJENESIS = new ObjenesisStd();
+  /** Generating a class takes milliseconds, too slow for benchmarks that create integrations. */
+  private static final MixpanelAPI.People PEOPLE = stubInterface(MixpanelAPI.People.class);
+
+  private StubMixpanel() {
+    throw new AssertionError("No instances.");
+  }
+
+  static MixpanelAPI mixpanel() {
+    return mixpanel(false);
+  }
+
+  /** A stub whose {@code hasOptedOutTracking()} returns {@code optedOut}. */
+  static MixpanelAPI mixpanel(boolean optedOut) {
+    MixpanelAPI.Group group = stubInterface(MixpanelAPI.Group.class);
+    Class<? extends MixpanelAPI> type = new ByteBuddy()
+        .subclass(MixpanelAPI.class)
+        .method(isDeclaredBy(MixpanelAPI.class)).intercept(StubMethod.INSTANCE)
+        .method(named("getGroup")).intercept(MethodDelegation.to(new Groups(group)))
+        .method(named("getDistinctId")).intercept(FixedValue.value("mixpanel-distinct-id"))
+        .method(named("hasOptedOutTracking")).intercept(FixedValue.value(optedOut))
+        .make()
+        .load(StubMixpanel.class.getClassLoader())
+        .getLoaded();
+    // Skip MixpanelAPI's constructors, which need a real Context.
+    return OBJENESIS.newInstance(type);
+  }
+
+  static MixpanelAPI.People people() {
+    return PEOPLE;
+  }
+
+  /** Hands out the stub group; public so the generated subclass can call it. */
+  public static final class Groups {
+    private final MixpanelAPI.Group group;
+
+    Groups(MixpanelAPI.Group group) {
+      this.group = group;
+    }
+
+    public MixpanelAPI.Group getGroup(String groupKey, Object groupId) {
+      return group;
+    }
+  }
+
+  private static <T> T stubInterface(Class<T> type) {
+    Class<? extends T> stub = new ByteBuddy()
+        .subclass(type)
+        .method(isAbstract()).intercept(StubMethod.INSTANCE)
+        .make()
+        .load(StubMixpanel.class.getClassLoader())
+        .getLoaded();
+    return OBJENESIS.newInstance(stub);
+  }
+
+  /** An integration with people enabled and every trait forwarded, like the default settings. */
+  static MixpanelIntegration integration(
+      MixpanelAPI mixpanel, boolean consolidatedPageCalls, boolean trackAllPages,
+      boolean trackCategorizedPages, boolean trackNamedPages, Set<String> increments) {
+    return integration(mixpanel, consolidatedPageCalls, trackAllPages, trackCategorizedPages,
+        trackNamedPages, increments, MixpanelOptions.DEFAULT);
+  }
+
+  static MixpanelIntegration integration(
+      MixpanelAPI mixpanel, boolean consolidatedPageCalls, boolean trackAllPages,
+      boolean trackCategorizedPages, boolean trackNamedPages, Set<String> increments,
+      MixpanelOptions options) {
+    return new MixpanelIntegration(
+        mixpanel,
+        people(),
+        true,
+        consolidatedPageCalls,
+        trackAllPages,
+        trackCategorizedPages,
+        trackNamedPages,
+        "token",
+        Logger.with(Analytics.LogLevel.NONE),
+        increments,
+        true,
+        Collections.<String>emptySet(),
+        Collections.<String>emptySet(),
+        options);
+  }
+}
@@ -0,0 +1,235 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import com.segment.analytics.Analytics;
+import com.segment.analytics.Cartographer;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.android.integrations.mixpanel.MixpanelMetricsListener.Call;
+import com.segment.analytics.integrations.AliasPayload;
+import com.segment.analytics.integrations.GroupPayload;
+import com.segment.analytics.integrations.IdentifyPayload;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.ScreenPayload;
+import com.segment.analytics.integrations.TrackPayload;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Replays a trace recorded with {@link MixpanelOptions.Builder#recordTrace(File)} into an
+ * integration backed by {@link StubMixpanel}, and reports throughput and, per call, latency
+ * percentiles and allocated bytes.
+ *
+ * <pre>
+ * ./gradlew :benchmark:replayTrace -PreplayArgs="trace.ndjson.gz --speed 0 --repeat 5"
+ * </pre>
+ *
+ * <p>Options: {@code --speed <factor>} replays at {@code factor} times the recorded pace, or as
+ * fast as possible when 0 (the default); {@code --settings <file>} reads the Segment settings
+ * JSON for Mixpanel, including {@link MixpanelOptions} keys, from {@code file}; {@code --warmup
+ * <n>} and {@code --repeat <n>} set the unmeasured and measured passes over the trace. Every pass
+ * gets a new integration, so state such as deduplicated message ids doesn't carry over.
+ *
+ * <p>Latency is the time the integration's callback blocks the caller; with {@code asyncDispatch}
+ * that's only the enqueueing.
+ */
+public final class TraceReplay {
+  private final List<PayloadTrace.Entry> entries;
+  private final ValueMap settings;
+  private final double speed;
+  private final com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private TraceReplay(List<PayloadTrace.Entry> entries, ValueMap settings, double speed) {
+    this.entries = entries;
+    this.settings = settings;
+    this.speed = speed;
+  }
+
+  public static void main(String[] args) throws Exception {
+    File trace = null;
+    File settingsFile = null;
+    double speed = 0;
+    int warmup = 1;
+    int repeat = 3;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--speed":
+          speed = Double.parseDouble(args[++i]);
+          break;
+        case "--settings":
+          settingsFile = new File(args[++i]);
+          break;
+        case "--warmup":
+          warmup = Integer.parseInt(args[++i]);
+          break;
+        case "--repeat":
+          repeat = Integer.parseInt(args[++i]);
+          break;
+        default:
+          trace = new File(args[i]);
+      }
+    }
+    if (trace == null) {
+      System.err.println("Usage: TraceReplay <trace> [--speed <factor>] [--settings <file>]"
+          + " [--warmup <n>] [--repeat <n>]");
+      System.exit(1);
+    }
+
+    List<PayloadTrace.Entry> entries;
+    PayloadTrace.Reader reader = new PayloadTrace.Reader(trace);
+    try {
+      entries = reader.readAll();
+    } finally {
+      reader.close();
+    }
+    ValueMap settings = new ValueMap();
+    if (settingsFile != null) {
+      Reader json = new InputStreamReader(new FileInputStream(settingsFile), "UTF-8");
+      try {
+        settings.putAll(new Cartographer.Builder().build().fromJson(json));
+      } finally {
+        json.close();
+      }
+    }
+
+    TraceReplay replay = new TraceReplay(entries, settings, speed);
+    System.out.printf(Locale.US, "%s: %d calls%n", trace, entries.size());
+    for (int i = 0; i < warmup; i++) {
+      replay.pass(null);
+    }
+    Samples samples = new Samples(entries.size() * repeat);
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < repeat; i++) {
+      replay.pass(samples);
+    }
+    samples.report(System.nanoTime() - startNanos);
+  }
+
+  /** Replays every entry into a new integration, recording into {@code samples} if not null. */
+  private void pass(Samples samples) throws InterruptedException {
+    MixpanelIntegration integration = new MixpanelIntegration(
+        StubMixpanel.mixpanel(),
+        StubMixpanel.people(),
+        true,
+        "token",
+        Logger.with(Analytics.LogLevel.NONE),
+        MixpanelSettings.fromSettings(settings),
+        MixpanelOptions.fromSettings(settings));
+    long startNanos = System.nanoTime();
+    long threadId = Thread.currentThread().getId();
+    for (PayloadTrace.Entry entry : entries) {
+      if (speed > 0) {
+        long dueNanos = startNanos + (long) (entry.atMillis * 1_000_000 / speed);
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) {
+          Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        }
+      }
+      long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+      long callStartNanos = System.nanoTime();
+      call(integration, entry);
+      long elapsedNanos = System.nanoTime() - callStartNanos;
+      long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+      if (samples != null) {
+        samples.add(entry.call, elapsedNanos, allocated);
+      }
+    }
+    integration.flush();
+  }
+
+  private static void call(MixpanelIntegration integration, PayloadTrace.Entry entry) {
+    switch (entry.call) {
+      case IDENTIFY:
+        integration.identify((IdentifyPayload) entry.payload);
+        break;
+      case GROUP:
+        integration.group((GroupPayload) entry.payload);
+        break;
+      case TRACK:
+        integration.track((TrackPayload) entry.payload);
+        break;
+      case SCREEN:
+        integration.screen((ScreenPayload) entry.payload);
+        break;
+      case ALIAS:
+        integration.alias((AliasPayload) entry.payload);
+        break;
+      case FLUSH:
+        integration.flush();
+        break;
+      case RESET:
+        integration.reset();
+        break;
+      default:
+        throw new AssertionError(entry.call);
+    }
+  }
+
+  /** Latencies and allocations of the measured calls, by call. */
+  private static final class Samples {
+    private final Map<Call, long[]> latencies = new EnumMap<>(Call.class);
+    private final Map<Call, long[]> allocations = new EnumMap<>(Call.class);
+    private final Map<Call, Integer> counts = new EnumMap<>(Call.class);
+    private final int capacity;
+
+    Samples(int capacity) {
+      this.capacity = capacity;
+    }
+
+    void add(Call call, long latencyNanos, long allocatedBytes) {
+      long[] latencies = this.latencies.get(call);
+      if (latencies == null) {
+        latencies = new long[capacity];
+        this.latencies.put(call, latencies);
+        allocations.put(call, new long[capacity]);
+        counts.put(call, 0);
+      }
+      int count = counts.get(call);
+      latencies[count] = latencyNanos;
+      allocations.get(call)[count] = allocatedBytes;
+      counts.put(call, count + 1);
+    }
+
+    void report(long elapsedNanos) {
+      int total = 0;
+      long busyNanos = 0;
+      System.out.printf(Locale.US, "%-9s %9s %10s %10s %10s %10s %12s%n",
+          "call", "count", "p50 us", "p90 us", "p99 us", "max us", "bytes/call");
+      for (Map.Entry<Call, Integer> entry : counts.entrySet()) {
+        int count = entry.getValue();
+        long[] latencies = Arrays.copyOf(this.latencies.get(entry.getKey()), count);
+        long[] allocations = Arrays.copyOf(this.allocations.get(entry.getKey()), count);
+        Arrays.sort(latencies);
+        long allocated = 0;
+        for (int i = 0; i < count; i++) {
+          busyNanos += latencies[i];
+          allocated += allocations[i];
+        }
+        total += count;
+        System.out.printf(Locale.US, "%-9s %9d %10.1f %10.1f %10.1f %10.1f %12d%n",
+            entry.getKey().name().toLowerCase(Locale.US), count,
+            micros(percentile(latencies, 0.50)), micros(percentile(latencies, 0.90)),
+            micros(percentile(latencies, 0.99)), micros(latencies[count - 1]),
+            allocated / count);
+      }
+      System.out.printf(Locale.US, "%d calls in %.1f ms: %.0f calls/s, %.0f calls/s busy%n",
+          total, elapsedNanos / 1e6, total / (elapsedNanos / 1e9), total / (busyNanos / 1e9));
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+      return sorted[(int) Math.ceil(percentile * sorted.length) - 1];
+    }
+
+    private static double micros(long nanos) {
+      return nanos / 1e3;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.Properties;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.TrackPayload;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Sends track calls through {@link MixpanelIntegration} into a real {@link MixpanelAPI} posting to
+ * an {@link IngestionServer}, flushing every 1, 10 and 100 events and only at the end, and every
+ * event with {@link MixpanelOptions.Builder#adaptiveFlush(boolean) adaptive flushing}. Prints
+ * events per second, delivery latency from the track call to the batch arriving, and batch sizes
+ * for each cadence. Set the number of events per cadence with {@code -PloadTestEvents=<n>}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class IngestionLoadTest {
+  /** Flush after this many events; 0 leaves flushing to Mixpanel until the last event. */
+  private static final List<Integer> FLUSH_CADENCES = Arrays.asList(1, 10, 100, 0);
+
+  private final int events = Integer.getInteger("loadtest.events", 1000);
+  private IngestionServer server;
+
+  @Before public void setUp() throws IOException {
+    server = new IngestionServer();
+  }
+
+  @After public void tearDown() {
+    server.close();
+  }
+
+  @Test public void flushCadences() throws InterruptedException {
+    System.out.printf(Locale.US, "%-8s %7s %10s %8s %8s %8s %8s %8s %10s %9s%n", "flush",
+        "events", "events/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "batches", "mean batch",
+        "max batch");
+    for (int cadence : FLUSH_CADENCES) {
+      run(cadence == 0 ? "end" : String.valueOf(cadence), cadence, MixpanelOptions.DEFAULT);
+    }
+    run("adaptive", 1, new MixpanelOptions.Builder().adaptiveFlush(true).build());
+  }
+
+  private void run(String cadence, int flushEvery, MixpanelOptions options)
+      throws InterruptedException {
+    server.clear();
+    // A token per run, so Mixpanel's queue holds nothing left over from earlier runs.
+    String token = "loadtest-" + cadence;
+    MixpanelAPI mixpanel = MixpanelAPI.getInstance(RuntimeEnvironment.application, token, false);
+    mixpanel.setServerURL(server.url());
+    MixpanelIntegration integration = new MixpanelIntegration(
+        mixpanel,
+        mixpanel.getPeople(),
+        true,
+        token,
+        Logger.with(Analytics.LogLevel.NONE),
+        MixpanelSettings.fromSettings(new ValueMap()),
+        options);
+
+    for (int i = 0; i < events; i++) {
+      integration.track(new TrackPayload.Builder().event("Load Test")
+          .userId("load-tester")
+          .properties(new Properties().putValue("item", "shoe")
+              .putValue("price", 19.99)
+              .putValue(IngestionServer.SENT_NANOS, System.nanoTime()))
+          .build());
+      if (flushEvery > 0 && (i + 1) % flushEvery == 0) {
+        integration.flush();
+      }
+    }
+    integration.flush();
+
+    assertThat(server.awaitDeliveries(events, 2, TimeUnit.MINUTES))
+        .as("all events delivered within 2 minutes").isTrue();
+    report(cadence);
+  }
+
+  private void report(String cadence) {
+    List<IngestionServer.Delivery> deliveries = server.deliveries();
+    long[] latencies = new long[deliveries.size()];
+    long firstSentNanos = Long.MAX_VALUE;
+    long lastArrivalNanos = Long.MIN_VALUE;
+    for (int i = 0; i < latencies.length; i++) {
+      IngestionServer.Delivery delivery = deliveries.get(i);
+      latencies[i] = delivery.latencyNanos();
+      firstSentNanos = Math.min(firstSentNanos, delivery.sentNanos);
+      lastArrivalNanos = Math.max(lastArrivalNanos, delivery.arrivalNanos);
+    }
+    // Mixpanel retries batches it isn't sure were accepted; every event should arrive once.
+    assertThat(latencies.length).isEqualTo(events);
+    Arrays.sort(latencies);
+
+    int batches = 0;
+    int maxBatch = 0;
+    for (IngestionServer.Batch batch : server.batches()) {
+      if (batch.endpoint.equals("track")) {
+        batches++;
+        maxBatch = Math.max(maxBatch, batch.size);
+      }
+    }
+    System.out.printf(Locale.US, "%-8s %7d %10.0f %8.1f %8.1f %8.1f %8.1f %8d %10.1f %9d%n",
+        cadence, events, events / ((lastArrivalNanos - firstSentNanos) / 1e9),
+        millis(percentile(latencies, 0.50)), millis(percentile(latencies, 0.90)),
+        millis(percentile(latencies, 0.99)), millis(latencies[latencies.length - 1]), batches,
+        (double) events / batches, maxBatch);
+  }
+
+  private static long percentile(long[] sorted, double percentile) {
+    return sorted[(int) Math.ceil(percentile * sorted.length) - 1];
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+}
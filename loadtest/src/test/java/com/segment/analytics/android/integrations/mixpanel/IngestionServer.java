@@ -0,0 +1,183 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A local stand-in for Mixpanel's ingestion API. Accepts the batches {@code MixpanelAPI} posts to
+ * {@code /track/}, {@code /engage/} and {@code /groups/} once it's pointed here with {@code
+ * setServerURL(server.url())}, decodes them and records when each batch and event arrived.
+ *
+ * <p>Events carrying a {@link #SENT_NANOS} property, the {@link System#nanoTime()} at which they
+ * were handed to the integration, are recorded as {@link Delivery deliveries} with their
+ * end-to-end latency. Thread-safe.
+ */
+final class IngestionServer implements Closeable {
+  /** The event property holding the nanoTime an event was sent at. */
+  static final String SENT_NANOS = "loadtest_sent_nanos";
+
+  /** One request, as it arrived. */
+  static final class Batch {
+    final String endpoint;
+    final int size;
+    final long arrivalNanos;
+
+    Batch(String endpoint, int size, long arrivalNanos) {
+      this.endpoint = endpoint;
+      this.size = size;
+      this.arrivalNanos = arrivalNanos;
+    }
+  }
+
+  /** A tracked event that carried {@link #SENT_NANOS}. */
+  static final class Delivery {
+    final String event;
+    final long sentNanos;
+    final long arrivalNanos;
+
+    Delivery(String event, long sentNanos, long arrivalNanos) {
+      this.event = event;
+      this.sentNanos = sentNanos;
+      this.arrivalNanos = arrivalNanos;
+    }
+
+    long latencyNanos() {
+      return arrivalNanos - sentNanos;
+    }
+  }
+
+  private final HttpServer server;
+  private final List<Batch> batches = new ArrayList<>();
+  private final List<Delivery> deliveries = new ArrayList<>();
+
+  IngestionServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    for (final String endpoint : new String[] { "track", "engage", "groups" }) {
+      server.createContext("/" + endpoint, new HttpHandler() {
+        @Override public void handle(HttpExchange exchange) throws IOException {
+          receive(endpoint, exchange);
+        }
+      });
+    }
+    server.start();
+  }
+
+  /** The URL to pass to {@code MixpanelAPI.setServerURL}. */
+  String url() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  synchronized List<Batch> batches() {
+    return new ArrayList<>(batches);
+  }
+
+  synchronized List<Delivery> deliveries() {
+    return new ArrayList<>(deliveries);
+  }
+
+  /** Waits until {@code count} deliveries have arrived; returns false on timeout. */
+  synchronized boolean awaitDeliveries(int count, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+    while (deliveries.size() < count) {
+      long remainingNanos = deadlineNanos - System.nanoTime();
+      if (remainingNanos <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+    }
+    return true;
+  }
+
+  /** Forgets everything received so far. */
+  synchronized void clear() {
+    batches.clear();
+    deliveries.clear();
+  }
+
+  @Override public void close() {
+    server.stop(0);
+  }
+
+  private void receive(String endpoint, HttpExchange exchange) throws IOException {
+    long arrivalNanos = System.nanoTime();
+    int status = 200;
+    try {
+      JSONArray records = decode(exchange);
+      record(endpoint, records, arrivalNanos);
+    } catch (JSONException | RuntimeException e) {
+      // Answer anyway; a handler that throws leaves Mixpanel waiting for a response.
+      status = 400;
+    }
+    // Mixpanel treats a body of "1" as accepted, anything else as rejected.
+    byte[] response = (status == 200 ? "1\n" : "0\n").getBytes("UTF-8");
+    exchange.sendResponseHeaders(status, response.length);
+    OutputStream body = exchange.getResponseBody();
+    body.write(response);
+    body.close();
+  }
+
+  /** Reads the records of a form-encoded {@code data} parameter, gzipped or base64-encoded. */
+  private static JSONArray decode(HttpExchange exchange) throws IOException, JSONException {
+    InputStream in = exchange.getRequestBody();
+    if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+      in = new GZIPInputStream(in);
+    }
+    String form = new String(readFully(in), "UTF-8");
+    for (String parameter : form.split("&")) {
+      int equals = parameter.indexOf('=');
+      if (equals > 0 && parameter.substring(0, equals).equals("data")) {
+        String data = URLDecoder.decode(parameter.substring(equals + 1), "UTF-8");
+        if (!data.startsWith("[")) {
+          // Older SDKs base64 encode the batch.
+          data = new String(Base64.getMimeDecoder().decode(data), "UTF-8");
+        }
+        return new JSONArray(data);
+      }
+    }
+    throw new IllegalArgumentException("No data parameter.");
+  }
+
+  private synchronized void record(String endpoint, JSONArray records, long arrivalNanos)
+      throws JSONException {
+    batches.add(new Batch(endpoint, records.length(), arrivalNanos));
+    if (endpoint.equals("track")) {
+      for (int i = 0; i < records.length(); i++) {
+        JSONObject record = records.getJSONObject(i);
+        JSONObject properties = record.optJSONObject("properties");
+        if (properties != null && properties.has(SENT_NANOS)) {
+          deliveries.add(new Delivery(
+              record.getString("event"), properties.getLong(SENT_NANOS), arrivalNanos));
+        }
+      }
+    }
+    notifyAll();
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int read; (read = in.read(buffer)) != -1; ) {
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+}
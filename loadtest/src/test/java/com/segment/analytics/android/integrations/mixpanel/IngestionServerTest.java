@@ -0,0 +1,98 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Base64;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class IngestionServerTest {
+  private IngestionServer server;
+
+  @Before public void setUp() throws IOException {
+    server = new IngestionServer();
+  }
+
+  @After public void tearDown() {
+    server.close();
+  }
+
+  @Test public void recordsBatchesAndDeliveries() throws Exception {
+    String batch = "[{\"event\":\"foo\",\"properties\":{\"" + IngestionServer.SENT_NANOS
+        + "\":5}},{\"event\":\"bar\",\"properties\":{}}]";
+
+    assertThat(post("/track/?ip=1", batch)).isEqualTo("1");
+    assertThat(post("/engage/", "[{\"$distinct_id\":\"foo\",\"$set\":{}}]")).isEqualTo("1");
+
+    List<IngestionServer.Batch> batches = server.batches();
+    assertThat(batches).hasSize(2);
+    assertThat(batches.get(0).endpoint).isEqualTo("track");
+    assertThat(batches.get(0).size).isEqualTo(2);
+    assertThat(batches.get(1).endpoint).isEqualTo("engage");
+    assertThat(batches.get(1).size).isEqualTo(1);
+    List<IngestionServer.Delivery> deliveries = server.deliveries();
+    assertThat(deliveries).hasSize(1);
+    assertThat(deliveries.get(0).event).isEqualTo("foo");
+    assertThat(deliveries.get(0).sentNanos).isEqualTo(5);
+    assertThat(deliveries.get(0).arrivalNanos).isEqualTo(batches.get(0).arrivalNanos);
+  }
+
+  @Test public void decodesBase64Batches() throws Exception {
+    String batch = "[{\"event\":\"foo\",\"properties\":{\"" + IngestionServer.SENT_NANOS
+        + "\":5}}]";
+
+    post("/track/", Base64.getEncoder().encodeToString(batch.getBytes("UTF-8")));
+
+    assertThat(server.awaitDeliveries(1, 0, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test public void rejectsMalformedBatches() throws Exception {
+    assertThat(post("/track/", "[{")).isEqualTo("0");
+
+    assertThat(server.batches()).isEmpty();
+    assertThat(server.awaitDeliveries(1, 10, TimeUnit.MILLISECONDS)).isFalse();
+  }
+
+  @Test public void clear() throws Exception {
+    post("/track/", "[]");
+
+    server.clear();
+
+    assertThat(server.batches()).isEmpty();
+  }
+
+  /** Posts {@code data} the way Mixpanel does and returns the response body. */
+  private String post(String path, String data) throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL(server.url() + path).openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+    OutputStream out = connection.getOutputStream();
+    out.write(("data=" + URLEncoder.encode(data, "UTF-8")).getBytes("UTF-8"));
+    out.close();
+    InputStream in = connection.getResponseCode() == 200
+        ? connection.getInputStream() : connection.getErrorStream();
+    try {
+      return new Scanner(in, "UTF-8").useDelimiter("\\A").next().trim();
+    } finally {
+      in.close();
+      connection.disconnect();
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides whether a payload may reach Mixpanel before any work is done on it. Holds a copy of
+ * Mixpanel's opt-out flag, and the user's consent per category of events: an event named in a
+ * category is withheld until consent for that category is granted, and an event in several
+ * categories needs all of them. Thread-safe; checks read a single volatile field.
+ */
+final class ConsentGate {
+  private final Map<String, NameSet> categories;
+  private final Set<String> granted = new HashSet<>();
+  private volatile boolean optedOut;
+  /** The events of every category without consent, replaced whole when consent changes. */
+  private volatile NameSet[] withheld;
+
+  ConsentGate(Map<String, ? extends Collection<String>> categories) {
+    this.categories = new LinkedHashMap<>(categories.size());
+    for (Map.Entry<String, ? extends Collection<String>> entry : categories.entrySet()) {
+      this.categories.put(entry.getKey(), NameSet.of(entry.getValue()));
+    }
+    this.withheld = withheld();
+  }
+
+  boolean isOptedOut() {
+    return optedOut;
+  }
+
+  void setOptedOut(boolean optedOut) {
+    this.optedOut = optedOut;
+  }
+
+  /** Whether {@code event} is in no category, or consent was granted for all of its categories. */
+  boolean allows(String event) {
+    for (NameSet events : withheld) {
+      if (events.contains(event)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Grants or withdraws consent for {@code category}. Unconfigured categories have no effect. */
+  synchronized void setConsent(String category, boolean granted) {
+    if (granted ? this.granted.add(category) : this.granted.remove(category)) {
+      withheld = withheld();
+    }
+  }
+
+  private NameSet[] withheld() {
+    List<NameSet> withheld = new ArrayList<>();
+    for (Map.Entry<String, NameSet> entry : categories.entrySet()) {
+      if (!granted.contains(entry.getKey()) && !entry.getValue().isEmpty()) {
+        withheld.add(entry.getValue());
+      }
+    }
+    return withheld.toArray(new NameSet[withheld.size()]);
+  }
+}
@@ -0,0 +1,114 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a track call should reach Mixpanel at all, before any of its properties are
+ * serialized. Events can be sampled at a fixed rate and rate limited with a token bucket.
+ *
+ * <p>Sampling is deterministic per user: the same distinct id and event always get the same
+ * answer, so a sampled user's funnel is either complete or absent rather than full of holes.
+ *
+ * <p>Thread-safe: {@link #check} runs on whichever thread delivers the track call.
+ */
+class EventSampler {
+  static final int KEEP = 0;
+  static final int SAMPLED_OUT = 1;
+  static final int THROTTLED = 2;
+
+  private final Map<String, Double> sampleRates;
+  private final Map<String, TokenBucket> buckets;
+  private final AtomicLong sampledOutCount = new AtomicLong();
+  private final AtomicLong throttledCount = new AtomicLong();
+
+  EventSampler(Map<String, Double> sampleRates, Map<String, Integer> rateLimits) {
+    this.sampleRates = sampleRates;
+    if (rateLimits.isEmpty()) {
+      this.buckets = Collections.emptyMap();
+    } else {
+      this.buckets = new HashMap<>(rateLimits.size());
+      for (Map.Entry<String, Integer> entry : rateLimits.entrySet()) {
+        buckets.put(entry.getKey(), new TokenBucket(entry.getValue()));
+      }
+    }
+  }
+
+  /** True if no event is sampled or rate limited, so {@link #check} can be skipped entirely. */
+  boolean isEmpty() {
+    return sampleRates.isEmpty() && buckets.isEmpty();
+  }
+
+  /**
+   * Returns {@link #KEEP}, {@link #SAMPLED_OUT} or {@link #THROTTLED} for {@code event} sent by
+   * {@code distinctId} at {@code nowMillis}.
+   */
+  int check(String event, String distinctId, long nowMillis) {
+    Double rate = sampleRates.get(event);
+    if (rate != null && !sampled(event, distinctId, rate)) {
+      sampledOutCount.incrementAndGet();
+      return SAMPLED_OUT;
+    }
+    TokenBucket bucket = buckets.get(event);
+    if (bucket != null && !bucket.tryAcquire(nowMillis)) {
+      throttledCount.incrementAndGet();
+      return THROTTLED;
+    }
+    return KEEP;
+  }
+
+  long sampledOutCount() {
+    return sampledOutCount.get();
+  }
+
+  long throttledCount() {
+    return throttledCount.get();
+  }
+
+  /** Maps the user and event to a stable point in [0, 1) and keeps it if it's below the rate. */
+  static boolean sampled(String event, String distinctId, double rate) {
+    if (rate >= 1) {
+      return true;
+    }
+    if (rate <= 0) {
+      return false;
+    }
+    int hash = 31 * event.hashCode() + (distinctId == null ? 0 : distinctId.hashCode());
+    // Murmur3's finalizer, so similar ids don't land next to each other.
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    double point = (hash & 0x7fffffff) / (double) (1L << 31);
+    return point < rate;
+  }
+
+  /** Allows bursts of up to {@code perMinute} events, refilled continuously. */
+  static class TokenBucket {
+    private final double capacity;
+    private final double tokensPerMilli;
+    private double tokens;
+    private long lastRefillMillis = -1;
+
+    TokenBucket(int perMinute) {
+      this.capacity = perMinute;
+      this.tokensPerMilli = perMinute / 60_000.0;
+      this.tokens = perMinute;
+    }
+
+    synchronized boolean tryAcquire(long nowMillis) {
+      if (lastRefillMillis >= 0 && nowMillis > lastRefillMillis) {
+        tokens = Math.min(capacity, tokens + (nowMillis - lastRefillMillis) * tokensPerMilli);
+      }
+      lastRefillMillis = Math.max(lastRefillMillis, nowMillis);
+      if (tokens < 1) {
+        return false;
+      }
+      tokens--;
+      return true;
+    }
+  }
+}
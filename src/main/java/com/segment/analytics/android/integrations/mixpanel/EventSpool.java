@@ -0,0 +1,576 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import com.segment.analytics.integrations.Logger;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A bounded on-disk queue of serialized track calls between the integration and Mixpanel. Events
+ * are appended to numbered segment files as CRC-checked records, and a drainer thread forwards
+ * them to a {@link Sink} at a limited rate, deleting segments once they're forwarded. The drainer
+ * only paces forwarding: each event is read and forwarded by a step it hands to an {@link
+ * Executor}, so events go out in order with the owner's other work run there.
+ *
+ * <p>The spool is capped in size by evicting its oldest segment, and events older than the
+ * maximum age are dropped instead of forwarded. A record that fails its CRC check, like one cut
+ * short by a crash, ends its segment. A small cursor file records how far forwarding got, so
+ * after a restart at most the events since the last {@link #commit()} are forwarded twice.
+ */
+class EventSpool {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final String THREAD_NAME = "Segment-MixpanelSpool";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String CURSOR = "cursor";
+  /** Length and CRC. */
+  private static final int HEADER_BYTES = 8;
+  /**
+   * The event property Mixpanel reads an event's time from, in milliseconds. Mixpanel only stamps
+   * events with the current time when it's missing.
+   */
+  private static final String TIME = "time";
+  /** Forwarding progress is committed at least this often. */
+  private static final int COMMIT_INTERVAL = 50;
+
+  /** Where spooled events go. */
+  interface Sink {
+    void track(String event, JSONObject properties);
+  }
+
+  private final File directory;
+  private final long maxBytes;
+  private final long segmentBytes;
+  private final long maxAgeMillis;
+  private final Logger logger;
+  /** Held while forwarding a record, so {@link #drainAll} can't overtake the drainer. */
+  private final Object forwardLock = new Object();
+
+  // Guarded by this.
+  private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+  private boolean loaded;
+  private FileOutputStream writer;
+  private RandomAccessFile reader;
+  private long readOffset;
+  /** Records of the first segment before {@link #readOffset}. */
+  private long readRecords;
+  private long totalBytes;
+  private int uncommitted;
+  private long appendedCount;
+  private long forwardedCount;
+  private long evictedCount;
+  private long expiredCount;
+  private long corruptCount;
+
+  private Thread drainer;
+
+  EventSpool(File directory, long maxBytes, long segmentBytes, long maxAgeMillis, Logger logger) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.segmentBytes = Math.min(segmentBytes, maxBytes);
+    this.maxAgeMillis = maxAgeMillis;
+    this.logger = logger;
+  }
+
+  /** Appends an event, evicting the oldest segments if the spool grows past its cap. */
+  synchronized void append(String event, String json, long nowMillis) throws IOException {
+    load();
+    byte[] record = encode(event, json, nowMillis);
+    Segment segment = segments.peekLast();
+    if (segment == null || writer == null
+        || (segment.bytes > 0 && segment.bytes + record.length > segmentBytes)) {
+      segment = roll();
+    }
+    writer.write(record);
+    segment.bytes += record.length;
+    segment.records++;
+    totalBytes += record.length;
+    appendedCount++;
+    while (totalBytes > maxBytes && segments.size() > 1) {
+      evictOldest();
+    }
+    notifyAll();
+  }
+
+  /**
+   * Forwards every spooled event to {@code sink} on the calling thread, ignoring the rate limit.
+   * Used before calls that must not be overtaken by older events, like identify.
+   */
+  void drainAll(Sink sink, long nowMillis) {
+    synchronized (forwardLock) {
+      Record record;
+      while ((record = next(nowMillis)) != null) {
+        forward(sink, record);
+      }
+      commit();
+    }
+  }
+
+  /**
+   * Starts a daemon thread that forwards events to {@code sink}, at most {@code eventsPerSecond}
+   * of them per second. Each event is forwarded on {@code executor}, one at a time; the drainer
+   * waits for a step to finish before handing over the next.
+   */
+  synchronized void start(final Sink sink, final Executor executor, final int eventsPerSecond) {
+    drainer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        MixpanelDispatcher.setBackgroundPriority();
+        drainLoop(sink, executor, eventsPerSecond);
+      }
+    }, THREAD_NAME);
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  /** Stops the drainer thread. Spooled events stay on disk. */
+  synchronized void shutdown() {
+    if (drainer != null) {
+      drainer.interrupt();
+      drainer = null;
+    }
+    closeQuietly();
+  }
+
+  private void drainLoop(final Sink sink, Executor executor, int eventsPerSecond) {
+    long intervalNanos = 1_000_000_000L / eventsPerSecond;
+    long nextNanos = System.nanoTime();
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        awaitRecords();
+        long waitNanos = nextNanos - System.nanoTime();
+        if (waitNanos > 0) {
+          Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        }
+        final CountDownLatch forwarded = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              forwardNext(sink);
+            } finally {
+              forwarded.countDown();
+            }
+          }
+        });
+        forwarded.await();
+        // After an idle period, resume at the limit instead of bursting to catch up.
+        nextNanos = Math.max(nextNanos, System.nanoTime()) + intervalNanos;
+      }
+    } catch (InterruptedException ignored) {
+      // Shut down.
+    }
+  }
+
+  /** Forwards the oldest spooled event, if there still is one. */
+  private void forwardNext(Sink sink) {
+    synchronized (forwardLock) {
+      Record record = next(System.currentTimeMillis());
+      if (record == null) {
+        commit();
+        return;
+      }
+      forward(sink, record);
+      commitEvery(COMMIT_INTERVAL);
+    }
+  }
+
+  private synchronized void awaitRecords() throws InterruptedException {
+    load();
+    while (!hasRecords()) {
+      wait();
+    }
+  }
+
+  private boolean hasRecords() {
+    Segment first = segments.peekFirst();
+    if (first == null) {
+      return false;
+    }
+    return segments.size() > 1 || readOffset < first.bytes;
+  }
+
+  private void forward(Sink sink, Record record) {
+    JSONObject properties;
+    try {
+      properties = new JSONObject(record.json);
+      // Otherwise events are timed when they're forwarded, which can be hours after a crash.
+      if (!properties.has(TIME)) {
+        properties.put(TIME, record.timestampMillis);
+      }
+    } catch (JSONException e) {
+      synchronized (this) {
+        corruptCount++;
+      }
+      return;
+    }
+    try {
+      sink.track(record.event, properties);
+      synchronized (this) {
+        forwardedCount++;
+      }
+    } catch (RuntimeException | Error e) {
+      // Keep going: a dead drainer would never forward anything again.
+      logger.error(e, "Could not forward spooled event %s.", record.event);
+    }
+  }
+
+  /**
+   * Returns the oldest spooled event that isn't expired, or null if there is none. Expired and
+   * corrupt records are skipped, and fully read segments deleted.
+   */
+  synchronized Record next(long nowMillis) {
+    load();
+    while (true) {
+      Segment segment = segments.peekFirst();
+      if (segment == null) {
+        return null;
+      }
+      if (readOffset >= segment.bytes) {
+        if (segment == segments.peekLast()) {
+          return null;
+        }
+        deleteOldest();
+        continue;
+      }
+      Record record;
+      try {
+        record = readRecord(segment);
+      } catch (IOException e) {
+        logger.error(e, "Skipping the rest of spool segment %s.", segment.file.getName());
+        corruptCount++;
+        skipRestOf(segment);
+        continue;
+      }
+      if (record == null) {
+        corruptCount++;
+        skipRestOf(segment);
+        continue;
+      }
+      uncommitted++;
+      readRecords++;
+      if (nowMillis - record.timestampMillis > maxAgeMillis) {
+        expiredCount++;
+        continue;
+      }
+      return record;
+    }
+  }
+
+  private synchronized void commitEvery(int records) {
+    if (uncommitted >= records) {
+      commit();
+    }
+  }
+
+  /** Records how far forwarding got, so it isn't repeated after a restart. */
+  synchronized void commit() {
+    if (uncommitted == 0) {
+      return;
+    }
+    uncommitted = 0;
+    Segment first = segments.peekFirst();
+    File cursor = new File(directory, CURSOR);
+    if (first == null) {
+      //noinspection ResultOfMethodCallIgnored
+      cursor.delete();
+      return;
+    }
+    try {
+      File tmp = new File(directory, CURSOR + ".tmp");
+      DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+      try {
+        out.writeLong(first.sequence);
+        out.writeLong(readOffset);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(cursor)) {
+        throw new IOException("Could not rename " + tmp + " to " + cursor);
+      }
+    } catch (IOException e) {
+      logger.error(e, "Could not save the Mixpanel spool cursor.");
+    }
+  }
+
+  synchronized long size() {
+    load();
+    return totalBytes;
+  }
+
+  synchronized long appendedCount() {
+    return appendedCount;
+  }
+
+  synchronized long forwardedCount() {
+    return forwardedCount;
+  }
+
+  /** Number of events deleted unforwarded to respect the size cap. */
+  synchronized long evictedCount() {
+    return evictedCount;
+  }
+
+  /** Number of events dropped unforwarded for being older than the maximum age. */
+  synchronized long expiredCount() {
+    return expiredCount;
+  }
+
+  /** Number of corrupt records or segment tails skipped. */
+  synchronized long corruptCount() {
+    return corruptCount;
+  }
+
+  static byte[] encode(String event, String json, long timestampMillis) throws IOException {
+    byte[] eventBytes = event.getBytes(UTF_8);
+    byte[] jsonBytes = json.getBytes(UTF_8);
+    int payloadLength = 8 + 4 + eventBytes.length + jsonBytes.length;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_BYTES + payloadLength);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(payloadLength);
+    out.writeInt(0); // CRC placeholder.
+    out.writeLong(timestampMillis);
+    out.writeInt(eventBytes.length);
+    out.write(eventBytes);
+    out.write(jsonBytes);
+    byte[] record = bytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(record, HEADER_BYTES, payloadLength);
+    int value = (int) crc.getValue();
+    record[4] = (byte) (value >>> 24);
+    record[5] = (byte) (value >>> 16);
+    record[6] = (byte) (value >>> 8);
+    record[7] = (byte) value;
+    return record;
+  }
+
+  /** Reads the record at the read offset, or returns null if it's incomplete or corrupt. */
+  private Record readRecord(Segment segment) throws IOException {
+    if (reader == null) {
+      reader = new RandomAccessFile(segment.file, "r");
+    }
+    if (segment.bytes - readOffset < HEADER_BYTES) {
+      return null;
+    }
+    reader.seek(readOffset);
+    int payloadLength = reader.readInt();
+    int expectedCrc = reader.readInt();
+    if (payloadLength < 12 || payloadLength > segment.bytes - readOffset - HEADER_BYTES) {
+      return null;
+    }
+    byte[] payload = new byte[payloadLength];
+    reader.readFully(payload);
+    CRC32 crc = new CRC32();
+    crc.update(payload, 0, payloadLength);
+    if ((int) crc.getValue() != expectedCrc) {
+      return null;
+    }
+    readOffset += HEADER_BYTES + payloadLength;
+    long timestampMillis = readLong(payload, 0);
+    int eventLength = readInt(payload, 8);
+    if (eventLength < 0 || eventLength > payloadLength - 12) {
+      return null;
+    }
+    String event = new String(payload, 12, eventLength, UTF_8);
+    String json = new String(payload, 12 + eventLength, payloadLength - 12 - eventLength, UTF_8);
+    return new Record(event, json, timestampMillis);
+  }
+
+  private void skipRestOf(Segment segment) {
+    readOffset = segment.bytes;
+    if (segment == segments.peekLast()) {
+      // Don't append after garbage, later records would be unreachable.
+      closeWriter();
+    }
+  }
+
+  private Segment roll() throws IOException {
+    closeWriter();
+    Segment last = segments.peekLast();
+    long sequence = last == null ? 0 : last.sequence + 1;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+    Segment segment = new Segment(sequence, new File(directory, sequence + SEGMENT_SUFFIX));
+    writer = new FileOutputStream(segment.file, true);
+    segments.addLast(segment);
+    return segment;
+  }
+
+  private void evictOldest() {
+    evictedCount += segments.peekFirst().records - readRecords;
+    deleteOldest();
+  }
+
+  private void deleteOldest() {
+    Segment oldest = segments.removeFirst();
+    if (reader != null) {
+      try {
+        reader.close();
+      } catch (IOException ignored) {
+      }
+      reader = null;
+    }
+    readOffset = 0;
+    readRecords = 0;
+    totalBytes -= oldest.bytes;
+    //noinspection ResultOfMethodCallIgnored
+    oldest.file.delete();
+    uncommitted++;
+  }
+
+  /** Finds the segments left by a previous run and restores the read cursor. */
+  private void load() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    long[] sequences = new long[files.length];
+    int count = 0;
+    for (File file : files) {
+      String name = file.getName();
+      if (!name.endsWith(SEGMENT_SUFFIX)) {
+        continue;
+      }
+      try {
+        sequences[count++] =
+            Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    Arrays.sort(sequences, 0, count);
+    for (int i = 0; i < count; i++) {
+      File file = new File(directory, sequences[i] + SEGMENT_SUFFIX);
+      Segment segment = new Segment(sequences[i], file);
+      segment.bytes = segment.file.length();
+      segment.records = countRecords(segment.file, segment.bytes);
+      segments.addLast(segment);
+      totalBytes += segment.bytes;
+    }
+    readCursor();
+  }
+
+  private void readCursor() {
+    File cursor = new File(directory, CURSOR);
+    if (!cursor.exists()) {
+      return;
+    }
+    try {
+      RandomAccessFile in = new RandomAccessFile(cursor, "r");
+      try {
+        long sequence = in.readLong();
+        long offset = in.readLong();
+        while (!segments.isEmpty() && segments.peekFirst().sequence < sequence) {
+          deleteOldest();
+        }
+        Segment first = segments.peekFirst();
+        if (first != null && first.sequence == sequence) {
+          readOffset = Math.min(offset, first.bytes);
+          readRecords = countRecords(first.file, readOffset);
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      // Start from the beginning; some events may be forwarded twice.
+      readOffset = 0;
+      readRecords = 0;
+    }
+  }
+
+  /** Counts the records in the first {@code limit} bytes of {@code file} from their headers. */
+  private static long countRecords(File file, long limit) {
+    long records = 0;
+    try {
+      RandomAccessFile in = new RandomAccessFile(file, "r");
+      try {
+        long end = Math.min(limit, in.length());
+        long offset = 0;
+        while (end - offset >= HEADER_BYTES) {
+          in.seek(offset);
+          int payloadLength = in.readInt();
+          if (payloadLength < 12 || payloadLength > end - offset - HEADER_BYTES) {
+            break;
+          }
+          offset += HEADER_BYTES + payloadLength;
+          records++;
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException ignored) {
+      // Counted as far as readable; only used for eviction metrics.
+    }
+    return records;
+  }
+
+  private void closeWriter() {
+    if (writer != null) {
+      try {
+        writer.close();
+      } catch (IOException ignored) {
+      }
+      writer = null;
+    }
+  }
+
+  private void closeQuietly() {
+    closeWriter();
+    if (reader != null) {
+      try {
+        reader.close();
+      } catch (IOException ignored) {
+      }
+      reader = null;
+    }
+  }
+
+  private static long readLong(byte[] bytes, int offset) {
+    return ((long) readInt(bytes, offset) << 32) | (readInt(bytes, offset + 4) & 0xffffffffL);
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return ((bytes[offset] & 0xff) << 24)
+        | ((bytes[offset + 1] & 0xff) << 16)
+        | ((bytes[offset + 2] & 0xff) << 8)
+        | (bytes[offset + 3] & 0xff);
+  }
+
+  static final class Record {
+    final String event;
+    final String json;
+    final long timestampMillis;
+
+    Record(String event, String json, long timestampMillis) {
+      this.event = event;
+      this.json = json;
+      this.timestampMillis = timestampMillis;
+    }
+  }
+
+  private static final class Segment {
+    final long sequence;
+    final File file;
+    long bytes;
+    long records;
+
+    Segment(long sequence, File file) {
+      this.sequence = sequence;
+      this.file = file;
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+/**
+ * Decides when a requested flush actually wakes Mixpanel's network worker. Requests are
+ * coalesced: a flush happens at most once per interval, and a request made sooner is deferred
+ * until the interval has elapsed. The interval is the time Mixpanel takes to queue a full batch
+ * at the observed event rate, bounded by a minimum (the debounce window) and a maximum.
+ *
+ * <p>There is no timer. A deferred flush happens on the first event or request once it's due;
+ * until then Mixpanel's own periodic flush still sends the events. Not thread-safe, the
+ * integration only uses it from dispatched callbacks.
+ */
+class FlushScheduler {
+  /** The most records Mixpanel sends in one request. */
+  static final int BATCH_SIZE = 50;
+  /** Weight of the latest interval's rate in the smoothed event rate. */
+  private static final double RATE_WEIGHT = 0.3;
+
+  private final long minIntervalMillis;
+  private final long maxIntervalMillis;
+  /** Smoothed events per millisecond, or negative until the first flush. */
+  private double eventsPerMilli = -1;
+  private long lastFlushMillis;
+  private int eventsSinceFlush;
+  private boolean requested;
+
+  /**
+   * @param minIntervalMillis the debounce window, the least time between flushes
+   * @param maxIntervalMillis the most time between flushes, however slowly events arrive
+   * @param nowMillis the current time (a monotonic clock)
+   */
+  FlushScheduler(long minIntervalMillis, long maxIntervalMillis, long nowMillis) {
+    this.minIntervalMillis = minIntervalMillis;
+    this.maxIntervalMillis = Math.max(minIntervalMillis, maxIntervalMillis);
+    this.lastFlushMillis = nowMillis;
+  }
+
+  /** Records an event handed to Mixpanel. */
+  void onEvent() {
+    eventsSinceFlush++;
+  }
+
+  /** Records a flush request; returns whether to flush now, otherwise it's deferred. */
+  boolean request(long nowMillis) {
+    requested = true;
+    return isDue(nowMillis);
+  }
+
+  /** True if a flush was requested and the interval since the last one has elapsed. */
+  boolean isDue(long nowMillis) {
+    return requested && nowMillis - lastFlushMillis >= intervalMillis();
+  }
+
+  /** True if a flush was deferred or events were sent since the last one. */
+  boolean hasPending() {
+    return requested || eventsSinceFlush > 0;
+  }
+
+  /** Records that Mixpanel was flushed, and updates the event rate. */
+  void flushed(long nowMillis) {
+    long elapsedMillis = nowMillis - lastFlushMillis;
+    if (elapsedMillis > 0) {
+      double rate = (double) eventsSinceFlush / elapsedMillis;
+      eventsPerMilli = eventsPerMilli < 0
+          ? rate : RATE_WEIGHT * rate + (1 - RATE_WEIGHT) * eventsPerMilli;
+    }
+    lastFlushMillis = nowMillis;
+    eventsSinceFlush = 0;
+    requested = false;
+  }
+
+  /** The least time between flushes at the current event rate. */
+  long intervalMillis() {
+    if (eventsPerMilli < 0) {
+      return minIntervalMillis;
+    }
+    if (eventsPerMilli == 0) {
+      return maxIntervalMillis;
+    }
+    double batchMillis = BATCH_SIZE / eventsPerMilli;
+    return (long) Math.max(minIntervalMillis, Math.min(maxIntervalMillis, batchMillis));
+  }
+}
@@ -0,0 +1,195 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers which group memberships Mixpanel already has and which group traits were already sent
+ * with {@code setOnce}, so repeated group calls (typically one per session start) can skip both.
+ * Since {@code setOnce} never overwrites a property, a trait key sent once for a group never needs
+ * sending again, whatever its value. Memberships are also a People property of the identified
+ * user's profile, so they're kept for one user at a time, see {@link #setUser(String)}; group
+ * traits belong to the group's profile and are kept across users.
+ *
+ * <p>The state is kept in a small binary file when one is given, read on first use and written by
+ * {@link #persist()}. A missing or unreadable file just means starting empty, at the cost of some
+ * redundant calls. Not thread-safe; the integration only uses it from one thread at a time.
+ */
+class GroupStateCache {
+  private static final int VERSION = 2;
+
+  private final File file;
+  /** The user the memberships were set for, or null before the first identify. */
+  private String userId;
+  /** Group key to the group id Mixpanel's super properties hold for it. */
+  private final Map<String, String> memberships = new HashMap<>();
+  /** Group key and id, joined by {@link #groupKey}, to the trait keys already sent. */
+  private final Map<String, Set<String>> sentTraits = new HashMap<>();
+  private boolean loaded;
+  private boolean dirty;
+
+  /** {@code file} may be null to keep the state in memory only. */
+  GroupStateCache(File file) {
+    this.file = file;
+  }
+
+  /** Whether Mixpanel already has {@code groupId} as the membership for {@code groupName}. */
+  boolean isMember(String groupName, String groupId) {
+    load();
+    return groupId != null && groupId.equals(memberships.get(groupName));
+  }
+
+  void setMember(String groupName, String groupId) {
+    load();
+    memberships.put(groupName, groupId);
+    dirty = true;
+  }
+
+  /** Forgets the memberships if {@code userId} isn't the user they were set for. */
+  void setUser(String userId) {
+    load();
+    if (userId.equals(this.userId)) {
+      return;
+    }
+    memberships.clear();
+    this.userId = userId;
+    dirty = true;
+  }
+
+  /**
+   * Returns the entries of {@code traits} not yet sent for the group, and records them as sent.
+   */
+  <T> Map<String, T> unsentTraits(String groupName, String groupId, Map<String, T> traits) {
+    load();
+    String key = groupKey(groupName, groupId);
+    Set<String> sent = sentTraits.get(key);
+    if (sent == null) {
+      sent = new HashSet<>();
+      sentTraits.put(key, sent);
+    }
+    Map<String, T> unsent = new LinkedHashMap<>();
+    for (Map.Entry<String, T> entry : traits.entrySet()) {
+      if (sent.add(entry.getKey())) {
+        unsent.put(entry.getKey(), entry.getValue());
+      }
+    }
+    if (!unsent.isEmpty()) {
+      dirty = true;
+    }
+    return unsent;
+  }
+
+  /** Forgets everything, including the persisted copy. */
+  void clear() {
+    userId = null;
+    memberships.clear();
+    sentTraits.clear();
+    loaded = true;
+    dirty = false;
+    if (file != null) {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  /** Writes the state to the file if it changed since it was last read or written. */
+  void persist() throws IOException {
+    if (!dirty || file == null) {
+      return;
+    }
+    File directory = file.getParentFile();
+    if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(VERSION);
+      out.writeBoolean(userId != null);
+      if (userId != null) {
+        out.writeUTF(userId);
+      }
+      out.writeInt(memberships.size());
+      for (Map.Entry<String, String> entry : memberships.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeUTF(entry.getValue());
+      }
+      out.writeInt(sentTraits.size());
+      for (Map.Entry<String, Set<String>> entry : sentTraits.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeInt(entry.getValue().size());
+        for (String trait : entry.getValue()) {
+          out.writeUTF(trait);
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      throw new IOException("Could not rename " + tmp + " to " + file);
+    }
+    dirty = false;
+  }
+
+  private void load() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    if (file == null) {
+      return;
+    }
+    DataInputStream in;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    } catch (FileNotFoundException e) {
+      return;
+    }
+    try {
+      if (in.readInt() != VERSION) {
+        return;
+      }
+      if (in.readBoolean()) {
+        userId = in.readUTF();
+      }
+      for (int i = in.readInt(); i > 0; i--) {
+        memberships.put(in.readUTF(), in.readUTF());
+      }
+      for (int i = in.readInt(); i > 0; i--) {
+        String key = in.readUTF();
+        Set<String> sent = new HashSet<>();
+        for (int j = in.readInt(); j > 0; j--) {
+          sent.add(in.readUTF());
+        }
+        sentTraits.put(key, sent);
+      }
+    } catch (IOException e) {
+      // Corrupt or truncated, start over.
+      userId = null;
+      memberships.clear();
+      sentTraits.clear();
+    } finally {
+      try {
+        in.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  private static String groupKey(String groupName, String groupId) {
+    return groupName + '\u0000' + groupId;
+  }
+}
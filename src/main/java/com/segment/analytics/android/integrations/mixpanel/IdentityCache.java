@@ -0,0 +1,219 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import com.segment.analytics.integrations.Logger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Remembers the identity calls already made on Mixpanel, so identify and alias calls that would not
+ * change anything can be skipped along with the persistence writes Mixpanel does for each of them.
+ *
+ * <p>When given a file, every change is appended to it as a small record, and the file is
+ * rewritten from the current state when it's opened with too many stale records, or with a record
+ * cut short by a crash. Not thread-safe; the integration only uses it from one thread at a time.
+ */
+class IdentityCache {
+  private static final byte IDENTIFY = 'I';
+  private static final byte PEOPLE_IDENTIFY = 'P';
+  private static final byte ALIAS = 'A';
+  /** Older aliases are forgotten past this many, at worst repeating an alias call. */
+  static final int MAX_ALIASES = 32;
+
+  private final File file;
+  private final Logger logger;
+  private String userId;
+  private String peopleUserId;
+  /** Aliased user and previous ids, joined by {@link #aliasKey}, oldest first. */
+  private final Set<String> aliases = new LinkedHashSet<>();
+  private boolean loaded;
+
+  /** {@code file} may be null to keep the state in memory only. */
+  IdentityCache(File file, Logger logger) {
+    this.file = file;
+    this.logger = logger;
+  }
+
+  /** Whether {@code userId} is the user Mixpanel was last identified as. */
+  boolean isIdentified(String userId) {
+    load();
+    return userId.equals(this.userId);
+  }
+
+  void identified(String userId) {
+    load();
+    this.userId = userId;
+    append(IDENTIFY, userId, null);
+  }
+
+  /** Whether {@code userId} is the user Mixpanel People was last identified as. */
+  boolean isPeopleIdentified(String userId) {
+    load();
+    return userId.equals(peopleUserId);
+  }
+
+  void peopleIdentified(String userId) {
+    load();
+    this.peopleUserId = userId;
+    append(PEOPLE_IDENTIFY, userId, null);
+  }
+
+  /** Whether {@code userId} was already aliased to {@code previousId}. */
+  boolean isAliased(String userId, String previousId) {
+    load();
+    return aliases.contains(aliasKey(userId, previousId));
+  }
+
+  void aliased(String userId, String previousId) {
+    load();
+    addAlias(aliasKey(userId, previousId));
+    append(ALIAS, userId, previousId);
+  }
+
+  /** Forgets everything, including the persisted copy. */
+  void clear() {
+    userId = null;
+    peopleUserId = null;
+    aliases.clear();
+    loaded = true;
+    if (file != null) {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+
+  private void addAlias(String key) {
+    aliases.remove(key);
+    aliases.add(key);
+    if (aliases.size() > MAX_ALIASES) {
+      Iterator<String> oldest = aliases.iterator();
+      oldest.next();
+      oldest.remove();
+    }
+  }
+
+  private static String aliasKey(String userId, String previousId) {
+    return userId + '\u0000' + previousId;
+  }
+
+  private void load() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    if (file == null) {
+      return;
+    }
+    DataInputStream in;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    } catch (FileNotFoundException e) {
+      return;
+    }
+    int records = 0;
+    boolean intact = true;
+    try {
+      while (true) {
+        int type = in.read();
+        if (type == -1) {
+          break;
+        }
+        String first = in.readUTF();
+        switch (type) {
+          case IDENTIFY:
+            userId = first;
+            break;
+          case PEOPLE_IDENTIFY:
+            peopleUserId = first;
+            break;
+          case ALIAS:
+            addAlias(aliasKey(first, in.readUTF()));
+            break;
+          default:
+            throw new IOException("Unknown record " + type);
+        }
+        records++;
+      }
+    } catch (IOException e) {
+      // A record cut short by a crash (EOFException) or garbage; keep what was read before it.
+      intact = false;
+    } finally {
+      try {
+        in.close();
+      } catch (IOException ignored) {
+      }
+    }
+    int live = (userId == null ? 0 : 1) + (peopleUserId == null ? 0 : 1) + aliases.size();
+    if (!intact || records > 2 * live + 16) {
+      compact();
+    }
+  }
+
+  /** Rewrites the file with just the current state. */
+  private void compact() {
+    File tmp = new File(file.getPath() + ".tmp");
+    try {
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        if (userId != null) {
+          writeRecord(out, IDENTIFY, userId, null);
+        }
+        if (peopleUserId != null) {
+          writeRecord(out, PEOPLE_IDENTIFY, peopleUserId, null);
+        }
+        for (String alias : aliases) {
+          int separator = alias.indexOf('\u0000');
+          writeRecord(out, ALIAS, alias.substring(0, separator), alias.substring(separator + 1));
+        }
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Could not rename " + tmp + " to " + file);
+      }
+    } catch (IOException e) {
+      logger.error(e, "Could not compact Mixpanel identity cache.");
+    }
+  }
+
+  private void append(byte type, String first, String second) {
+    if (file == null) {
+      return;
+    }
+    try {
+      File directory = file.getParentFile();
+      if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Could not create " + directory);
+      }
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(file, true)));
+      try {
+        writeRecord(out, type, first, second);
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      // The state in memory is still right; the next run may repeat a call.
+      logger.error(e, "Could not save Mixpanel identity.");
+    }
+  }
+
+  private static void writeRecord(DataOutputStream out, byte type, String first, String second)
+      throws IOException {
+    out.writeByte(type);
+    out.writeUTF(first);
+    if (second != null) {
+      out.writeUTF(second);
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import com.segment.analytics.Properties;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Accumulates occurrences of increment events in memory so they can be sent to Mixpanel People
+ * as one batched update per window instead of one update per event.
+ */
+class IncrementAggregator {
+  private final Map<String, String> sumProperties;
+  private final long windowMillis;
+  private Map<String, Aggregate> pending = new LinkedHashMap<>();
+  private long windowStartMillis;
+
+  /**
+   * @param sumProperties for each event, the numeric property whose values are summed alongside
+   *     the event count
+   * @param windowMillis how long occurrences are accumulated before {@link #isWindowElapsed}
+   */
+  IncrementAggregator(Map<String, String> sumProperties, long windowMillis) {
+    this.sumProperties = sumProperties;
+    this.windowMillis = windowMillis;
+  }
+
+  /** Records one occurrence of {@code event} at {@code nowMillis} (a monotonic clock). */
+  void add(String event, Properties properties, long nowMillis, long timestampMillis) {
+    if (pending.isEmpty()) {
+      windowStartMillis = nowMillis;
+    }
+    Aggregate aggregate = pending.get(event);
+    if (aggregate == null) {
+      aggregate = new Aggregate(sumProperties.get(event));
+      pending.put(event, aggregate);
+    }
+    aggregate.count++;
+    aggregate.lastTimestampMillis = timestampMillis;
+    if (aggregate.sumProperty != null) {
+      aggregate.sum += properties.getDouble(aggregate.sumProperty, 0);
+    }
+  }
+
+  /** True once the oldest pending occurrence is older than the window. */
+  boolean isWindowElapsed(long nowMillis) {
+    return !pending.isEmpty() && nowMillis - windowStartMillis >= windowMillis;
+  }
+
+  boolean isEmpty() {
+    return pending.isEmpty();
+  }
+
+  /** Returns everything accumulated since the last drain, keyed by event, and starts over. */
+  Map<String, Aggregate> drain() {
+    if (pending.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    Map<String, Aggregate> drained = pending;
+    pending = new LinkedHashMap<>();
+    return drained;
+  }
+
+  static class Aggregate {
+    /** The property summed for this event, or null to only count it. */
+    final String sumProperty;
+    int count;
+    double sum;
+    long lastTimestampMillis;
+
+    Aggregate(String sumProperty) {
+      this.sumProperty = sumProperty;
+    }
+  }
+}
@@ -0,0 +1,212 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Serializes Segment traits and properties straight into the {@link JSONObject} Mixpanel expects,
+ * without the intermediate copies of building a new {@code ValueMap} and converting that. Traits
+ * are renamed to Mixpanel's reserved properties on the way.
+ */
+final class JsonWriter {
+  private JsonWriter() {
+    throw new AssertionError("No instances.");
+  }
+
+  /** Writes {@code traits} into a new {@link JSONObject} using Mixpanel's property names. */
+  static JSONObject writeTraits(Map<String, ?> traits) {
+    JSONObject json = new JSONObject();
+    for (Map.Entry<String, ?> entry : traits.entrySet()) {
+      put(json, mixpanelKey(entry.getKey()), entry.getValue());
+    }
+    return json;
+  }
+
+  /** Writes {@code properties} into a new {@link JSONObject}, same as {@code toJsonObject()}. */
+  static JSONObject writeProperties(Map<String, ?> properties) {
+    JSONObject json = new JSONObject();
+    for (Map.Entry<String, ?> entry : properties.entrySet()) {
+      put(json, entry.getKey(), entry.getValue());
+    }
+    return json;
+  }
+
+  /**
+   * Writes the properties {@code projection} lets through into a new {@link JSONObject}, applying
+   * its limits in the same pass. A null projection writes everything.
+   */
+  static JSONObject writeProperties(Map<String, ?> properties, PropertyProjection projection) {
+    if (projection == null) {
+      return writeProperties(properties);
+    }
+    JSONObject json = new JSONObject();
+    for (Map.Entry<String, ?> entry : properties.entrySet()) {
+      String key = entry.getKey();
+      if (!projection.includes(key)) {
+        continue;
+      }
+      Object value = project(entry.getValue(), projection, 1);
+      if (value != OMITTED) {
+        put(json, key, value);
+      }
+    }
+    return json;
+  }
+
+  /** Returned by {@link #project} for values nested deeper than the projection allows. */
+  private static final Object OMITTED = new Object();
+
+  /**
+   * Like {@link #wrap(Object)}, but truncating strings and arrays and leaving out maps and arrays
+   * that would sit deeper than {@code depth}.
+   */
+  private static Object project(Object value, PropertyProjection projection, int depth) {
+    if (value instanceof String) {
+      return projection.truncate((String) value);
+    }
+    if (value instanceof Map) {
+      if (!projection.allowsDepth(depth)) {
+        return OMITTED;
+      }
+      JSONObject json = new JSONObject();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        Object projected = project(entry.getValue(), projection, depth + 1);
+        if (projected != OMITTED) {
+          put(json, String.valueOf(entry.getKey()), projected);
+        }
+      }
+      return json;
+    }
+    if (value instanceof Collection) {
+      if (!projection.allowsDepth(depth)) {
+        return OMITTED;
+      }
+      JSONArray array = new JSONArray();
+      int remaining = projection.maxArrayLength;
+      for (Object element : (Collection<?>) value) {
+        if (remaining-- == 0) {
+          break;
+        }
+        Object projected = project(element, projection, depth + 1);
+        if (projected != OMITTED) {
+          array.put(projected);
+        }
+      }
+      return array;
+    }
+    if (value != null && value.getClass().isArray()) {
+      if (!projection.allowsDepth(depth)) {
+        return OMITTED;
+      }
+      int length = Math.min(Array.getLength(value), projection.maxArrayLength);
+      JSONArray array = new JSONArray();
+      for (int i = 0; i < length; i++) {
+        Object projected = project(Array.get(value, i), projection, depth + 1);
+        if (projected != OMITTED) {
+          array.put(projected);
+        }
+      }
+      return array;
+    }
+    if ((value instanceof JSONObject || value instanceof JSONArray)
+        && !projection.allowsDepth(depth)) {
+      return OMITTED;
+    }
+    return wrap(value);
+  }
+
+  /** Wraps and stores {@code value}, mapping null to {@link JSONObject#NULL} like a ValueMap. */
+  static void put(JSONObject json, String key, Object value) {
+    try {
+      json.put(key, wrap(value));
+    } catch (JSONException ignored) {
+      // Same as ValueMap#toJsonObject, values JSON can't represent (e.g. NaN) are skipped.
+    }
+  }
+
+  /** Returns the reserved Mixpanel property for a Segment trait, or the trait key itself. */
+  static String mixpanelKey(String key) {
+    switch (key) {
+      case "email":
+        return "$email";
+      case "phone":
+        return "$phone";
+      case "firstName":
+        return "$first_name";
+      case "lastName":
+        return "$last_name";
+      case "name":
+        return "$name";
+      case "username":
+        return "$username";
+      case "createdAt":
+        return "$created";
+      default:
+        return key;
+    }
+  }
+
+  /** Converts a trait value to its org.json representation, mirroring {@code ValueMap}. */
+  static Object wrap(Object value) {
+    if (value == null) {
+      return JSONObject.NULL;
+    }
+    if (value instanceof JSONArray || value instanceof JSONObject || JSONObject.NULL.equals(value)) {
+      return value;
+    }
+    if (value instanceof Collection) {
+      return new JSONArray((Collection) value);
+    }
+    if (value.getClass().isArray()) {
+      int length = Array.getLength(value);
+      JSONArray array = new JSONArray();
+      for (int i = 0; i < length; i++) {
+        array.put(wrap(Array.get(value, i)));
+      }
+      return array;
+    }
+    if (value instanceof Map) {
+      JSONObject json = new JSONObject();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        put(json, String.valueOf(entry.getKey()), entry.getValue());
+      }
+      return json;
+    }
+    if (value instanceof Boolean
+        || value instanceof Byte
+        || value instanceof Character
+        || value instanceof Double
+        || value instanceof Float
+        || value instanceof Integer
+        || value instanceof Long
+        || value instanceof Short
+        || value instanceof String) {
+      return value;
+    }
+    return value.toString();
+  }
+
+  /** Number of bytes {@code s} takes encoded as UTF-8, without encoding it. */
+  static int utf8Length(String s) {
+    int length = 0;
+    for (int i = 0, n = s.length(); i < n; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < n
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+}
@@ -0,0 +1,203 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONStringer;
+
+/**
+ * A {@link JSONObject} that reads its values from a map instead of copying them up front. It has
+ * the same keys and values as {@code toJsonObject()} would give, but a nested map or collection
+ * is only converted the first time it is read, and nothing is converted if the object is never
+ * read: Mixpanel drops events for opted out users before looking at their properties, and copies
+ * the ones it keeps with {@link #keys()} and {@link #opt(String)}. {@link #toString()} writes the
+ * map directly.
+ *
+ * <p>The first change through {@code put}, {@code accumulate} or {@code remove} copies the map
+ * into the object, which then behaves as a plain {@link JSONObject}. Until then it must only be
+ * handed to code that reads it through its methods: a {@link JSONObject} serializing another one
+ * nested inside it reads the nested one's fields directly, and would see it empty. Like {@link
+ * JSONObject}, not thread-safe.
+ */
+final class LazyJsonObject extends JSONObject {
+  /** The map read from, or null once it has been copied into this object. */
+  private Map<String, ?> map;
+  /** Nested maps and collections converted so far, so repeated reads return the same object. */
+  private Map<String, Object> converted;
+
+  LazyJsonObject(Map<String, ?> map) {
+    this.map = map;
+  }
+
+  @Override public Object opt(String name) {
+    if (map == null) {
+      return super.opt(name);
+    }
+    if (name == null || !map.containsKey(name)) {
+      return null;
+    }
+    Object value = map.get(name);
+    if (!isNested(value)) {
+      return isValid(value) ? JsonWriter.wrap(value) : null;
+    }
+    if (converted == null) {
+      converted = new HashMap<>();
+    }
+    Object wrapped = converted.get(name);
+    if (wrapped == null) {
+      wrapped = JsonWriter.wrap(value);
+      converted.put(name, wrapped);
+    }
+    return wrapped;
+  }
+
+  @Override public Object get(String name) throws JSONException {
+    Object value = opt(name);
+    if (value == null) {
+      throw new JSONException("No value for " + name);
+    }
+    return value;
+  }
+
+  @Override public boolean has(String name) {
+    if (map == null) {
+      return super.has(name);
+    }
+    return name != null && map.containsKey(name) && isValid(map.get(name));
+  }
+
+  @Override public boolean isNull(String name) {
+    Object value = opt(name);
+    return value == null || value == NULL;
+  }
+
+  @Override public int length() {
+    return map == null ? super.length() : keyList().size();
+  }
+
+  @Override public Iterator<String> keys() {
+    return map == null ? super.keys() : keyList().iterator();
+  }
+
+  @Override public JSONArray names() {
+    if (map == null) {
+      return super.names();
+    }
+    List<String> keys = keyList();
+    return keys.isEmpty() ? null : new JSONArray(keys);
+  }
+
+  @Override public JSONObject put(String name, boolean value) throws JSONException {
+    materialize();
+    return super.put(name, value);
+  }
+
+  @Override public JSONObject put(String name, double value) throws JSONException {
+    materialize();
+    return super.put(name, value);
+  }
+
+  @Override public JSONObject put(String name, int value) throws JSONException {
+    materialize();
+    return super.put(name, value);
+  }
+
+  @Override public JSONObject put(String name, long value) throws JSONException {
+    materialize();
+    return super.put(name, value);
+  }
+
+  @Override public JSONObject put(String name, Object value) throws JSONException {
+    materialize();
+    return super.put(name, value);
+  }
+
+  @Override public JSONObject putOpt(String name, Object value) throws JSONException {
+    materialize();
+    return super.putOpt(name, value);
+  }
+
+  @Override public JSONObject accumulate(String name, Object value) throws JSONException {
+    materialize();
+    return super.accumulate(name, value);
+  }
+
+  @Override public Object remove(String name) {
+    materialize();
+    return super.remove(name);
+  }
+
+  @Override public String toString() {
+    if (map == null) {
+      return super.toString();
+    }
+    try {
+      JSONStringer stringer = new JSONStringer();
+      stringer.object();
+      for (String key : keyList()) {
+        stringer.key(key).value(opt(key));
+      }
+      return stringer.endObject().toString();
+    } catch (JSONException e) {
+      return null;
+    }
+  }
+
+  @Override public String toString(int indentSpaces) throws JSONException {
+    materialize();
+    return super.toString(indentSpaces);
+  }
+
+  /** The keys {@code toJsonObject()} would keep, in the map's order. */
+  private List<String> keyList() {
+    List<String> keys = new ArrayList<>(map.size());
+    for (Map.Entry<String, ?> entry : map.entrySet()) {
+      // Checked without converting any values.
+      if (entry.getKey() != null && isValid(entry.getValue())) {
+        keys.add(entry.getKey());
+      }
+    }
+    return keys;
+  }
+
+  /** Copies the map into this object, so it can be changed like any {@link JSONObject}. */
+  private void materialize() {
+    if (map == null) {
+      return;
+    }
+    List<String> keys = keyList();
+    Object[] values = new Object[keys.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = opt(keys.get(i));
+    }
+    map = null;
+    converted = null;
+    for (int i = 0; i < values.length; i++) {
+      JsonWriter.put(this, keys.get(i), values[i]);
+    }
+  }
+
+  /** Whether {@code value} is converted to a {@link JSONObject} or {@link JSONArray}. */
+  private static boolean isNested(Object value) {
+    return value instanceof Map || value instanceof Collection
+        || (value != null && value.getClass().isArray());
+  }
+
+  /**
+   * Whether {@link JSONObject#put} accepts {@code value} once wrapped. It rejects NaN and
+   * infinities, and only doubles and floats keep theirs through {@link JsonWriter#wrap(Object)}.
+   */
+  private static boolean isValid(Object value) {
+    if (!(value instanceof Double || value instanceof Float)) {
+      return true;
+    }
+    double d = ((Number) value).doubleValue();
+    return !Double.isNaN(d) && !Double.isInfinite(d);
+  }
+}
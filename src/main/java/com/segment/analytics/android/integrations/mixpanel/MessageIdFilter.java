@@ -0,0 +1,306 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Remembers the message ids of recent payloads so ones Segment redelivers can be dropped. Ids are
+ * kept in two Bloom filters, a current and a previous generation, each holding at most {@code
+ * capacity} ids from at most one window: an id is remembered for at least one window, or for at
+ * least {@code capacity} later ids under heavy traffic, and at most for two windows. Memory is
+ * fixed up front by the capacity and the false positive rate, whatever the traffic.
+ *
+ * <p>A false positive drops a payload that was never seen, so the rate is an upper bound on lost
+ * events rather than on wasted work. {@link #falsePositiveRate()} estimates the current rate from
+ * how full the filters are.
+ *
+ * <p>The filters are kept in a file when one is given, read by {@link #load()} and written by
+ * {@link #persist()}, so redeliveries after a crash are still caught. Lookups never touch the disk:
+ * ids seen before the file is read are merged with the ones read from it. Thread-safe.
+ */
+class MessageIdFilter {
+  private static final int VERSION = 1;
+
+  private final File file;
+  private final int capacity;
+  private final long windowMillis;
+  /** Bits in each generation, a multiple of 64. */
+  private final int bits;
+  private final int hashes;
+  private long[] current;
+  private long[] previous;
+  private int currentBitCount;
+  private int previousBitCount;
+  private int currentIds;
+  private long currentStartMillis = -1;
+  private long duplicateCount;
+  private boolean loaded;
+  private boolean dirty;
+
+  /**
+   * Sizes the filters for {@code capacity} ids per generation at the given false positive rate.
+   * {@code file} may be null to keep the ids in memory only.
+   */
+  MessageIdFilter(int capacity, double falsePositiveRate, long windowMillis, File file) {
+    this.capacity = capacity;
+    this.windowMillis = windowMillis;
+    this.file = file;
+    // A lookup checks both generations, so each gets half the false positive budget.
+    double p = falsePositiveRate / 2;
+    long optimalBits = (long) Math.ceil(-capacity * Math.log(p) / (Math.log(2) * Math.log(2)));
+    this.bits = (int) Math.min(Integer.MAX_VALUE - 63, (optimalBits + 63) & ~63L);
+    this.hashes = Math.max(1, (int) Math.round((double) bits / capacity * Math.log(2)));
+    this.current = new long[bits / 64];
+    this.previous = new long[bits / 64];
+  }
+
+  /**
+   * Returns true if {@code messageId} was already seen within the window. Otherwise records it
+   * and returns false.
+   */
+  synchronized boolean isDuplicate(String messageId, long nowMillis) {
+    rotate(nowMillis);
+    long hash = hash(messageId);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    if (contains(current, h1, h2) || contains(previous, h1, h2)) {
+      duplicateCount++;
+      return true;
+    }
+    for (int i = 0; i < hashes; i++) {
+      int bit = index(h1 + i * h2);
+      long mask = 1L << bit;
+      if ((current[bit >>> 6] & mask) == 0) {
+        current[bit >>> 6] |= mask;
+        currentBitCount++;
+      }
+    }
+    currentIds++;
+    dirty = true;
+    return false;
+  }
+
+  /** Number of payloads {@link #isDuplicate} reported as duplicates. */
+  synchronized long duplicateCount() {
+    return duplicateCount;
+  }
+
+  /** The chance that a new id is reported as a duplicate, given how full the filters are. */
+  synchronized double falsePositiveRate() {
+    double currentRate = Math.pow((double) currentBitCount / bits, hashes);
+    double previousRate = Math.pow((double) previousBitCount / bits, hashes);
+    return 1 - (1 - currentRate) * (1 - previousRate);
+  }
+
+  /** Bytes taken by the filters themselves. */
+  int sizeBytes() {
+    return 2 * bits / 8;
+  }
+
+  /**
+   * Writes the filters to the file if they changed since they were last read or written. Does
+   * nothing until {@link #load()} has read the file, which would otherwise be overwritten.
+   */
+  void persist() throws IOException {
+    long[] current;
+    long[] previous;
+    int currentIds;
+    long currentStartMillis;
+    synchronized (this) {
+      if (!dirty || file == null || !loaded) {
+        return;
+      }
+      // Copied so calls aren't blocked on the disk write.
+      current = this.current.clone();
+      previous = this.previous.clone();
+      currentIds = this.currentIds;
+      currentStartMillis = this.currentStartMillis;
+      dirty = false;
+    }
+    File directory = file.getParentFile();
+    if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(VERSION);
+      out.writeInt(bits);
+      out.writeInt(hashes);
+      out.writeLong(currentStartMillis);
+      out.writeInt(currentIds);
+      for (long word : current) {
+        out.writeLong(word);
+      }
+      for (long word : previous) {
+        out.writeLong(word);
+      }
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      synchronized (this) {
+        dirty = true;
+      }
+      throw new IOException("Could not rename " + tmp + " to " + file);
+    }
+  }
+
+  /** Starts a new generation once the current one is a window old or full. */
+  private void rotate(long nowMillis) {
+    if (currentStartMillis < 0) {
+      currentStartMillis = nowMillis;
+      return;
+    }
+    long age = nowMillis - currentStartMillis;
+    if (age < windowMillis && currentIds < capacity) {
+      return;
+    }
+    long[] recycled = previous;
+    previous = current;
+    previousBitCount = currentBitCount;
+    if (age >= 2 * windowMillis) {
+      // Both generations are out of the window.
+      Arrays.fill(previous, 0);
+      previousBitCount = 0;
+    }
+    Arrays.fill(recycled, 0);
+    current = recycled;
+    currentBitCount = 0;
+    currentIds = 0;
+    currentStartMillis = nowMillis;
+    dirty = true;
+  }
+
+  private boolean contains(long[] filter, int h1, int h2) {
+    for (int i = 0; i < hashes; i++) {
+      int bit = index(h1 + i * h2);
+      if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int index(int hash) {
+    return (hash & Integer.MAX_VALUE) % bits;
+  }
+
+  /** 64-bit FNV-1a over the id's chars, finished with Murmur3's mixer to spread similar ids. */
+  static long hash(String id) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0, n = id.length(); i < n; i++) {
+      hash ^= id.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /**
+   * Reads the filters written by an earlier {@link #persist()}, if any, and merges them with the
+   * ids seen so far. Reads the disk, so it's meant for a background thread; only the first call
+   * does anything.
+   */
+  void load() {
+    synchronized (this) {
+      if (loaded) {
+        return;
+      }
+    }
+    try {
+      if (file == null) {
+        return;
+      }
+      DataInputStream in;
+      try {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      } catch (FileNotFoundException e) {
+        return;
+      }
+      try {
+        // Filters sized differently can't be reused, start over.
+        if (in.readInt() != VERSION || in.readInt() != bits || in.readInt() != hashes) {
+          return;
+        }
+        long startMillis = in.readLong();
+        int ids = in.readInt();
+        long[] current = new long[bits / 64];
+        long[] previous = new long[bits / 64];
+        for (int i = 0; i < current.length; i++) {
+          current[i] = in.readLong();
+        }
+        for (int i = 0; i < previous.length; i++) {
+          previous[i] = in.readLong();
+        }
+        merge(startMillis, ids, current, previous);
+      } catch (IOException e) {
+        // Corrupt or truncated, start over.
+      } finally {
+        try {
+          in.close();
+        } catch (IOException ignored) {
+        }
+      }
+    } finally {
+      synchronized (this) {
+        loaded = true;
+      }
+    }
+  }
+
+  /** Adds generations read from the file to the ones filled in since this filter was created. */
+  private synchronized void merge(long startMillis, int ids, long[] current, long[] previous) {
+    if (currentStartMillis < 0) {
+      // Nothing seen yet.
+      this.current = current;
+      this.previous = previous;
+      this.currentIds = ids;
+      this.currentStartMillis = startMillis;
+    } else {
+      // Age the read generations to when this filter started, the way rotate() would have.
+      long age = currentStartMillis - startMillis;
+      if (age >= 2 * windowMillis) {
+        return;
+      }
+      if (age >= windowMillis) {
+        or(this.previous, current);
+      } else {
+        or(this.current, current);
+        or(this.previous, previous);
+        this.currentIds += ids;
+        this.currentStartMillis = startMillis;
+      }
+      dirty = true;
+    }
+    this.currentBitCount = bitCount(this.current);
+    this.previousBitCount = bitCount(this.previous);
+  }
+
+  private static void or(long[] into, long[] filter) {
+    for (int i = 0; i < into.length; i++) {
+      into[i] |= filter[i];
+    }
+  }
+
+  private static int bitCount(long[] filter) {
+    int count = 0;
+    for (long word : filter) {
+      count += Long.bitCount(word);
+    }
+    return count;
+  }
+}
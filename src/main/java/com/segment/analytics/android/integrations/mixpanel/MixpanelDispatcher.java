@@ -0,0 +1,236 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import com.segment.analytics.integrations.Logger;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+
+/**
+ * Runs integration work on a single dedicated worker thread, fed by a bounded FIFO queue. Tasks
+ * run in the order they were enqueued, so identify, track and alias sequences reach Mixpanel in
+ * the same order Segment delivered them.
+ *
+ * <p>Only droppable tasks (track and screen) are subject to the {@link
+ * MixpanelOptions.OverflowPolicy}. Tasks that change identity or group state are never dropped; if
+ * the queue is full they wait for room, even under a dropping policy.
+ *
+ * <p>The worker is started by the first task and stops once it's been idle for a while, to be
+ * started again by the next one. Segment has no hook for tearing an integration down, so an
+ * integration that was replaced, for example when its settings were refreshed, doesn't keep a
+ * thread alive for the rest of the process.
+ */
+class MixpanelDispatcher {
+  private static final String THREAD_NAME = "Segment-MixpanelDispatcher";
+  private static final long KEEP_ALIVE_MILLIS = 60_000;
+
+  private final ArrayDeque<Task> queue;
+  private final int capacity;
+  private final MixpanelOptions.OverflowPolicy overflowPolicy;
+  private final Logger logger;
+  private final long keepAliveMillis;
+
+  /** The worker thread, or null while none is running. Guarded by {@code queue}. */
+  private Thread worker;
+
+  /** Guarded by {@code queue}. */
+  private boolean running;
+
+  /** Guarded by {@code queue}. */
+  private long droppedCount;
+
+  MixpanelDispatcher(int capacity, MixpanelOptions.OverflowPolicy overflowPolicy, Logger logger) {
+    this(capacity, overflowPolicy, logger, KEEP_ALIVE_MILLIS);
+  }
+
+  MixpanelDispatcher(int capacity, MixpanelOptions.OverflowPolicy overflowPolicy, Logger logger,
+      long keepAliveMillis) {
+    this.queue = new ArrayDeque<>(Math.min(capacity, 64));
+    this.capacity = capacity;
+    this.overflowPolicy = overflowPolicy;
+    this.logger = logger;
+    this.keepAliveMillis = keepAliveMillis;
+  }
+
+  /**
+   * Queues {@code runnable} for the worker thread. Returns false if the task (or, for {@link
+   * MixpanelOptions.OverflowPolicy#DROP_OLDEST}, an older task) was dropped to respect the
+   * capacity.
+   */
+  boolean enqueue(Runnable runnable, boolean droppable) {
+    Task task = new Task(runnable, droppable);
+    synchronized (queue) {
+      boolean dropped = false;
+      while (queue.size() >= capacity) {
+        if (droppable && overflowPolicy == MixpanelOptions.OverflowPolicy.DROP_NEWEST) {
+          droppedCount++;
+          return false;
+        }
+        if (overflowPolicy == MixpanelOptions.OverflowPolicy.DROP_OLDEST
+            && evictOldestDroppable()) {
+          droppedCount++;
+          dropped = true;
+          break;
+        }
+        if (!awaitQueue()) {
+          droppedCount++;
+          return false;
+        }
+      }
+      queue.addLast(task);
+      queue.notifyAll();
+      if (worker == null) {
+        startWorker();
+      }
+      return !dropped;
+    }
+  }
+
+  /**
+   * Blocks until every task enqueued before this call has finished running. Called from the
+   * worker thread itself this is a no-op, since waiting would never finish.
+   */
+  void drain() {
+    synchronized (queue) {
+      if (Thread.currentThread() == worker) {
+        return;
+      }
+      while (!queue.isEmpty() || running) {
+        if (!awaitQueue()) {
+          return;
+        }
+      }
+    }
+  }
+
+  /** Number of payloads discarded because the queue was full. */
+  long droppedCount() {
+    synchronized (queue) {
+      return droppedCount;
+    }
+  }
+
+  /** Number of payloads waiting for the worker thread. */
+  int size() {
+    synchronized (queue) {
+      return queue.size();
+    }
+  }
+
+  /**
+   * Lowers the calling thread to background priority. Off-device, where {@code android.os.Process}
+   * has no native implementation, falls back to the lowest Java priority.
+   */
+  static void setBackgroundPriority() {
+    try {
+      android.os.Process.setThreadPriority(THREAD_PRIORITY_BACKGROUND);
+    } catch (Throwable e) {
+      Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+    }
+  }
+
+  /** Whether the worker thread is running, or about to. */
+  boolean isWorkerAlive() {
+    synchronized (queue) {
+      return worker != null;
+    }
+  }
+
+  /**
+   * Stops the worker thread now rather than once it's idle. Tasks still queued are discarded; the
+   * next task starts a new worker.
+   */
+  void shutdown() {
+    synchronized (queue) {
+      queue.clear();
+      queue.notifyAll();
+      if (worker != null) {
+        worker.interrupt();
+      }
+    }
+  }
+
+  /** Guarded by {@code queue}. */
+  private void startWorker() {
+    worker = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        setBackgroundPriority();
+        drainLoop();
+      }
+    }, THREAD_NAME);
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  private boolean evictOldestDroppable() {
+    for (Iterator<Task> iterator = queue.iterator(); iterator.hasNext(); ) {
+      if (iterator.next().droppable) {
+        iterator.remove();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Waits on the queue monitor, returning false if the calling thread was interrupted. */
+  private boolean awaitQueue() {
+    try {
+      queue.wait();
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /** Like {@link #awaitQueue()}, but for at most {@code timeoutNanos}. */
+  private boolean awaitQueue(long timeoutNanos) {
+    try {
+      TimeUnit.NANOSECONDS.timedWait(queue, timeoutNanos);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private void drainLoop() {
+    while (true) {
+      Task task;
+      synchronized (queue) {
+        running = false;
+        queue.notifyAll();
+        long deadlineNanos = System.nanoTime() + keepAliveMillis * 1_000_000;
+        while (queue.isEmpty()) {
+          long remainingNanos = deadlineNanos - System.nanoTime();
+          if (remainingNanos <= 0 || !awaitQueue(remainingNanos)) {
+            // The next enqueue starts another worker.
+            worker = null;
+            return;
+          }
+        }
+        task = queue.removeFirst();
+        running = true;
+        queue.notifyAll();
+      }
+      try {
+        task.runnable.run();
+      } catch (RuntimeException | Error e) {
+        // Keep going: a dead worker would leave every later task, and drain(), waiting forever.
+        logger.error(e, "Mixpanel integration task failed.");
+      }
+    }
+  }
+
+  private static class Task {
+    final Runnable runnable;
+    final boolean droppable;
+
+    Task(Runnable runnable, boolean droppable) {
+      this.runnable = runnable;
+      this.droppable = droppable;
+    }
+  }
+}
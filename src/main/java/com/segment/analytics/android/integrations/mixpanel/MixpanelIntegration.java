@@ -1,19 +1,25 @@
 package com.segment.analytics.android.integrations.mixpanel;
 
 import android.app.Activity;
+import android.app.Application;
 import android.os.Bundle;
 import com.mixpanel.android.mpmetrics.MixpanelAPI;
 import com.segment.analytics.Analytics;
 import com.segment.analytics.Properties;
 import com.segment.analytics.Traits;
 import com.segment.analytics.ValueMap;
+import com.segment.analytics.android.integrations.mixpanel.MixpanelMetricsListener.Call;
+import com.segment.analytics.android.integrations.mixpanel.MixpanelMetricsListener.Drop;
 import com.segment.analytics.integrations.AliasPayload;
+import com.segment.analytics.integrations.BasePayload;
 import com.segment.analytics.integrations.GroupPayload;
 import com.segment.analytics.integrations.IdentifyPayload;
 import com.segment.analytics.integrations.Integration;
 import com.segment.analytics.integrations.Logger;
 import com.segment.analytics.integrations.ScreenPayload;
 import com.segment.analytics.integrations.TrackPayload;
+import java.io.File;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
@@ -21,29 +27,66 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 import org.json.JSONObject;
 
 import static com.segment.analytics.internal.Utils.isNullOrEmpty;
-import static com.segment.analytics.internal.Utils.transform;
 
+/**
+ * Forwards Segment payloads to Mixpanel.
+ *
+ * <p>Safe to call from any number of threads. Payload callbacks run one at a time, in the order
+ * they were made: on the dispatcher thread with asynchronous dispatch or lazy initialization,
+ * otherwise on the calling thread under a lock. Decisions made before dispatching (opt-out,
+ * consent, deduplication, sampling, rate limits) and the counters exposed by the getters are
+ * thread-safe on their own, and configuration is immutable once the integration is created.
+ */
 public class MixpanelIntegration extends Integration<MixpanelAPI> {
-  private static final String VIEWED_EVENT_FORMAT = "Viewed %s Screen";
   public static final Factory FACTORY =
       new Factory() {
         @Override
         public Integration<?> create(ValueMap settings, Analytics analytics) {
-          boolean consolidatedPageCalls = settings.getBoolean("consolidatedPageCalls", true);
-          boolean trackAllPages = settings.getBoolean("trackAllPages", false);
-          boolean trackCategorizedPages = settings.getBoolean("trackCategorizedPages", false);
-          boolean trackNamedPages = settings.getBoolean("trackNamedPages", false);
           boolean isPeopleEnabled = settings.getBoolean("people", false);
           String token = settings.getString("token");
-          Set<String> increments = getStringSet(settings, "increments");
-          boolean setAllTraitsByDefault = settings.getBoolean("setAllTraitsByDefault", true);
-          Set<String> peopleProperties = getStringSet(settings, "peopleProperties");
-          Set<String> superProperties = getStringSet(settings, "superProperties");
+          MixpanelSettings mixpanelSettings = MixpanelSettings.fromSettings(settings);
+          MixpanelOptions options = MixpanelOptions.fromSettings(settings);
+          if (options.storageDirectory == null && options.usesStorage()) {
+            File filesDir = analytics.getApplication().getFilesDir();
+            if (filesDir != null) {
+              options = options.newBuilder()
+                  .storageDirectory(new File(filesDir, "segment-mixpanel-" + token))
+                  .build();
+            }
+          }
+
+          final Logger logger = analytics.logger(MIXPANEL_KEY);
+          if (options.lazyInitialization) {
+            MixpanelIntegration integration =
+                new MixpanelIntegration(
+                    null,
+                    null,
+                    isPeopleEnabled,
+                    token,
+                    logger,
+                    mixpanelSettings,
+                    options);
+            final Application application = analytics.getApplication();
+            final String lazyToken = token;
+            integration.initializeLazily(
+                new Callable<MixpanelAPI>() {
+                  @Override
+                  public MixpanelAPI call() {
+                    MixpanelAPI mixpanel = MixpanelAPI.getInstance(application, lazyToken, false);
+                    logger.verbose("MixpanelAPI.getInstance(context, %s);", lazyToken);
+                    return mixpanel;
+                  }
+                });
+            return integration;
+          }
 
-          Logger logger = analytics.logger(MIXPANEL_KEY);
           MixpanelAPI mixpanel = MixpanelAPI.getInstance(analytics.getApplication(), token, false);
           logger.verbose("MixpanelAPI.getInstance(context, %s);", token);
 
@@ -58,16 +101,10 @@ public class MixpanelIntegration extends Integration<MixpanelAPI> {
               mixpanel,
               people,
               isPeopleEnabled,
-              consolidatedPageCalls,
-              trackAllPages,
-              trackCategorizedPages,
-              trackNamedPages,
               token,
               logger,
-              increments,
-              setAllTraitsByDefault,
-              peopleProperties,
-              superProperties);
+              mixpanelSettings,
+              options);
         }
 
         @Override
@@ -76,36 +113,60 @@ public class MixpanelIntegration extends Integration<MixpanelAPI> {
         }
       };
   private static final String MIXPANEL_KEY = "Mixpanel";
+  private static final long SPOOL_SEGMENT_BYTES = 256 * 1024;
 
-  private static final Map<String, String> MAPPER;
-
-  static {
-    Map<String, String> mapper = new LinkedHashMap<>();
-    mapper.put("email", "$email");
-    mapper.put("phone", "$phone");
-    mapper.put("firstName", "$first_name");
-    mapper.put("lastName", "$last_name");
-    mapper.put("name", "$name");
-    mapper.put("username", "$username");
-    mapper.put("createdAt", "$created");
-    MAPPER = Collections.unmodifiableMap(mapper);
-  }
-
-  private final MixpanelAPI mixpanel;
-  final MixpanelAPI.People mixpanelPeople;
+  // Not final: with lazy initialization both are assigned on the dispatcher thread before any
+  // queued payload runs. initialized publishes them to other threads.
+  private MixpanelAPI mixpanel;
+  MixpanelAPI.People mixpanelPeople;
+  private final CountDownLatch initialized;
   final boolean isPeopleEnabled;
-  private final boolean consolidatedPageCalls;
-  final boolean trackAllPages;
-  final boolean trackCategorizedPages;
-  final boolean trackNamedPages;
   final String token;
   private final Logger logger;
-  final Set<String> increments;
-  final boolean setAllTraitsByDefault;
-  private final Set<String> peopleProperties;
-  private final Set<String> superProperties;
+  /** Swapped whole by {@link #updateSettings}; callbacks read it once and use that snapshot. */
+  private volatile MixpanelSettings settings;
+  /** Runs callbacks off Segment's dispatcher thread, or null to run them inline. */
+  final MixpanelDispatcher dispatcher;
+  /** Held while running a callback inline, so callbacks from several threads don't interleave. */
+  private final Object inlineLock = new Object();
+  private final PropertyFingerprints superPropertyFingerprints = new PropertyFingerprints();
+  private final PropertyFingerprints peoplePropertyFingerprints = new PropertyFingerprints();
+  private final ScreenNameCache screenNames;
+  private final SerializationCache serializations;
+  private final EventSampler sampler;
+  /** Batches increment events when aggregation is enabled, otherwise null. */
+  private final IncrementAggregator incrementAggregator;
+  /** The user people properties were last set for; people properties are per profile. */
+  private String peoplePropertiesUserId;
+  private final MixpanelOptions.AppLinkPredicate appLinkPredicate;
+  /** Receives hot-path measurements, or null when nothing is measured. */
+  private final MixpanelMetricsListener metrics;
+  /** Whether verbose logs are written; checked first so payloads aren't formatted for nothing. */
+  private final boolean verbose;
+  private final PropertyProjection defaultPropertyProjection;
+  private final Map<String, PropertyProjection> propertyProjections;
+  /** Skips redundant group calls when enabled, otherwise null. */
+  private final GroupStateCache groupStates;
+  private final MessageIdFilter messageIds;
+  /** Skips identify and alias calls that change nothing when enabled, otherwise null. */
+  private final IdentityCache identities;
+  /** Holds tracked events on disk on their way to Mixpanel when enabled, otherwise null. */
+  private final EventSpool spool;
+  private final EventSpool.Sink spoolSink;
+  private final AtomicLong skippedAppLinkChecks = new AtomicLong();
+  private final ConsentGate consent;
+  /** Whether payloads are dropped up front while {@link #consent} says the user opted out. */
+  private final boolean skipWhenOptedOut;
+  private final AtomicLong optedOutPayloads = new AtomicLong();
+  private final AtomicLong withheldEvents = new AtomicLong();
+  /** Records incoming calls when enabled, otherwise null. */
+  private final PayloadTrace.Recorder trace;
+  /** Coalesces flushes with adaptive flushing, otherwise null to flush on every request. */
+  private final FlushScheduler flushScheduler;
+  private final AtomicLong flushRequests = new AtomicLong();
+  private final AtomicLong performedFlushes = new AtomicLong();
 
-  private static Set<String> getStringSet(ValueMap valueMap, String key) {
+  static Set<String> getStringSet(ValueMap valueMap, String key) {
     try {
       //noinspection unchecked
       List<Object> incrementEvents = (List<Object>) valueMap.get(key);
@@ -136,55 +197,594 @@ public class MixpanelIntegration extends Integration<MixpanelAPI> {
       boolean setAllTraitsByDefault,
       Set<String> peopleProperties,
       Set<String> superProperties) {
+    this(
+        mixpanel,
+        mixpanelPeople,
+        isPeopleEnabled,
+        consolidatedPageCalls,
+        trackAllPages,
+        trackCategorizedPages,
+        trackNamedPages,
+        token,
+        logger,
+        increments,
+        setAllTraitsByDefault,
+        peopleProperties,
+        superProperties,
+        MixpanelOptions.DEFAULT);
+  }
+
+  public MixpanelIntegration(
+      MixpanelAPI mixpanel,
+      MixpanelAPI.People mixpanelPeople,
+      boolean isPeopleEnabled,
+      boolean consolidatedPageCalls,
+      boolean trackAllPages,
+      boolean trackCategorizedPages,
+      boolean trackNamedPages,
+      String token,
+      Logger logger,
+      Set<String> increments,
+      boolean setAllTraitsByDefault,
+      Set<String> peopleProperties,
+      Set<String> superProperties,
+      MixpanelOptions options) {
+    this(
+        mixpanel,
+        mixpanelPeople,
+        isPeopleEnabled,
+        token,
+        logger,
+        new MixpanelSettings(
+            consolidatedPageCalls,
+            trackAllPages,
+            trackCategorizedPages,
+            trackNamedPages,
+            increments,
+            setAllTraitsByDefault,
+            peopleProperties,
+            superProperties),
+        options);
+  }
+
+  MixpanelIntegration(
+      MixpanelAPI mixpanel,
+      MixpanelAPI.People mixpanelPeople,
+      boolean isPeopleEnabled,
+      String token,
+      Logger logger,
+      MixpanelSettings settings,
+      MixpanelOptions options) {
     this.mixpanel = mixpanel;
     this.mixpanelPeople = mixpanelPeople;
+    this.initialized = new CountDownLatch(mixpanel == null ? 1 : 0);
     this.isPeopleEnabled = isPeopleEnabled;
-    this.consolidatedPageCalls = consolidatedPageCalls;
-    this.trackAllPages = trackAllPages;
-    this.trackCategorizedPages = trackCategorizedPages;
-    this.trackNamedPages = trackNamedPages;
     this.token = token;
     this.logger = logger;
-    this.increments = increments;
-    this.setAllTraitsByDefault = setAllTraitsByDefault;
-    this.peopleProperties = peopleProperties;
-    this.superProperties = superProperties;
+    this.settings = settings;
+    this.screenNames = new ScreenNameCache(options.screenNameCacheSize);
+    // Deduplication drops redeliveries before they're built, so the cache would never be hit.
+    this.serializations =
+        new SerializationCache(options.deduplicateEvents ? 0 : options.serializationCacheSize);
+    this.sampler = new EventSampler(options.sampledEvents, options.rateLimits);
+    if (options.aggregateIncrements && isPeopleEnabled) {
+      this.incrementAggregator =
+          new IncrementAggregator(options.incrementSumProperties, options.incrementWindowMillis);
+    } else {
+      this.incrementAggregator = null;
+    }
+    this.appLinkPredicate = options.appLinkPredicate;
+    this.metrics = options.metricsListener;
+    this.defaultPropertyProjection = options.defaultPropertyProjection;
+    this.propertyProjections = options.propertyProjections;
+    if (options.cacheGroupState) {
+      this.groupStates = new GroupStateCache(storageFile(options, "groups"));
+    } else {
+      this.groupStates = null;
+    }
+    if (options.deduplicateEvents) {
+      this.messageIds =
+          new MessageIdFilter(
+              options.deduplicationCapacity,
+              options.deduplicationFalsePositiveRate,
+              options.deduplicationWindowMillis,
+              storageFile(options, "message-ids"));
+    } else {
+      this.messageIds = null;
+    }
+    if (options.cacheIdentity) {
+      this.identities = new IdentityCache(storageFile(options, "identity"), logger);
+    } else {
+      this.identities = null;
+    }
+    // Only called from dispatched callbacks, which run once Mixpanel exists.
+    this.spoolSink =
+        new EventSpool.Sink() {
+          @Override
+          public void track(String event, JSONObject properties) {
+            mixpanel.track(event, properties);
+          }
+        };
+    if (options.spoolEvents && options.storageDirectory != null) {
+      this.spool =
+          new EventSpool(
+              storageFile(options, "spool"),
+              options.spoolMaxBytes,
+              SPOOL_SEGMENT_BYTES,
+              options.spoolMaxAgeMillis,
+              logger);
+    } else {
+      this.spool = null;
+    }
+    this.verbose = logger.logLevel == Analytics.LogLevel.VERBOSE;
+    this.consent = new ConsentGate(options.consentCategories);
+    this.trace =
+        options.traceFile == null ? null : new PayloadTrace.Recorder(options.traceFile, logger);
+    if (options.adaptiveFlush) {
+      this.flushScheduler =
+          new FlushScheduler(
+              options.flushDebounceMillis,
+              options.maxFlushIntervalMillis,
+              System.nanoTime() / 1_000_000);
+    } else {
+      this.flushScheduler = null;
+    }
+    this.skipWhenOptedOut = options.skipWhenOptedOut;
+    if (skipWhenOptedOut && mixpanel != null) {
+      consent.setOptedOut(mixpanel.hasOptedOutTracking());
+    }
+    if (options.asyncDispatch || options.lazyInitialization) {
+      this.dispatcher =
+          new MixpanelDispatcher(
+              options.dispatchQueueCapacity, options.dispatchOverflowPolicy, logger);
+    } else {
+      this.dispatcher = null;
+    }
+    if (messageIds != null) {
+      // Read off the caller's thread, ahead of any dispatched persist().
+      dispatch(
+          new Runnable() {
+            @Override
+            public void run() {
+              messageIds.load();
+            }
+          },
+          false);
+    }
+    if (spool != null) {
+      // Replays are dispatched like any callback, so they can't interleave with identify or reset.
+      spool.start(
+          spoolSink,
+          new Executor() {
+            @Override
+            public void execute(Runnable forwardNext) {
+              dispatch(forwardNext, false);
+            }
+          },
+          options.spoolEventsPerSecond);
+    }
+  }
+
+  /** Returns {@code name} in the options' storage directory, or null if there is none. */
+  private static File storageFile(MixpanelOptions options, String name) {
+    File directory = options.storageDirectory;
+    return directory == null ? null : new File(directory, name);
+  }
+
+  /**
+   * Creates the Mixpanel instance on the dispatcher thread. Payloads that arrive in the meantime
+   * wait in the dispatcher's queue and run, in order, once it exists.
+   */
+  void initializeLazily(final Callable<MixpanelAPI> factory) {
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              mixpanel = factory.call();
+              if (isPeopleEnabled) {
+                mixpanelPeople = mixpanel.getPeople();
+              }
+              if (skipWhenOptedOut) {
+                consent.setOptedOut(mixpanel.hasOptedOutTracking());
+              }
+            } catch (Exception e) {
+              logger.error(e, "Could not initialize Mixpanel.");
+              if (spool != null) {
+                // Nothing left to forward to, and its steps would no longer run.
+                spool.shutdown();
+              }
+            } finally {
+              initialized.countDown();
+            }
+          }
+        },
+        false);
+  }
+
+  private boolean isInitialized() {
+    return initialized.getCount() == 0;
   }
 
   @Override
-  public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+  public void onActivityCreated(final Activity activity, Bundle savedInstanceState) {
     super.onActivityCreated(activity, savedInstanceState);
 
+    if (!appLinkPredicate.isAppLink(activity)) {
+      // Nothing for Mixpanel's app link handling to pick up, don't take its instance lock.
+      skippedAppLinkChecks.incrementAndGet();
+      return;
+    }
+
+    if (!isInitialized()) {
+      // Calling getInstance here would initialize Mixpanel on the main thread after all.
+      dispatch(
+          new Runnable() {
+            @Override
+            public void run() {
+              MixpanelAPI.getInstance(activity, token, false);
+            }
+          },
+          false);
+      return;
+    }
+
     // This is needed to trigger a call to #checkIntentForInboundAppLink.
     // From Mixpanel's source, this won't trigger a creation of another instance. It caches
     // instances by the application context and token, both of which remain the same.
     MixpanelAPI.getInstance(activity, token, false);
   }
 
+  /**
+   * Number of super property and people property writes skipped because none of the traits
+   * changed since they were last sent.
+   */
+  public long getSuppressedPropertyWrites() {
+    return superPropertyFingerprints.suppressedWrites()
+        + peoplePropertyFingerprints.suppressedWrites();
+  }
+
+  /** Number of screen calls whose "Viewed X Screen" event name was already cached. */
+  public long getScreenNameCacheHits() {
+    return screenNames.hitCount();
+  }
+
+  /** Number of screen calls that had to build their "Viewed X Screen" event name. */
+  public long getScreenNameCacheMisses() {
+    return screenNames.missCount();
+  }
+
+  /**
+   * Number of track and screen calls whose event was reused from an earlier delivery. Always zero
+   * with {@link MixpanelOptions.Builder#deduplicateEvents(boolean) deduplication}, which drops
+   * those deliveries instead.
+   */
+  public long getSerializationCacheHits() {
+    return serializations.hitCount();
+  }
+
+  /** Number of track and screen calls whose event had to be built. */
+  public long getSerializationCacheMisses() {
+    return serializations.missCount();
+  }
+
+  /**
+   * Number of created activities that weren't handed to Mixpanel's inbound app link handling
+   * because they weren't opened by an app link.
+   */
+  public long getSkippedAppLinkChecks() {
+    return skippedAppLinkChecks.get();
+  }
+
+  /** Number of tracked events written to the spool. */
+  public long getSpooledEvents() {
+    return spool == null ? 0 : spool.appendedCount();
+  }
+
+  /** Number of spooled events forwarded to Mixpanel. */
+  public long getSpoolForwardedEvents() {
+    return spool == null ? 0 : spool.forwardedCount();
+  }
+
+  /**
+   * Number of spooled events dropped unforwarded: evicted to respect the size cap, expired, or
+   * unreadable.
+   */
+  public long getSpoolDroppedEvents() {
+    return spool == null ? 0 : spool.evictedCount() + spool.expiredCount() + spool.corruptCount();
+  }
+
+  /** Current size of the spool on disk, in bytes. */
+  public long getSpoolSizeBytes() {
+    return spool == null ? 0 : spool.size();
+  }
+
+  /** Number of payloads dropped because the dispatcher queue was full. */
+  public long getDroppedPayloads() {
+    return dispatcher == null ? 0 : dispatcher.droppedCount();
+  }
+
+  /** Number of track calls dropped by event sampling. */
+  public long getSampledOutEvents() {
+    return sampler.sampledOutCount();
+  }
+
+  /** Number of track calls dropped by per-event rate limits. */
+  public long getThrottledEvents() {
+    return sampler.throttledCount();
+  }
+
+  /** Number of track and screen calls dropped because their message id was already seen. */
+  public long getDuplicateEvents() {
+    return messageIds == null ? 0 : messageIds.duplicateCount();
+  }
+
+  /**
+   * Estimated chance that a new track or screen call is mistaken for a duplicate and dropped,
+   * given how many message ids are currently remembered.
+   */
+  public double getDuplicateFalsePositiveRate() {
+    return messageIds == null ? 0 : messageIds.falsePositiveRate();
+  }
+
+  /** Number of payloads dropped because the user had opted out of tracking. */
+  public long getOptedOutPayloads() {
+    return optedOutPayloads.get();
+  }
+
+  /** Number of track calls withheld because their consent category wasn't granted. */
+  public long getWithheldEvents() {
+    return withheldEvents.get();
+  }
+
+  /** Number of {@link #flush()} calls. */
+  public long getFlushRequests() {
+    return flushRequests.get();
+  }
+
+  /**
+   * Number of times Mixpanel was flushed. Lower than {@link #getFlushRequests()} when adaptive
+   * flushing coalesced requests, higher when it flushed revenue events or stopping activities.
+   */
+  public long getPerformedFlushes() {
+    return performedFlushes.get();
+  }
+
+  /**
+   * Opts the user out of Mixpanel tracking. With {@link
+   * MixpanelOptions.Builder#skipWhenOptedOut(boolean)}, payloads received from now on are dropped
+   * straight away; payloads received before still reach Mixpanel first.
+   */
+  public void optOutTracking() {
+    consent.setOptedOut(true);
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (mixpanel != null) {
+              mixpanel.optOutTracking();
+              logger.verbose("mixpanel.optOutTracking()");
+            }
+          }
+        },
+        false);
+  }
+
+  /** Opts the user back in to Mixpanel tracking. */
+  public void optInTracking() {
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (mixpanel != null) {
+              mixpanel.optInTracking();
+              logger.verbose("mixpanel.optInTracking()");
+            }
+          }
+        },
+        false);
+    // Payloads received from now on are queued behind the opt in.
+    consent.setOptedOut(false);
+  }
+
+  /** Reads the opt-out flag from Mixpanel again, after it was changed on {@code MixpanelAPI}. */
+  public void refreshOptOut() {
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (mixpanel != null) {
+              consent.setOptedOut(mixpanel.hasOptedOutTracking());
+            }
+          }
+        },
+        false);
+  }
+
+  /**
+   * Grants or withdraws the user's consent for the events of {@code category}, as configured
+   * with {@link MixpanelOptions.Builder#consentCategory(String, java.util.Collection)}. Applies
+   * to track calls received from now on.
+   */
+  public void setConsent(String category, boolean granted) {
+    consent.setConsent(category, granted);
+  }
+
+  @Override
+  public void onActivityStopped(Activity activity) {
+    super.onActivityStopped(activity);
+    if (trace != null) {
+      trace.flush();
+    }
+    // The app may be going to the background, don't hold on to aggregated increments.
+    dispatchAggregatedIncrements();
+    dispatchPersistState();
+    if (flushScheduler != null) {
+      // Nor to events whose flush was deferred.
+      dispatch(
+          new Runnable() {
+            @Override
+            public void run() {
+              if (flushScheduler.hasPending()) {
+                flushMixpanel();
+              }
+            }
+          },
+          false);
+    }
+  }
+
+  /**
+   * Applies refreshed Segment settings for Mixpanel without recreating the integration or the
+   * Mixpanel instance: page tracking, {@code increments}, {@code setAllTraitsByDefault}, {@code
+   * peopleProperties} and {@code superProperties}. Payloads received before this call are still
+   * handled with the previous settings. The token, {@code people} and {@link MixpanelOptions}
+   * can't change this way.
+   */
+  public void updateSettings(ValueMap settings) {
+    final MixpanelSettings updated = MixpanelSettings.fromSettings(settings);
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            MixpanelIntegration.this.settings = updated;
+            // Cached events were named and built with the previous settings.
+            serializations.clear();
+          }
+        },
+        false);
+  }
+
+  MixpanelSettings settings() {
+    return settings;
+  }
+
+  /**
+   * Returns the Mixpanel instance. With lazy initialization this blocks until the instance has
+   * been created, and returns null if that failed.
+   */
   @Override
   public MixpanelAPI getUnderlyingInstance() {
+    try {
+      initialized.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
     return mixpanel;
   }
 
-  private void registerSuperProperties(Map<String, Object> in) {
-    if (isNullOrEmpty(in)) {
-      return;
+  /**
+   * Sends the changed entries of {@code superIn} and {@code peopleIn} to Mixpanel. When both
+   * changes come from the same traits map and contain the same entries, the traits are serialized
+   * once and the JSON is shared by both calls.
+   */
+  private void setProperties(Map<String, Object> superIn, Map<String, Object> peopleIn) {
+    JSONObject superProperties = null;
+    Map<String, Object> superChanged = null;
+    if (!isNullOrEmpty(superIn)) {
+      superChanged = superPropertyFingerprints.delta(superIn);
+      if (superChanged.isEmpty()) {
+        recordDrop(Drop.UNCHANGED_PROPERTIES);
+      } else {
+        superProperties = writeTraits(Call.IDENTIFY, superChanged);
+        mixpanel.registerSuperProperties(superProperties);
+        if (verbose) {
+          logger.verbose("mixpanel.registerSuperProperties(%s)", superProperties);
+        }
+      }
     }
-    JSONObject superProperties = new ValueMap(transform(in, MAPPER)).toJsonObject();
-    mixpanel.registerSuperProperties(superProperties);
-    logger.verbose("mixpanel.registerSuperProperties(%s)", superProperties);
-  }
 
-  private void setPeopleProperties(Map<String, Object> in) {
-    if (isNullOrEmpty(in)) {
+    if (isNullOrEmpty(peopleIn) || !isPeopleEnabled) {
       return;
     }
-    if (!isPeopleEnabled) {
+    Map<String, Object> peopleChanged = peoplePropertyFingerprints.delta(peopleIn);
+    if (peopleChanged.isEmpty()) {
+      recordDrop(Drop.UNCHANGED_PROPERTIES);
       return;
     }
-    JSONObject peopleProperties = new ValueMap(transform(in, MAPPER)).toJsonObject();
+    JSONObject peopleProperties;
+    // Both deltas are subsets of the same map, so equal sizes mean equal entries.
+    if (superProperties != null && superIn == peopleIn
+        && superChanged.size() == peopleChanged.size()) {
+      peopleProperties = superProperties;
+    } else {
+      peopleProperties = writeTraits(Call.IDENTIFY, peopleChanged);
+    }
     mixpanelPeople.set(peopleProperties);
-    logger.verbose("mixpanel.getPeople().set(%s)", peopleProperties);
+    if (verbose) {
+      logger.verbose("mixpanel.getPeople().set(%s)", peopleProperties);
+    }
+  }
+
+  private JSONObject writeTraits(Call call, Map<String, ?> traits) {
+    if (metrics == null) {
+      return JsonWriter.writeTraits(traits);
+    }
+    long startNanos = System.nanoTime();
+    JSONObject json = JsonWriter.writeTraits(traits);
+    recordSerialized(call, startNanos, json);
+    return json;
+  }
+
+  /**
+   * Returns {@code properties} as Mixpanel expects them. Without a projection they're only wrapped,
+   * since Mixpanel copies them itself, or drops them unread if tracking is opted out.
+   */
+  private JSONObject writeProperties(Call call, String event, Map<String, ?> properties) {
+    PropertyProjection projection = projection(event);
+    if (metrics == null) {
+      return projection == null
+          ? new LazyJsonObject(properties) : JsonWriter.writeProperties(properties, projection);
+    }
+    long startNanos = System.nanoTime();
+    JSONObject json = projection == null
+        ? new LazyJsonObject(properties) : JsonWriter.writeProperties(properties, projection);
+    recordSerialized(call, startNanos, json);
+    return json;
+  }
+
+  /** The projection for {@code event}'s properties, or null to send them all. */
+  private PropertyProjection projection(String event) {
+    PropertyProjection projection = propertyProjections.get(event);
+    return projection != null ? projection : defaultPropertyProjection;
+  }
+
+  private void recordSerialized(Call call, long startNanos, JSONObject json) {
+    long durationNanos = System.nanoTime() - startNanos;
+    metrics.onSerialized(call, durationNanos, JsonWriter.utf8Length(json.toString()));
+  }
+
+  private void recordCall(Call call) {
+    recordCall(call, null);
+  }
+
+  private void recordCall(Call call, BasePayload payload) {
+    if (metrics != null) {
+      metrics.onCall(call);
+    }
+    if (trace != null) {
+      trace.record(call, payload);
+    }
+  }
+
+  private void recordDrop(Drop reason) {
+    if (metrics != null) {
+      metrics.onDropped(reason);
+    }
+  }
+
+  /** Like {@link #filter(Map, Iterable)}, but also keeps entries matching patterns in the set. */
+  static <T> Map<String, T> filter(Map<String, T> in, NameSet filter) {
+    if (!filter.hasPatterns() && filter.size() < in.size()) {
+      return filter(in, (Iterable<String>) filter);
+    }
+    Map<String, T> out = new LinkedHashMap<>();
+    for (Map.Entry<String, T> entry : in.entrySet()) {
+      if (filter.contains(entry.getKey())) {
+        out.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return out;
   }
 
   static <T> Map<String, T> filter(Map<String, T> in, Iterable<String> filter) {
@@ -197,99 +797,495 @@ public class MixpanelIntegration extends Integration<MixpanelAPI> {
     return out;
   }
 
+  /**
+   * Runs {@code task} on the dispatcher thread if one is configured, otherwise inline. Droppable
+   * tasks may be discarded by the dispatcher's overflow policy when its queue is full.
+   */
+  private void dispatch(Runnable task, boolean droppable) {
+    if (isInitializationFailed()) {
+      return;
+    }
+    if (initialized.getCount() > 0) {
+      // Queued behind lazy initialization, which may yet fail.
+      task = skipIfInitializationFails(task);
+    }
+    if (dispatcher == null) {
+      synchronized (inlineLock) {
+        task.run();
+      }
+      return;
+    }
+    if (!dispatcher.enqueue(task, droppable)) {
+      recordDrop(Drop.QUEUE_FULL);
+      logger.verbose("Mixpanel dispatch queue full, dropped a payload.");
+    }
+  }
+
+  /** True once lazy initialization has failed, leaving nothing to send payloads to. */
+  private boolean isInitializationFailed() {
+    // The latch publishes mixpanel once it's released.
+    return initialized.getCount() == 0 && mixpanel == null;
+  }
+
+  private Runnable skipIfInitializationFails(final Runnable task) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        if (!isInitializationFailed()) {
+          task.run();
+        }
+      }
+    };
+  }
+
+  /**
+   * Forwards every spooled event to Mixpanel now. Called before anything that changes the
+   * identity or super properties older events must be tracked with.
+   */
+  private void drainSpool() {
+    if (spool != null) {
+      spool.drainAll(spoolSink, System.currentTimeMillis());
+    }
+  }
+
+  /** Blocks until every payload handed to the dispatcher so far has reached Mixpanel. */
+  private void awaitDispatcher() {
+    if (dispatcher != null) {
+      dispatcher.drain();
+    }
+  }
+
   @Override
-  public void identify(IdentifyPayload identify) {
+  public void identify(final IdentifyPayload identify) {
     super.identify(identify);
+    recordCall(Call.IDENTIFY, identify);
+    if (isOptedOut()) {
+      return;
+    }
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            performIdentify(identify);
+          }
+        },
+        false);
+  }
 
+  private void performIdentify(IdentifyPayload identify) {
+    drainSpool();
     String userId = identify.userId();
     if (userId != null) {
-      mixpanel.identify(userId);
-      logger.verbose("mixpanel.identify(%s)", userId);
+      if (incrementAggregator != null && !userId.equals(peoplePropertiesUserId)) {
+        // Sent under the current profile, the one the increments were aggregated for.
+        sendAggregatedIncrements();
+      }
+      if (identities == null || !identities.isIdentified(userId)) {
+        mixpanel.identify(userId);
+        if (identities != null) {
+          identities.identified(userId);
+        }
+        if (verbose) {
+          logger.verbose("mixpanel.identify(%s)", userId);
+        }
+      }
 
-      if (isPeopleEnabled) {
+      if (isPeopleEnabled && (identities == null || !identities.isPeopleIdentified(userId))) {
         mixpanelPeople.identify(userId);
-        logger.verbose("mixpanel.getPeople().identify(%s)", userId);
+        if (identities != null) {
+          identities.peopleIdentified(userId);
+        }
+        if (verbose) {
+          logger.verbose("mixpanel.getPeople().identify(%s)", userId);
+        }
+      }
+
+      if (!userId.equals(peoplePropertiesUserId)) {
+        // A different profile hasn't seen any of the people properties sent so far.
+        peoplePropertyFingerprints.clear();
+        peoplePropertiesUserId = userId;
+      }
+      if (groupStates != null) {
+        // setGroup also sets the membership on the profile, a new one has none of them yet.
+        groupStates.setUser(userId);
       }
     }
 
     Traits traits = identify.traits();
+    MixpanelSettings settings = this.settings;
 
-    if (setAllTraitsByDefault) {
-      registerSuperProperties(traits);
-      setPeopleProperties(traits);
+    if (settings.setAllTraitsByDefault) {
+      setProperties(traits, traits);
       return;
     }
 
-    Map<String, Object> superPropertyTraits = filter(traits, superProperties);
-    registerSuperProperties(superPropertyTraits);
-    Map<String, Object> peoplePropertyTraits = filter(traits, peopleProperties);
-    setPeopleProperties(peoplePropertyTraits);
+    Map<String, Object> superPropertyTraits = filter(traits, settings.superProperties);
+    Map<String, Object> peoplePropertyTraits = filter(traits, settings.peopleProperties);
+    setProperties(superPropertyTraits, peoplePropertyTraits);
   }
 
+  /**
+   * Sends aggregated increments, saves persisted state and flushes Mixpanel. With {@link
+   * MixpanelOptions.Builder#adaptiveFlush(boolean) adaptive flushing} Mixpanel is only flushed if
+   * the adaptive interval has elapsed; otherwise the flush is deferred, not forced.
+   */
   @Override
   public void flush() {
     super.flush();
+    recordCall(Call.FLUSH);
+    flushRequests.incrementAndGet();
+    if (trace != null) {
+      trace.flush();
+    }
+    dispatchAggregatedIncrements();
+    dispatchPersistState();
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            performFlush();
+          }
+        },
+        false);
+    awaitDispatcher();
+  }
+
+  private void performFlush() {
+    if (flushScheduler != null && !flushScheduler.request(System.nanoTime() / 1_000_000)) {
+      logger.verbose("Deferred mixpanel.flush()");
+      return;
+    }
+    flushMixpanel();
+  }
+
+  private void flushMixpanel() {
+    drainSpool();
     mixpanel.flush();
+    performedFlushes.incrementAndGet();
+    if (flushScheduler != null) {
+      flushScheduler.flushed(System.nanoTime() / 1_000_000);
+    }
     logger.verbose("mixpanel.flush()");
   }
 
+  /** Counts an event towards the adaptive flush interval, flushing if one is due. */
+  private void scheduleFlush(SerializationCache.Event event, Properties properties) {
+    if (flushScheduler == null) {
+      return;
+    }
+    flushScheduler.onEvent();
+    // The event only carries its revenue when people is enabled, to track a charge.
+    double revenue = isPeopleEnabled ? event.revenue : properties.revenue();
+    // Revenue is what's most worth not losing if the app is killed before the next flush.
+    if (revenue != 0 || flushScheduler.isDue(System.nanoTime() / 1_000_000)) {
+      flushMixpanel();
+    }
+  }
+
   @Override
   public void reset() {
     super.reset();
+    recordCall(Call.RESET);
+    // Aggregated increments belong to the user being reset.
+    dispatchAggregatedIncrements();
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            performReset();
+          }
+        },
+        false);
+    awaitDispatcher();
+  }
+
+  private void performReset() {
+    drainSpool();
     mixpanel.reset();
     logger.verbose("mixpanel.reset()");
+    if (skipWhenOptedOut) {
+      consent.setOptedOut(mixpanel.hasOptedOutTracking());
+    }
+    superPropertyFingerprints.clear();
+    peoplePropertyFingerprints.clear();
+    peoplePropertiesUserId = null;
+    if (groupStates != null) {
+      // Mixpanel's reset clears group memberships along with the other super properties.
+      groupStates.clear();
+    }
+    if (identities != null) {
+      identities.clear();
+    }
   }
 
   @Override
-  public void alias(AliasPayload alias) {
+  public void alias(final AliasPayload alias) {
     super.alias(alias);
+    recordCall(Call.ALIAS, alias);
+    if (isOptedOut()) {
+      return;
+    }
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            performAlias(alias);
+          }
+        },
+        false);
+  }
+
+  private void performAlias(AliasPayload alias) {
+    drainSpool();
     String previousId = alias.previousId();
+    String userId = alias.userId();
+    // Keyed by Segment's ids, so a repeated alias doesn't even need Mixpanel's distinct id.
+    boolean cached = identities != null && userId != null;
+    if (cached && identities.isAliased(userId, previousId)) {
+      return;
+    }
+    String segmentPreviousId = previousId;
     if (previousId.equals(alias.anonymousId())) {
       // Instead of using our own anonymousId, we use Mixpanel's own generated Id.
       previousId = mixpanel.getDistinctId();
     }
-    String userId = alias.userId();
     if (userId != null) {
       mixpanel.alias(userId, previousId);
-      logger.verbose("mixpanel.alias(%s, %s)", userId, previousId);
+      if (cached) {
+        identities.aliased(userId, segmentPreviousId);
+      }
+      if (verbose) {
+        logger.verbose("mixpanel.alias(%s, %s)", userId, previousId);
+      }
     }
   }
 
   @Override
-  public void screen(ScreenPayload screen) {
-    if (consolidatedPageCalls) {
-      Properties properties = new Properties();
-      properties.putAll(screen.properties());
-      properties.put("name", screen.name());
-      event("Loaded a Screen", properties);
+  public void screen(final ScreenPayload screen) {
+    recordCall(Call.SCREEN, screen);
+    if (isOptedOut()) {
+      return;
+    }
+    if (messageIds != null && isDuplicate(screen.messageId())) {
       return;
     }
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            performScreen(screen);
+          }
+        },
+        true);
+  }
+
+  private void performScreen(ScreenPayload screen) {
+    SerializationCache.Event event = serializations.get(screen.messageId());
+    if (event == null) {
+      event = screenEvent(screen);
+      if (event == null) {
+        return;
+      }
+      serializations.put(screen.messageId(), event);
+    }
+    send(event);
+    scheduleFlush(event, screen.properties());
+  }
 
-    if (trackAllPages) {
-      event(String.format(VIEWED_EVENT_FORMAT, screen.event()), screen.properties());
+  /** Builds the event {@code screen} is tracked as, or returns null if it isn't tracked. */
+  private SerializationCache.Event screenEvent(ScreenPayload screen) {
+    MixpanelSettings settings = this.settings;
+    if (settings.consolidatedPageCalls) {
+      // Inject the screen name while serializing instead of copying the properties first.
+      Properties properties = screen.properties();
+      long startNanos = metrics == null ? 0 : System.nanoTime();
+      JSONObject props = JsonWriter.writeProperties(properties, projection("Loaded a Screen"));
+      JsonWriter.put(props, "name", screen.name());
+      if (metrics != null) {
+        recordSerialized(Call.SCREEN, startNanos, props);
+      }
+      return new SerializationCache.Event("Loaded a Screen", props, revenue(properties));
+    }
+
+    String name;
+    if (settings.trackAllPages) {
+      name = screenNames.viewedEvent(screen.event());
     } else //noinspection deprecation
-    if (trackCategorizedPages && !isNullOrEmpty(screen.category())) {
+    if (settings.trackCategorizedPages && !isNullOrEmpty(screen.category())) {
       //noinspection deprecation
-      event(String.format(VIEWED_EVENT_FORMAT, screen.category()), screen.properties());
-    } else if (trackNamedPages && !isNullOrEmpty(screen.name())) {
-      event(String.format(VIEWED_EVENT_FORMAT, screen.name()), screen.properties());
+      name = screenNames.viewedEvent(screen.category());
+    } else if (settings.trackNamedPages && !isNullOrEmpty(screen.name())) {
+      name = screenNames.viewedEvent(screen.name());
+    } else {
+      return null;
     }
+    return event(Call.SCREEN, name, screen.properties());
   }
 
   @Override
-  public void track(TrackPayload track) {
+  public void track(final TrackPayload track) {
+    recordCall(Call.TRACK, track);
+    // Decided before dispatching, so dropped events cost neither serialization nor queue space.
+    // Duplicates are dropped before sampling so they don't use up rate limits.
+    if (isOptedOut() || isWithheld(track.event())) {
+      return;
+    }
+    if (messageIds != null && isDuplicate(track.messageId())) {
+      return;
+    }
+    if (!sampler.isEmpty() && !shouldSend(track)) {
+      return;
+    }
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            performTrack(track);
+          }
+        },
+        true);
+  }
+
+  /** Whether the user opted out, so a payload can be dropped before any work is done on it. */
+  private boolean isOptedOut() {
+    if (!skipWhenOptedOut || !consent.isOptedOut()) {
+      return false;
+    }
+    optedOutPayloads.incrementAndGet();
+    recordDrop(Drop.OPTED_OUT);
+    return true;
+  }
+
+  private boolean isWithheld(String event) {
+    if (consent.allows(event)) {
+      return false;
+    }
+    withheldEvents.incrementAndGet();
+    recordDrop(Drop.NO_CONSENT);
+    if (verbose) {
+      logger.verbose("Withheld %s, no consent.", event);
+    }
+    return true;
+  }
+
+  private boolean isDuplicate(String messageId) {
+    if (messageId == null || !messageIds.isDuplicate(messageId, System.currentTimeMillis())) {
+      return false;
+    }
+    recordDrop(Drop.DUPLICATE);
+    if (verbose) {
+      logger.verbose("Dropped duplicate message %s.", messageId);
+    }
+    return true;
+  }
+
+  private boolean shouldSend(TrackPayload track) {
+    String distinctId = track.userId();
+    if (distinctId == null) {
+      distinctId = track.anonymousId();
+    }
+    String event = track.event();
+    switch (sampler.check(event, distinctId, System.nanoTime() / 1_000_000)) {
+      case EventSampler.SAMPLED_OUT:
+        recordDrop(Drop.SAMPLED_OUT);
+        logger.verbose("Sampled out %s.", event);
+        return false;
+      case EventSampler.THROTTLED:
+        recordDrop(Drop.THROTTLED);
+        logger.verbose("Rate limited %s.", event);
+        return false;
+      default:
+        return true;
+    }
+  }
+
+  private void performTrack(TrackPayload track) {
+    MixpanelSettings settings = this.settings;
     String event = track.event();
 
-    event(event, track.properties());
+    SerializationCache.Event serialized = serializations.get(track.messageId());
+    if (serialized == null) {
+      serialized = event(Call.TRACK, event, track.properties());
+      serializations.put(track.messageId(), serialized);
+    }
+    send(serialized);
+
+    String lastEventKey = isPeopleEnabled ? settings.lastEventKey(event) : null;
+    if (lastEventKey != null) {
+      if (incrementAggregator != null) {
+        long nowMillis = System.nanoTime() / 1_000_000;
+        incrementAggregator.add(event, track.properties(), nowMillis, System.currentTimeMillis());
+        if (incrementAggregator.isWindowElapsed(nowMillis)) {
+          sendAggregatedIncrements();
+        }
+      } else {
+        mixpanelPeople.increment(event, 1);
+        mixpanelPeople.set(lastEventKey, new Date());
+      }
+    }
+    // Last, so a flush it triggers also sends the increments.
+    scheduleFlush(serialized, track.properties());
+  }
+
+  /** Sends everything the aggregator accumulated as one increment and one "Last" update. */
+  private void sendAggregatedIncrements() {
+    Map<String, IncrementAggregator.Aggregate> aggregates = incrementAggregator.drain();
+    if (aggregates.isEmpty()) {
+      return;
+    }
+    Map<String, Double> increments = new LinkedHashMap<>();
+    JSONObject lastEvents = new JSONObject();
+    for (Map.Entry<String, IncrementAggregator.Aggregate> entry : aggregates.entrySet()) {
+      String event = entry.getKey();
+      IncrementAggregator.Aggregate aggregate = entry.getValue();
+      increments.put(event, (double) aggregate.count);
+      if (aggregate.sumProperty != null) {
+        increments.put(event + " " + aggregate.sumProperty, aggregate.sum);
+      }
+      // Not from the settings' keys: increments may have changed since the events were added.
+      JsonWriter.put(lastEvents, "Last " + event, new Date(aggregate.lastTimestampMillis));
+    }
+    mixpanelPeople.increment(increments);
+    mixpanelPeople.set(lastEvents);
+    if (verbose) {
+      logger.verbose("mixpanel.getPeople().increment(%s)", increments);
+      logger.verbose("mixpanel.getPeople().set(%s)", lastEvents);
+    }
+  }
 
-    if (increments.contains(event) && isPeopleEnabled) {
-      mixpanelPeople.increment(event, 1);
-      mixpanelPeople.set("Last " + event, new Date());
+  /** Queues sending the aggregated increments behind any payloads already dispatched. */
+  private void dispatchAggregatedIncrements() {
+    if (incrementAggregator == null) {
+      return;
     }
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            sendAggregatedIncrements();
+          }
+        },
+        false);
   }
 
   @Override
-  public void group(GroupPayload group) {
+  public void group(final GroupPayload group) {
+    recordCall(Call.GROUP, group);
+    if (isOptedOut()) {
+      return;
+    }
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            performGroup(group);
+          }
+        },
+        false);
+  }
+
+  private void performGroup(GroupPayload group) {
+    drainSpool();
     Traits traits = group.traits();
     String groupId = group.groupId();
     String groupName = traits.name();
@@ -298,27 +1294,106 @@ public class MixpanelIntegration extends Integration<MixpanelAPI> {
     if (isNullOrEmpty(groupName)) {
       groupName = "[Segment] Group";
     }
+    boolean cached = groupStates != null && groupId != null;
     // set group traits
-    if (!isNullOrEmpty(traits)) {
-      mixpanel.getGroup(groupName,groupId).setOnce(traits.toJsonObject());
+    Map<String, Object> unsentTraits = traits;
+    if (cached && !isNullOrEmpty(traits)) {
+      unsentTraits = groupStates.unsentTraits(groupName, groupId, traits);
+    }
+    if (!isNullOrEmpty(unsentTraits)) {
+      long startNanos = metrics == null ? 0 : System.nanoTime();
+      JSONObject json = JsonWriter.writeProperties(unsentTraits);
+      if (metrics != null) {
+        recordSerialized(Call.GROUP, startNanos, json);
+      }
+      mixpanel.getGroup(groupName,groupId).setOnce(json);
     }
     // set group
+    if (cached && groupStates.isMember(groupName, groupId)) {
+      return;
+    }
     mixpanel.setGroup(groupName,groupId);
-    logger.verbose("mixpanel.setGroup(%s, %s)", groupName, groupId);
+    if (cached) {
+      groupStates.setMember(groupName, groupId);
+    }
+    if (verbose) {
+      logger.verbose("mixpanel.setGroup(%s, %s)", groupName, groupId);
+    }
   }
 
-  void event(String name, Properties properties) {
-    JSONObject props = properties.toJsonObject();
-    mixpanel.track(name, props);
-    logger.verbose("mixpanel.track(%s, %s)", name, props);
-    if (!isPeopleEnabled) {
+  /**
+   * Queues writing the group state cache and recent message ids to disk behind any calls already
+   * dispatched.
+   */
+  private void dispatchPersistState() {
+    if (groupStates == null && messageIds == null) {
       return;
     }
-    double revenue = properties.revenue();
+    dispatch(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (groupStates != null) {
+              try {
+                groupStates.persist();
+              } catch (IOException e) {
+                logger.error(e, "Could not save Mixpanel group state.");
+              }
+            }
+            if (messageIds != null) {
+              try {
+                messageIds.persist();
+              } catch (IOException e) {
+                logger.error(e, "Could not save recent message ids.");
+              }
+            }
+          }
+        },
+        false);
+  }
+
+  void event(String name, Properties properties) {
+    send(event(Call.TRACK, name, properties));
+  }
+
+  private SerializationCache.Event event(Call call, String name, Properties properties) {
+    return new SerializationCache.Event(
+        name, writeProperties(call, name, properties), revenue(properties));
+  }
+
+  /** The revenue to track a charge for, only read when people is enabled. */
+  private double revenue(Properties properties) {
+    return isPeopleEnabled ? properties.revenue() : 0;
+  }
+
+  /** Appends an event to the spool, returning false if it has to be tracked directly instead. */
+  private boolean spool(String name, JSONObject props) {
+    try {
+      spool.append(name, props.toString(), System.currentTimeMillis());
+      return true;
+    } catch (IOException e) {
+      logger.error(e, "Could not spool %s, sending it directly.", name);
+      return false;
+    }
+  }
+
+  /** Tracks {@code event}, and a charge for its revenue if it has any. */
+  private void send(SerializationCache.Event event) {
+    String name = event.name;
+    JSONObject props = event.properties;
+    if (spool == null || !spool(name, props)) {
+      mixpanel.track(name, props);
+      if (verbose) {
+        logger.verbose("mixpanel.track(%s, %s)", name, props);
+      }
+    }
+    double revenue = event.revenue;
     if (revenue == 0) {
       return;
     }
     mixpanelPeople.trackCharge(revenue, props);
-    logger.verbose("mixpanelPeople.trackCharge(%s, %s)", revenue, props);
+    if (verbose) {
+      logger.verbose("mixpanelPeople.trackCharge(%s, %s)", revenue, props);
+    }
   }
 }
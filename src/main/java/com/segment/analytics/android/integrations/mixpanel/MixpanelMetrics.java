@@ -0,0 +1,72 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe {@link MixpanelMetricsListener} that keeps running totals: calls and payload bytes
+ * per {@link Call}, drops per {@link Drop}, and a histogram of serialization times per {@link
+ * Call} in power-of-two microsecond buckets.
+ */
+public final class MixpanelMetrics implements MixpanelMetricsListener {
+  /** Number of serialization time buckets; the last one is unbounded. */
+  public static final int BUCKETS = 16;
+
+  private static final int CALLS = Call.values().length;
+
+  private final AtomicLongArray calls = new AtomicLongArray(CALLS);
+  private final AtomicLongArray payloadBytes = new AtomicLongArray(CALLS);
+  private final AtomicLongArray serializationTimes = new AtomicLongArray(CALLS * BUCKETS);
+  private final AtomicLongArray drops = new AtomicLongArray(Drop.values().length);
+
+  @Override
+  public void onCall(Call call) {
+    calls.incrementAndGet(call.ordinal());
+  }
+
+  @Override
+  public void onSerialized(Call call, long durationNanos, int payloadBytes) {
+    this.payloadBytes.addAndGet(call.ordinal(), payloadBytes);
+    serializationTimes.incrementAndGet(call.ordinal() * BUCKETS + bucket(durationNanos / 1000));
+  }
+
+  @Override
+  public void onDropped(Drop reason) {
+    drops.incrementAndGet(reason.ordinal());
+  }
+
+  /** Bucket {@code i} holds durations below 2^i microseconds and not in a lower bucket. */
+  static int bucket(long micros) {
+    int bucket = 64 - Long.numberOfLeadingZeros(micros);
+    return Math.min(bucket, BUCKETS - 1);
+  }
+
+  /**
+   * Exclusive upper bound, in microseconds, of the durations counted in {@code bucket}, or {@link
+   * Long#MAX_VALUE} for the last one.
+   */
+  public static long bucketUpperBoundMicros(int bucket) {
+    return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+  }
+
+  public long callCount(Call call) {
+    return calls.get(call.ordinal());
+  }
+
+  /** Total UTF-8 size of the JSON produced for {@code call}. */
+  public long payloadBytes(Call call) {
+    return payloadBytes.get(call.ordinal());
+  }
+
+  /** Serialization counts for {@code call}, indexed by bucket. */
+  public long[] serializationHistogram(Call call) {
+    long[] histogram = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      histogram[i] = serializationTimes.get(call.ordinal() * BUCKETS + i);
+    }
+    return histogram;
+  }
+
+  public long droppedCount(Drop reason) {
+    return drops.get(reason.ordinal());
+  }
+}
@@ -0,0 +1,53 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+/**
+ * Receives measurements from {@link MixpanelIntegration}'s hot paths. Install one with {@link
+ * MixpanelOptions.Builder#metricsListener(MixpanelMetricsListener)}; {@link MixpanelMetrics} is a
+ * ready-made implementation that aggregates them.
+ *
+ * <p>Callbacks arrive on Segment's thread and, with asynchronous dispatch, on the dispatcher
+ * thread, so implementations must be thread-safe. They run inline with the payload being
+ * processed and should return quickly.
+ */
+public interface MixpanelMetricsListener {
+  /** The integration callback a measurement belongs to. */
+  enum Call {
+    IDENTIFY,
+    GROUP,
+    TRACK,
+    SCREEN,
+    ALIAS,
+    FLUSH,
+    RESET
+  }
+
+  /** Why a payload, or part of one, never reached Mixpanel. */
+  enum Drop {
+    /** A track call was excluded by event sampling. */
+    SAMPLED_OUT,
+    /** A track call exceeded its event's rate limit. */
+    THROTTLED,
+    /** The dispatcher queue was full. */
+    QUEUE_FULL,
+    /** A super or people property write was skipped because no property changed. */
+    UNCHANGED_PROPERTIES,
+    /** A track or screen call had the message id of one already received. */
+    DUPLICATE,
+    /** The user has opted out of Mixpanel tracking. */
+    OPTED_OUT,
+    /** A track call's event is in a consent category the user hasn't granted. */
+    NO_CONSENT
+  }
+
+  /** {@code call} was received from Segment. */
+  void onCall(Call call);
+
+  /**
+   * A payload of {@code call} was converted to JSON for Mixpanel, taking {@code durationNanos}
+   * and producing {@code payloadBytes} bytes of UTF-8.
+   */
+  void onSerialized(Call call, long durationNanos, int payloadBytes);
+
+  /** A payload or write was dropped. */
+  void onDropped(Drop reason);
+}
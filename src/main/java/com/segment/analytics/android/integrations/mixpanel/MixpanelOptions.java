@@ -0,0 +1,728 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.app.Activity;
+import android.content.Intent;
+import com.segment.analytics.ValueMap;
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Opt-in tuning options for {@link MixpanelIntegration}. Every option defaults to the behaviour of
+ * the integration before the option existed, so {@link #DEFAULT} is a drop-in replacement for
+ * "no options".
+ */
+public final class MixpanelOptions {
+  public static final MixpanelOptions DEFAULT = new Builder().build();
+
+  /** What the asynchronous dispatcher does with a droppable payload when its queue is full. */
+  public enum OverflowPolicy {
+    /** Evict the oldest queued track or screen payload to make room. */
+    DROP_OLDEST,
+    /** Discard the incoming payload. */
+    DROP_NEWEST,
+    /** Wait on the calling thread until the worker makes room. */
+    BLOCK;
+
+    static OverflowPolicy fromString(String value, OverflowPolicy defaultValue) {
+      if ("dropOldest".equals(value)) {
+        return DROP_OLDEST;
+      }
+      if ("dropNewest".equals(value)) {
+        return DROP_NEWEST;
+      }
+      if ("block".equals(value)) {
+        return BLOCK;
+      }
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Decides whether a newly created activity should be handed to Mixpanel's inbound app link
+   * handling, which {@code MixpanelAPI.getInstance} runs under a static lock on the main thread.
+   */
+  public interface AppLinkPredicate {
+    /**
+     * Only activities whose intent carries App Links data ("al_applink_data"), the only extra
+     * Mixpanel's handling reads. Other activities would be a no-op lookup.
+     */
+    AppLinkPredicate APP_LINK_EXTRAS =
+        new AppLinkPredicate() {
+          @Override
+          public boolean isAppLink(Activity activity) {
+            Intent intent = activity.getIntent();
+            return intent != null && intent.hasExtra("al_applink_data");
+          }
+        };
+
+    /** Every activity. */
+    AppLinkPredicate ALWAYS =
+        new AppLinkPredicate() {
+          @Override
+          public boolean isAppLink(Activity activity) {
+            return true;
+          }
+        };
+
+    boolean isAppLink(Activity activity);
+  }
+
+  final boolean asyncDispatch;
+  final int dispatchQueueCapacity;
+  final OverflowPolicy dispatchOverflowPolicy;
+  final int screenNameCacheSize;
+  final int serializationCacheSize;
+  final Map<String, Double> sampledEvents;
+  final Map<String, Integer> rateLimits;
+  final boolean aggregateIncrements;
+  final long incrementWindowMillis;
+  final Map<String, String> incrementSumProperties;
+  final boolean lazyInitialization;
+  final AppLinkPredicate appLinkPredicate;
+  final MixpanelMetricsListener metricsListener;
+  final PropertyProjection defaultPropertyProjection;
+  final Map<String, PropertyProjection> propertyProjections;
+  final File storageDirectory;
+  final boolean cacheGroupState;
+  final boolean cacheIdentity;
+  final boolean spoolEvents;
+  final long spoolMaxBytes;
+  final long spoolMaxAgeMillis;
+  final int spoolEventsPerSecond;
+  final boolean deduplicateEvents;
+  final long deduplicationWindowMillis;
+  final int deduplicationCapacity;
+  final double deduplicationFalsePositiveRate;
+  final boolean skipWhenOptedOut;
+  final Map<String, Set<String>> consentCategories;
+  final File traceFile;
+  final boolean adaptiveFlush;
+  final long flushDebounceMillis;
+  final long maxFlushIntervalMillis;
+
+  MixpanelOptions(Builder builder) {
+    this.asyncDispatch = builder.asyncDispatch;
+    this.dispatchQueueCapacity = builder.dispatchQueueCapacity;
+    this.dispatchOverflowPolicy = builder.dispatchOverflowPolicy;
+    this.screenNameCacheSize = builder.screenNameCacheSize;
+    this.serializationCacheSize = builder.serializationCacheSize;
+    this.sampledEvents = immutableCopy(builder.sampledEvents);
+    this.rateLimits = immutableCopy(builder.rateLimits);
+    this.aggregateIncrements = builder.aggregateIncrements;
+    this.incrementWindowMillis = builder.incrementWindowMillis;
+    this.incrementSumProperties = immutableCopy(builder.incrementSumProperties);
+    this.lazyInitialization = builder.lazyInitialization;
+    this.appLinkPredicate = builder.appLinkPredicate;
+    this.metricsListener = builder.metricsListener;
+    this.defaultPropertyProjection = builder.defaultPropertyProjection;
+    this.propertyProjections = immutableCopy(builder.propertyProjections);
+    this.storageDirectory = builder.storageDirectory;
+    this.cacheGroupState = builder.cacheGroupState;
+    this.cacheIdentity = builder.cacheIdentity;
+    this.spoolEvents = builder.spoolEvents;
+    this.spoolMaxBytes = builder.spoolMaxBytes;
+    this.spoolMaxAgeMillis = builder.spoolMaxAgeMillis;
+    this.spoolEventsPerSecond = builder.spoolEventsPerSecond;
+    this.deduplicateEvents = builder.deduplicateEvents;
+    this.deduplicationWindowMillis = builder.deduplicationWindowMillis;
+    this.deduplicationCapacity = builder.deduplicationCapacity;
+    this.deduplicationFalsePositiveRate = builder.deduplicationFalsePositiveRate;
+    this.skipWhenOptedOut = builder.skipWhenOptedOut;
+    this.consentCategories = immutableCopy(builder.consentCategories);
+    this.traceFile = builder.traceFile;
+    this.adaptiveFlush = builder.adaptiveFlush;
+    this.flushDebounceMillis = builder.flushDebounceMillis;
+    this.maxFlushIntervalMillis = builder.maxFlushIntervalMillis;
+  }
+
+  private static <T> Map<String, T> immutableCopy(Map<String, T> map) {
+    if (map.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    return Collections.unmodifiableMap(new LinkedHashMap<>(map));
+  }
+
+  /** Reads the options from the integration settings delivered by Segment. */
+  static MixpanelOptions fromSettings(ValueMap settings) {
+    Builder builder = new Builder();
+    builder.asyncDispatch(settings.getBoolean("asyncDispatch", builder.asyncDispatch));
+    int dispatchQueueCapacity = settings.getInt("dispatchQueueCapacity", 0);
+    if (dispatchQueueCapacity > 0) {
+      builder.dispatchQueueCapacity(dispatchQueueCapacity);
+    }
+    builder.dispatchOverflowPolicy(
+        OverflowPolicy.fromString(
+            settings.getString("dispatchOverflowPolicy"), builder.dispatchOverflowPolicy));
+    int screenNameCacheSize = settings.getInt("screenNameCacheSize", -1);
+    if (screenNameCacheSize >= 0) {
+      builder.screenNameCacheSize(screenNameCacheSize);
+    }
+    int serializationCacheSize = settings.getInt("serializationCacheSize", -1);
+    if (serializationCacheSize >= 0) {
+      builder.serializationCacheSize(serializationCacheSize);
+    }
+    ValueMap sampledEvents = settings.getValueMap("sampledEvents");
+    if (sampledEvents != null) {
+      for (String event : sampledEvents.keySet()) {
+        double rate = sampledEvents.getDouble(event, -1);
+        if (rate >= 0 && rate <= 1) {
+          builder.sampleEvent(event, rate);
+        }
+      }
+    }
+    ValueMap rateLimits = settings.getValueMap("rateLimits");
+    if (rateLimits != null) {
+      for (String event : rateLimits.keySet()) {
+        int perMinute = rateLimits.getInt(event, -1);
+        if (perMinute >= 0) {
+          builder.rateLimitEvent(event, perMinute);
+        }
+      }
+    }
+    builder.aggregateIncrements(
+        settings.getBoolean("aggregateIncrements", builder.aggregateIncrements));
+    long incrementWindowMillis = settings.getLong("incrementWindowMillis", 0);
+    if (incrementWindowMillis > 0) {
+      builder.incrementWindowMillis(incrementWindowMillis);
+    }
+    ValueMap incrementSumProperties = settings.getValueMap("incrementSumProperties");
+    if (incrementSumProperties != null) {
+      for (String event : incrementSumProperties.keySet()) {
+        String property = incrementSumProperties.getString(event);
+        if (property != null) {
+          builder.sumIncrementProperty(event, property);
+        }
+      }
+    }
+    builder.lazyInitialization(
+        settings.getBoolean("lazyInitialization", builder.lazyInitialization));
+    ValueMap propertyProjections = settings.getValueMap("propertyProjections");
+    if (propertyProjections != null) {
+      for (String event : propertyProjections.keySet()) {
+        ValueMap projection = propertyProjections.getValueMap(event);
+        if (projection == null) {
+          continue;
+        }
+        if ("*".equals(event)) {
+          builder.projectProperties(PropertyProjection.fromSettings(projection));
+        } else {
+          builder.projectProperties(event, PropertyProjection.fromSettings(projection));
+        }
+      }
+    }
+    builder.cacheGroupState(settings.getBoolean("cacheGroupState", builder.cacheGroupState));
+    builder.cacheIdentity(settings.getBoolean("cacheIdentity", builder.cacheIdentity));
+    builder.spoolEvents(settings.getBoolean("spoolEvents", builder.spoolEvents));
+    long spoolMaxBytes = settings.getLong("spoolMaxBytes", 0);
+    if (spoolMaxBytes > 0) {
+      builder.spoolMaxBytes(spoolMaxBytes);
+    }
+    long spoolMaxAgeMillis = settings.getLong("spoolMaxAgeMillis", 0);
+    if (spoolMaxAgeMillis > 0) {
+      builder.spoolMaxAgeMillis(spoolMaxAgeMillis);
+    }
+    int spoolEventsPerSecond = settings.getInt("spoolEventsPerSecond", 0);
+    if (spoolEventsPerSecond > 0) {
+      builder.spoolEventsPerSecond(spoolEventsPerSecond);
+    }
+    builder.deduplicateEvents(settings.getBoolean("deduplicateEvents", builder.deduplicateEvents));
+    long deduplicationWindowMillis = settings.getLong("deduplicationWindowMillis", 0);
+    int deduplicationCapacity = settings.getInt("deduplicationCapacity", 0);
+    double deduplicationFalsePositiveRate = settings.getDouble("deduplicationFalsePositiveRate", 0);
+    if (deduplicationWindowMillis > 0) {
+      builder.deduplicationWindowMillis(deduplicationWindowMillis);
+    }
+    if (deduplicationCapacity > 0 || deduplicationFalsePositiveRate > 0) {
+      builder.deduplicationCapacity(
+          deduplicationCapacity > 0 ? deduplicationCapacity : builder.deduplicationCapacity,
+          deduplicationFalsePositiveRate > 0
+              ? deduplicationFalsePositiveRate
+              : builder.deduplicationFalsePositiveRate);
+    }
+    builder.skipWhenOptedOut(settings.getBoolean("skipWhenOptedOut", builder.skipWhenOptedOut));
+    ValueMap consentCategories = settings.getValueMap("consentCategories");
+    if (consentCategories != null) {
+      for (String category : consentCategories.keySet()) {
+        builder.consentCategory(
+            category, MixpanelIntegration.getStringSet(consentCategories, category));
+      }
+    }
+    builder.adaptiveFlush(settings.getBoolean("adaptiveFlush", builder.adaptiveFlush));
+    long flushDebounceMillis = settings.getLong("flushDebounceMillis", 0);
+    if (flushDebounceMillis > 0) {
+      builder.flushDebounceMillis(flushDebounceMillis);
+    }
+    long maxFlushIntervalMillis = settings.getLong("maxFlushIntervalMillis", 0);
+    if (maxFlushIntervalMillis > 0) {
+      builder.maxFlushIntervalMillis(maxFlushIntervalMillis);
+    }
+    return builder.build();
+  }
+
+  /** Whether any enabled option keeps state in {@link #storageDirectory}. */
+  boolean usesStorage() {
+    return cacheGroupState || cacheIdentity || spoolEvents || deduplicateEvents;
+  }
+
+  public Builder newBuilder() {
+    return new Builder(this);
+  }
+
+  public static final class Builder {
+    boolean asyncDispatch;
+    int dispatchQueueCapacity;
+    OverflowPolicy dispatchOverflowPolicy;
+    int screenNameCacheSize;
+    int serializationCacheSize;
+    final Map<String, Double> sampledEvents;
+    final Map<String, Integer> rateLimits;
+    boolean aggregateIncrements;
+    long incrementWindowMillis;
+    final Map<String, String> incrementSumProperties;
+    boolean lazyInitialization;
+    AppLinkPredicate appLinkPredicate;
+    MixpanelMetricsListener metricsListener;
+    PropertyProjection defaultPropertyProjection;
+    final Map<String, PropertyProjection> propertyProjections;
+    File storageDirectory;
+    boolean cacheGroupState;
+    boolean cacheIdentity;
+    boolean spoolEvents;
+    long spoolMaxBytes;
+    long spoolMaxAgeMillis;
+    int spoolEventsPerSecond;
+    boolean deduplicateEvents;
+    long deduplicationWindowMillis;
+    int deduplicationCapacity;
+    double deduplicationFalsePositiveRate;
+    boolean skipWhenOptedOut;
+    final Map<String, Set<String>> consentCategories;
+    File traceFile;
+    boolean adaptiveFlush;
+    long flushDebounceMillis;
+    long maxFlushIntervalMillis;
+
+    public Builder() {
+      asyncDispatch = false;
+      dispatchQueueCapacity = 1000;
+      dispatchOverflowPolicy = OverflowPolicy.BLOCK;
+      screenNameCacheSize = 64;
+      serializationCacheSize = 0;
+      sampledEvents = new LinkedHashMap<>();
+      rateLimits = new LinkedHashMap<>();
+      aggregateIncrements = false;
+      incrementWindowMillis = 60_000;
+      incrementSumProperties = new LinkedHashMap<>();
+      lazyInitialization = false;
+      appLinkPredicate = AppLinkPredicate.APP_LINK_EXTRAS;
+      metricsListener = null;
+      defaultPropertyProjection = null;
+      propertyProjections = new LinkedHashMap<>();
+      storageDirectory = null;
+      cacheGroupState = false;
+      cacheIdentity = false;
+      spoolEvents = false;
+      spoolMaxBytes = 5 * 1024 * 1024;
+      spoolMaxAgeMillis = 7 * 24 * 60 * 60 * 1000L;
+      spoolEventsPerSecond = 20;
+      deduplicateEvents = false;
+      deduplicationWindowMillis = 24 * 60 * 60 * 1000L;
+      deduplicationCapacity = 10_000;
+      deduplicationFalsePositiveRate = 0.001;
+      skipWhenOptedOut = false;
+      consentCategories = new LinkedHashMap<>();
+      traceFile = null;
+      adaptiveFlush = false;
+      flushDebounceMillis = 5_000;
+      maxFlushIntervalMillis = 60_000;
+    }
+
+    Builder(MixpanelOptions options) {
+      asyncDispatch = options.asyncDispatch;
+      dispatchQueueCapacity = options.dispatchQueueCapacity;
+      dispatchOverflowPolicy = options.dispatchOverflowPolicy;
+      screenNameCacheSize = options.screenNameCacheSize;
+      serializationCacheSize = options.serializationCacheSize;
+      sampledEvents = new LinkedHashMap<>(options.sampledEvents);
+      rateLimits = new LinkedHashMap<>(options.rateLimits);
+      aggregateIncrements = options.aggregateIncrements;
+      incrementWindowMillis = options.incrementWindowMillis;
+      incrementSumProperties = new LinkedHashMap<>(options.incrementSumProperties);
+      lazyInitialization = options.lazyInitialization;
+      appLinkPredicate = options.appLinkPredicate;
+      metricsListener = options.metricsListener;
+      defaultPropertyProjection = options.defaultPropertyProjection;
+      propertyProjections = new LinkedHashMap<>(options.propertyProjections);
+      storageDirectory = options.storageDirectory;
+      cacheGroupState = options.cacheGroupState;
+      cacheIdentity = options.cacheIdentity;
+      spoolEvents = options.spoolEvents;
+      spoolMaxBytes = options.spoolMaxBytes;
+      spoolMaxAgeMillis = options.spoolMaxAgeMillis;
+      spoolEventsPerSecond = options.spoolEventsPerSecond;
+      deduplicateEvents = options.deduplicateEvents;
+      deduplicationWindowMillis = options.deduplicationWindowMillis;
+      deduplicationCapacity = options.deduplicationCapacity;
+      deduplicationFalsePositiveRate = options.deduplicationFalsePositiveRate;
+      skipWhenOptedOut = options.skipWhenOptedOut;
+      consentCategories = new LinkedHashMap<>(options.consentCategories);
+      traceFile = options.traceFile;
+      adaptiveFlush = options.adaptiveFlush;
+      flushDebounceMillis = options.flushDebounceMillis;
+      maxFlushIntervalMillis = options.maxFlushIntervalMillis;
+    }
+
+    /**
+     * Run Mixpanel calls on a dedicated worker thread instead of the thread Segment delivers
+     * payloads on. {@link MixpanelIntegration#flush()} and {@link MixpanelIntegration#reset()}
+     * wait for queued payloads before running. The thread stops after a minute without payloads
+     * and is started again by the next one.
+     */
+    public Builder asyncDispatch(boolean asyncDispatch) {
+      this.asyncDispatch = asyncDispatch;
+      return this;
+    }
+
+    /** Maximum number of payloads waiting for the worker thread. */
+    public Builder dispatchQueueCapacity(int dispatchQueueCapacity) {
+      if (dispatchQueueCapacity <= 0) {
+        throw new IllegalArgumentException("dispatchQueueCapacity must be positive.");
+      }
+      this.dispatchQueueCapacity = dispatchQueueCapacity;
+      return this;
+    }
+
+    /** What to do with track and screen payloads when the queue is full. */
+    public Builder dispatchOverflowPolicy(OverflowPolicy policy) {
+      if (policy == null) {
+        throw new IllegalArgumentException("dispatchOverflowPolicy == null");
+      }
+      this.dispatchOverflowPolicy = policy;
+      return this;
+    }
+
+    /**
+     * Number of "Viewed X Screen" event names to keep when page calls aren't consolidated. Zero
+     * disables the cache.
+     */
+    public Builder screenNameCacheSize(int screenNameCacheSize) {
+      if (screenNameCacheSize < 0) {
+        throw new IllegalArgumentException("screenNameCacheSize must not be negative.");
+      }
+      this.screenNameCacheSize = screenNameCacheSize;
+      return this;
+    }
+
+    /**
+     * Number of track and screen events to keep, by message id, so that retried or duplicated
+     * deliveries of a payload reuse its JSON instead of serializing it again. Zero, the default,
+     * disables the cache. It's also disabled with {@link #deduplicateEvents(boolean)}, which drops
+     * those deliveries before they'd reach the cache.
+     */
+    public Builder serializationCacheSize(int serializationCacheSize) {
+      if (serializationCacheSize < 0) {
+        throw new IllegalArgumentException("serializationCacheSize must not be negative.");
+      }
+      this.serializationCacheSize = serializationCacheSize;
+      return this;
+    }
+
+    /**
+     * Only send {@code event} for a {@code rate} fraction (0 to 1) of users. The decision is stable
+     * per user, so sampled users keep complete funnels.
+     */
+    public Builder sampleEvent(String event, double rate) {
+      if (rate < 0 || rate > 1) {
+        throw new IllegalArgumentException("rate must be between 0 and 1.");
+      }
+      sampledEvents.put(event, rate);
+      return this;
+    }
+
+    /** Send at most {@code perMinute} occurrences of {@code event} per minute, on average. */
+    public Builder rateLimitEvent(String event, int perMinute) {
+      if (perMinute < 0) {
+        throw new IllegalArgumentException("perMinute must not be negative.");
+      }
+      rateLimits.put(event, perMinute);
+      return this;
+    }
+
+    /**
+     * Accumulate increment events and send them to Mixpanel People as one batched increment and
+     * one batched "Last <event>" update per window, on {@link MixpanelIntegration#flush()}, on
+     * {@link MixpanelIntegration#reset()} and whenever an activity stops.
+     */
+    public Builder aggregateIncrements(boolean aggregateIncrements) {
+      this.aggregateIncrements = aggregateIncrements;
+      return this;
+    }
+
+    /**
+     * How long increment events are accumulated before being sent. The window is checked when
+     * events arrive, there is no timer.
+     */
+    public Builder incrementWindowMillis(long incrementWindowMillis) {
+      if (incrementWindowMillis <= 0) {
+        throw new IllegalArgumentException("incrementWindowMillis must be positive.");
+      }
+      this.incrementWindowMillis = incrementWindowMillis;
+      return this;
+    }
+
+    /**
+     * When aggregating, also sum the numeric {@code property} of {@code event} and increment the
+     * "<event> <property>" people property by the total.
+     */
+    public Builder sumIncrementProperty(String event, String property) {
+      incrementSumProperties.put(event, property);
+      return this;
+    }
+
+    /**
+     * Create the {@code MixpanelAPI} instance on the dispatcher thread instead of during
+     * integration setup, keeping Mixpanel's initialization off the app's startup path. Payloads
+     * are queued until it's ready. Implies {@link #asyncDispatch(boolean)}.
+     */
+    public Builder lazyInitialization(boolean lazyInitialization) {
+      this.lazyInitialization = lazyInitialization;
+      return this;
+    }
+
+    /**
+     * Which created activities are passed to Mixpanel's inbound app link handling. Defaults to
+     * {@link AppLinkPredicate#APP_LINK_EXTRAS}; use {@link AppLinkPredicate#ALWAYS} to pass every
+     * activity.
+     */
+    public Builder appLinkPredicate(AppLinkPredicate appLinkPredicate) {
+      if (appLinkPredicate == null) {
+        throw new IllegalArgumentException("appLinkPredicate == null");
+      }
+      this.appLinkPredicate = appLinkPredicate;
+      return this;
+    }
+
+    /**
+     * Report call counts, serialization times, payload sizes and drops to {@code listener}, or
+     * null to measure nothing. Measuring payload sizes converts each payload to a string, so it
+     * has a cost of its own.
+     */
+    public Builder metricsListener(MixpanelMetricsListener listener) {
+      this.metricsListener = listener;
+      return this;
+    }
+
+    /**
+     * Project the properties of every event without a projection of its own, or null to send
+     * them all.
+     */
+    public Builder projectProperties(PropertyProjection projection) {
+      this.defaultPropertyProjection = projection;
+      return this;
+    }
+
+    /**
+     * Project the properties of {@code event} with {@code projection} instead of the default
+     * projection, which still applies to every other event. Screen calls are projected by the
+     * event they're tracked as, e.g. "Loaded a Screen".
+     */
+    public Builder projectProperties(String event, PropertyProjection projection) {
+      if (projection == null) {
+        throw new IllegalArgumentException("projection == null");
+      }
+      propertyProjections.put(event, projection);
+      return this;
+    }
+
+    /**
+     * Where state that should survive restarts is kept. When unset, the integration factory uses
+     * a directory in the app's files directory; without one, state is kept in memory only.
+     */
+    public Builder storageDirectory(File storageDirectory) {
+      this.storageDirectory = storageDirectory;
+      return this;
+    }
+
+    /**
+     * Skip group calls Mixpanel has already seen: memberships that are already set, and traits
+     * that were already sent with {@code setOnce}. Cleared by {@link
+     * MixpanelIntegration#reset()}.
+     */
+    public Builder cacheGroupState(boolean cacheGroupState) {
+      this.cacheGroupState = cacheGroupState;
+      return this;
+    }
+
+    /**
+     * Skip identify calls for the user Mixpanel is already identified as, and alias calls that
+     * were already made, remembering them across restarts. Cleared by {@link
+     * MixpanelIntegration#reset()}. Don't enable this if the app also changes Mixpanel's identity
+     * directly through {@link MixpanelIntegration#getUnderlyingInstance()}.
+     */
+    public Builder cacheIdentity(boolean cacheIdentity) {
+      this.cacheIdentity = cacheIdentity;
+      return this;
+    }
+
+    /**
+     * Write tracked events to a spool in the storage directory instead of handing them to
+     * Mixpanel directly, and forward them from there on a background thread at {@link
+     * #spoolEventsPerSecond(int)}. Identify, alias, group, flush and reset first forward
+     * everything spooled, so events keep their order relative to identity changes. Requires a
+     * storage directory.
+     */
+    public Builder spoolEvents(boolean spoolEvents) {
+      this.spoolEvents = spoolEvents;
+      return this;
+    }
+
+    /** Size the spool may grow to before its oldest events are deleted unforwarded. */
+    public Builder spoolMaxBytes(long spoolMaxBytes) {
+      if (spoolMaxBytes <= 0) {
+        throw new IllegalArgumentException("spoolMaxBytes must be positive.");
+      }
+      this.spoolMaxBytes = spoolMaxBytes;
+      return this;
+    }
+
+    /** Age past which spooled events are dropped instead of forwarded. */
+    public Builder spoolMaxAgeMillis(long spoolMaxAgeMillis) {
+      if (spoolMaxAgeMillis <= 0) {
+        throw new IllegalArgumentException("spoolMaxAgeMillis must be positive.");
+      }
+      this.spoolMaxAgeMillis = spoolMaxAgeMillis;
+      return this;
+    }
+
+    /** Rate at which spooled events are forwarded to Mixpanel. */
+    public Builder spoolEventsPerSecond(int spoolEventsPerSecond) {
+      if (spoolEventsPerSecond <= 0) {
+        throw new IllegalArgumentException("spoolEventsPerSecond must be positive.");
+      }
+      this.spoolEventsPerSecond = spoolEventsPerSecond;
+      return this;
+    }
+
+    /**
+     * Drop track and screen payloads whose message id was already seen, as happens when Segment
+     * redelivers payloads after a crash, before anything is serialized or sent. Recent ids are
+     * kept in fixed-size Bloom filters, in the storage directory when there is one, so a small
+     * fraction of new payloads (see {@link #deduplicationCapacity(int, double)}) may be dropped
+     * as well. Replaces the {@link #serializationCacheSize(int) serialization cache}, which is
+     * disabled when this is enabled.
+     */
+    public Builder deduplicateEvents(boolean deduplicateEvents) {
+      this.deduplicateEvents = deduplicateEvents;
+      return this;
+    }
+
+    /** How long message ids are remembered for at least, unless the capacity runs out first. */
+    public Builder deduplicationWindowMillis(long deduplicationWindowMillis) {
+      if (deduplicationWindowMillis <= 0) {
+        throw new IllegalArgumentException("deduplicationWindowMillis must be positive.");
+      }
+      this.deduplicationWindowMillis = deduplicationWindowMillis;
+      return this;
+    }
+
+    /**
+     * Sizes deduplication for {@code capacity} message ids per window with at most {@code
+     * falsePositiveRate} of new payloads dropped as duplicates. Memory grows with the capacity
+     * and with the log of one over the rate; the defaults, 10,000 ids at 0.001, take 40 KB.
+     */
+    public Builder deduplicationCapacity(int capacity, double falsePositiveRate) {
+      if (capacity <= 0) {
+        throw new IllegalArgumentException("capacity must be positive.");
+      }
+      if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+        throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1.");
+      }
+      this.deduplicationCapacity = capacity;
+      this.deduplicationFalsePositiveRate = falsePositiveRate;
+      return this;
+    }
+
+    /**
+     * Drop payloads while the user is opted out of Mixpanel tracking, before anything is
+     * serialized or dispatched, instead of handing them to Mixpanel to discard. The opt-out flag
+     * is read when Mixpanel is created and again on {@link MixpanelIntegration#reset()}; opt in
+     * and out through {@link MixpanelIntegration#optInTracking()} and {@link
+     * MixpanelIntegration#optOutTracking()}, or call {@link MixpanelIntegration#refreshOptOut()}
+     * after changing it on {@code MixpanelAPI} directly.
+     */
+    public Builder skipWhenOptedOut(boolean skipWhenOptedOut) {
+      this.skipWhenOptedOut = skipWhenOptedOut;
+      return this;
+    }
+
+    /**
+     * Withhold track calls for {@code events} until the user grants consent for {@code category}
+     * with {@link MixpanelIntegration#setConsent(String, boolean)}. Event names may contain
+     * {@code *} to match any run of characters, e.g. {@code Ad *}. Consent isn't stored, so set it
+     * on every launch.
+     */
+    public Builder consentCategory(String category, Collection<String> events) {
+      if (category == null) {
+        throw new IllegalArgumentException("category must not be null.");
+      }
+      consentCategories.put(category, Collections.unmodifiableSet(new LinkedHashSet<>(events)));
+      return this;
+    }
+
+    /**
+     * Record every call reaching the integration, with its payload, to {@code traceFile} for
+     * replaying offline (see the benchmark module's {@code TraceReplay}). Traces hold user data
+     * and grow without bound, so only record in debug builds and for as long as needed. The file
+     * is written on {@link MixpanelIntegration#flush()} and whenever an activity stops; gzipped if
+     * its name ends in {@code .gz}. Null, the default, records nothing.
+     */
+    public Builder recordTrace(File traceFile) {
+      this.traceFile = traceFile;
+      return this;
+    }
+
+    /**
+     * Coalesce {@link MixpanelIntegration#flush()} calls instead of flushing Mixpanel on every
+     * one, so small Segment flush queues don't wake Mixpanel's network worker for tiny batches.
+     * Mixpanel is flushed at most once per interval, which grows from {@link
+     * #flushDebounceMillis(long)} towards {@link #maxFlushIntervalMillis(long)} as events arrive
+     * more slowly, so that each flush sends a full batch when possible. A flush requested sooner
+     * happens on the first event or flush once it's due. Events with revenue are flushed straight
+     * away, and pending events when an activity stops.
+     */
+    public Builder adaptiveFlush(boolean adaptiveFlush) {
+      this.adaptiveFlush = adaptiveFlush;
+      return this;
+    }
+
+    /** The least time between adaptive flushes. */
+    public Builder flushDebounceMillis(long flushDebounceMillis) {
+      if (flushDebounceMillis <= 0) {
+        throw new IllegalArgumentException("flushDebounceMillis must be positive.");
+      }
+      this.flushDebounceMillis = flushDebounceMillis;
+      return this;
+    }
+
+    /**
+     * The most time between adaptive flushes, however slowly events arrive. Mixpanel also flushes
+     * on its own every minute by default.
+     */
+    public Builder maxFlushIntervalMillis(long maxFlushIntervalMillis) {
+      if (maxFlushIntervalMillis <= 0) {
+        throw new IllegalArgumentException("maxFlushIntervalMillis must be positive.");
+      }
+      this.maxFlushIntervalMillis = maxFlushIntervalMillis;
+      return this;
+    }
+
+    public MixpanelOptions build() {
+      return new MixpanelOptions(this);
+    }
+  }
+}
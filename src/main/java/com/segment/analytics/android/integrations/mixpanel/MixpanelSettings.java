@@ -0,0 +1,84 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import com.segment.analytics.ValueMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static com.segment.analytics.android.integrations.mixpanel.MixpanelIntegration.getStringSet;
+
+/**
+ * The Segment settings that decide what each payload turns into: how screens are tracked, which
+ * events are incremented and which traits become super or people properties. Immutable, with
+ * everything derived from the sets computed up front, so {@link
+ * MixpanelIntegration#updateSettings(ValueMap)} replaces them all at once with a single write.
+ */
+final class MixpanelSettings {
+  final boolean consolidatedPageCalls;
+  final boolean trackAllPages;
+  final boolean trackCategorizedPages;
+  final boolean trackNamedPages;
+  final NameSet increments;
+  /** Maps each event named in {@link #increments} to its precomputed "Last <event>" property. */
+  final Map<String, String> lastEventKeys;
+  final boolean setAllTraitsByDefault;
+  final NameSet peopleProperties;
+  final NameSet superProperties;
+
+  MixpanelSettings(
+      boolean consolidatedPageCalls,
+      boolean trackAllPages,
+      boolean trackCategorizedPages,
+      boolean trackNamedPages,
+      Set<String> increments,
+      boolean setAllTraitsByDefault,
+      Set<String> peopleProperties,
+      Set<String> superProperties) {
+    this.consolidatedPageCalls = consolidatedPageCalls;
+    this.trackAllPages = trackAllPages;
+    this.trackCategorizedPages = trackCategorizedPages;
+    this.trackNamedPages = trackNamedPages;
+    this.increments = NameSet.of(increments);
+    this.lastEventKeys = lastEventKeys(this.increments);
+    this.setAllTraitsByDefault = setAllTraitsByDefault;
+    this.peopleProperties = NameSet.of(peopleProperties);
+    this.superProperties = NameSet.of(superProperties);
+  }
+
+  /** Reads the settings Segment's CDN sends for Mixpanel, with the same defaults as the factory. */
+  static MixpanelSettings fromSettings(ValueMap settings) {
+    return new MixpanelSettings(
+        settings.getBoolean("consolidatedPageCalls", true),
+        settings.getBoolean("trackAllPages", false),
+        settings.getBoolean("trackCategorizedPages", false),
+        settings.getBoolean("trackNamedPages", false),
+        getStringSet(settings, "increments"),
+        settings.getBoolean("setAllTraitsByDefault", true),
+        getStringSet(settings, "peopleProperties"),
+        getStringSet(settings, "superProperties"));
+  }
+
+  /** The "Last <event>" people property to set for {@code event}, or null if it isn't counted. */
+  String lastEventKey(String event) {
+    if (!increments.contains(event)) {
+      return null;
+    }
+    String lastEventKey = lastEventKeys.get(event);
+    // Events matched by a pattern aren't known up front.
+    return lastEventKey != null ? lastEventKey : "Last " + event;
+  }
+
+  private static Map<String, String> lastEventKeys(NameSet increments) {
+    if (increments.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    Map<String, String> lastEventKeys = new HashMap<>(increments.size());
+    for (String event : increments) {
+      if (event.indexOf('*') < 0) {
+        lastEventKeys.put(event, "Last " + event);
+      }
+    }
+    return lastEventKeys;
+  }
+}
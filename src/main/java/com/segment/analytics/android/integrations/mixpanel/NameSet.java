@@ -0,0 +1,186 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An immutable set of event or trait names, built once from settings and then only queried. Names
+ * sit in an open-addressed table next to their precomputed hashes, which takes less memory than a
+ * {@code HashSet}'s nodes. Most lookups are misses (most events aren't increments), so a bit set
+ * of the names' lengths turns those away before the name is even hashed.
+ *
+ * <p>Entries containing {@code *} are glob patterns, where {@code *} matches any run of
+ * characters: {@code checkout_*} matches every name starting with {@code checkout_}. {@link
+ * #contains} matches names against the patterns as well, while iterating returns the entries as
+ * configured.
+ */
+final class NameSet extends AbstractSet<String> {
+  static final NameSet EMPTY = new NameSet(new String[0]);
+
+  private final String[] entries;
+  private final String[] table;
+  private final int[] hashes;
+  private final int mask;
+  /** Bit {@code n} is set if a name is {@code n} chars long; bit 63 covers longer names. */
+  private final long lengths;
+  private final Glob[] globs;
+
+  /** Keeps the first of each distinct, non-null string in {@code names}, in order. */
+  private NameSet(String[] names) {
+    int patterns = 0;
+    for (String name : names) {
+      if (name != null && name.indexOf('*') >= 0) {
+        patterns++;
+      }
+    }
+    // At most half full, so misses end at an empty slot quickly.
+    int capacity = Integer.highestOneBit(Math.max(1, names.length - patterns) * 2 - 1) << 1;
+    String[] entries = new String[names.length];
+    String[] table = new String[capacity];
+    int[] hashes = new int[capacity];
+    List<Glob> globs = new ArrayList<>(patterns);
+    int size = 0;
+    long lengths = 0;
+    for (String name : names) {
+      if (name == null) {
+        continue;
+      }
+      if (name.indexOf('*') >= 0) {
+        Glob glob = new Glob(name);
+        if (globs.contains(glob)) {
+          continue;
+        }
+        globs.add(glob);
+      } else {
+        int hash = name.hashCode();
+        int slot = spread(hash) & (capacity - 1);
+        while (table[slot] != null && !(hashes[slot] == hash && table[slot].equals(name))) {
+          slot = (slot + 1) & (capacity - 1);
+        }
+        if (table[slot] != null) {
+          continue;
+        }
+        table[slot] = name;
+        hashes[slot] = hash;
+        lengths |= lengthBit(name.length());
+      }
+      entries[size++] = name;
+    }
+    this.entries = size == entries.length ? entries : Arrays.copyOf(entries, size);
+    this.table = table;
+    this.hashes = hashes;
+    this.mask = capacity - 1;
+    this.lengths = lengths;
+    this.globs = globs.toArray(new Glob[globs.size()]);
+  }
+
+  /** Returns a set of the distinct, non-null strings in {@code names}. */
+  static NameSet of(Collection<String> names) {
+    if (names instanceof NameSet) {
+      return (NameSet) names;
+    }
+    if (names.isEmpty()) {
+      return EMPTY;
+    }
+    NameSet set = new NameSet(names.toArray(new String[names.size()]));
+    return set.isEmpty() ? EMPTY : set;
+  }
+
+  /** Whether {@code o} is one of the names or matches one of the patterns. */
+  @Override public boolean contains(Object o) {
+    if (!(o instanceof String)) {
+      return false;
+    }
+    String name = (String) o;
+    if ((lengths & lengthBit(name.length())) != 0 && containsName(name)) {
+      return true;
+    }
+    for (Glob glob : globs) {
+      if (glob.matches(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean containsName(String name) {
+    int hash = name.hashCode();
+    int slot = spread(hash) & mask;
+    String entry;
+    while ((entry = table[slot]) != null) {
+      if (hashes[slot] == hash && entry.equals(name)) {
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return false;
+  }
+
+  /** Whether any entry is a pattern, so the names can't be listed up front. */
+  boolean hasPatterns() {
+    return globs.length > 0;
+  }
+
+  @Override public Iterator<String> iterator() {
+    return Arrays.asList(entries).iterator();
+  }
+
+  @Override public int size() {
+    return entries.length;
+  }
+
+  private static long lengthBit(int length) {
+    return 1L << Math.min(length, 63);
+  }
+
+  /** Mixes the high bits in, since names often differ only in their last characters. */
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  /** A pattern split around its {@code *}s. */
+  private static final class Glob {
+    private final String pattern;
+    private final String prefix;
+    private final String suffix;
+    private final String[] middle;
+    private final int minLength;
+
+    Glob(String pattern) {
+      this.pattern = pattern;
+      String[] parts = pattern.split("\\*", -1);
+      this.prefix = parts[0];
+      this.suffix = parts[parts.length - 1];
+      this.middle = Arrays.copyOfRange(parts, 1, parts.length - 1);
+      this.minLength = pattern.length() - (parts.length - 1);
+    }
+
+    boolean matches(String name) {
+      if (name.length() < minLength || !name.startsWith(prefix) || !name.endsWith(suffix)) {
+        return false;
+      }
+      int from = prefix.length();
+      int to = name.length() - suffix.length();
+      for (String part : middle) {
+        int index = name.indexOf(part, from);
+        if (index < 0 || index + part.length() > to) {
+          return false;
+        }
+        from = index + part.length();
+      }
+      return true;
+    }
+
+    @Override public boolean equals(Object o) {
+      return o instanceof Glob && ((Glob) o).pattern.equals(pattern);
+    }
+
+    @Override public int hashCode() {
+      return pattern.hashCode();
+    }
+  }
+}
@@ -0,0 +1,311 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.android.integrations.mixpanel.MixpanelMetricsListener.Call;
+import com.segment.analytics.integrations.AliasPayload;
+import com.segment.analytics.integrations.BasePayload;
+import com.segment.analytics.integrations.GroupPayload;
+import com.segment.analytics.integrations.IdentifyPayload;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.ScreenPayload;
+import com.segment.analytics.integrations.TrackPayload;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import static com.segment.analytics.internal.Utils.parseISO8601Date;
+
+/**
+ * A recording of the calls reaching {@link MixpanelIntegration}, so production traffic can be
+ * replayed offline. A trace is newline-delimited JSON with one call per line, {@code
+ * {"at":<millis since the first call>,"call":"track","payload":{...}}}, where the payload is the
+ * Segment payload as delivered; flush and reset have no payload. Files whose name ends in {@code
+ * .gz} are gzipped.
+ */
+final class PayloadTrace {
+  private PayloadTrace() {
+    throw new AssertionError("No instances.");
+  }
+
+  /** One recorded call. */
+  static final class Entry {
+    final long atMillis;
+    final Call call;
+    /** The payload, or null for flush and reset. */
+    final BasePayload payload;
+
+    Entry(long atMillis, Call call, BasePayload payload) {
+      this.atMillis = atMillis;
+      this.call = call;
+      this.payload = payload;
+    }
+  }
+
+  /**
+   * Appends calls to a trace file. Lines are buffered and written on {@link #flush()}. The first
+   * write error is logged and stops the recording rather than failing the call being recorded.
+   * Thread-safe.
+   */
+  static final class Recorder implements Closeable {
+    private final File file;
+    private final Logger logger;
+    private BufferedWriter writer;
+    private long startNanos = -1;
+    private boolean failed;
+
+    Recorder(File file, Logger logger) {
+      this.file = file;
+      this.logger = logger;
+    }
+
+    synchronized void record(Call call, BasePayload payload) {
+      if (failed) {
+        return;
+      }
+      long nowNanos = System.nanoTime();
+      if (startNanos < 0) {
+        startNanos = nowNanos;
+      }
+      StringBuilder line = new StringBuilder(256)
+          .append("{\"at\":").append((nowNanos - startNanos) / 1_000_000)
+          .append(",\"call\":\"").append(call.name().toLowerCase(Locale.US)).append('"');
+      if (payload != null) {
+        line.append(",\"payload\":").append(payload.toJsonObject());
+      }
+      line.append("}\n");
+      try {
+        writer().write(line.toString());
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    synchronized void flush() {
+      if (writer == null || failed) {
+        return;
+      }
+      try {
+        writer.flush();
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    @Override public synchronized void close() throws IOException {
+      if (writer != null) {
+        writer.close();
+      }
+      failed = true;
+    }
+
+    private BufferedWriter writer() throws IOException {
+      if (writer == null) {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+          throw new IOException("Could not create " + directory);
+        }
+        OutputStream out = new FileOutputStream(file);
+        if (isGzipped(file)) {
+          // Sync flushes, so a trace cut short by the process dying is readable up to there.
+          out = new GZIPOutputStream(out, true);
+        }
+        writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+      }
+      return writer;
+    }
+
+    private void fail(IOException e) {
+      failed = true;
+      logger.error(e, "Could not write payload trace %s, stopped recording.", file);
+      try {
+        if (writer != null) {
+          writer.close();
+        }
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  /** Reads a trace's calls back in order. */
+  static final class Reader implements Closeable {
+    private final BufferedReader reader;
+    private int lineNumber;
+
+    Reader(File file) throws IOException {
+      InputStream in = new FileInputStream(file);
+      if (isGzipped(file)) {
+        in = new UnterminatedGzipInputStream(in);
+      }
+      this.reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    }
+
+    /** Returns the next call, or null at the end of the trace. */
+    Entry next() throws IOException {
+      String line;
+      do {
+        line = reader.readLine();
+        lineNumber++;
+      } while (line != null && line.isEmpty());
+      if (line == null) {
+        return null;
+      }
+      try {
+        return parse(line);
+      } catch (JSONException | IllegalArgumentException | NullPointerException e) {
+        throw new IOException("Invalid trace entry on line " + lineNumber, e);
+      }
+    }
+
+    /** Reads every remaining call. */
+    List<Entry> readAll() throws IOException {
+      List<Entry> entries = new ArrayList<>();
+      for (Entry entry = next(); entry != null; entry = next()) {
+        entries.add(entry);
+      }
+      return entries;
+    }
+
+    @Override public void close() throws IOException {
+      reader.close();
+    }
+  }
+
+  /**
+   * Reads a gzipped trace whose recording was never closed, which ends mid-stream, up to its last
+   * flushed line rather than failing.
+   */
+  private static final class UnterminatedGzipInputStream extends GZIPInputStream {
+    UnterminatedGzipInputStream(InputStream in) throws IOException {
+      super(in);
+    }
+
+    @Override public int read(byte[] buffer, int offset, int length) throws IOException {
+      try {
+        return super.read(buffer, offset, length);
+      } catch (EOFException e) {
+        return -1;
+      }
+    }
+  }
+
+  static Entry parse(String line) throws JSONException {
+    JSONObject json = new JSONObject(line);
+    Call call = Call.valueOf(json.getString("call").toUpperCase(Locale.US));
+    JSONObject payload = json.optJSONObject("payload");
+    return new Entry(json.getLong("at"), call,
+        payload == null ? null : payload(call, new ValueMap(toMap(payload))));
+  }
+
+  /** Rebuilds the payload of {@code call} from its recorded JSON. */
+  private static BasePayload payload(Call call, ValueMap json) {
+    BasePayload.Builder<?, ?> builder;
+    switch (call) {
+      case TRACK:
+        builder = new TrackPayload.Builder().event(json.getString("event"))
+            .properties(valueMap(json, "properties"));
+        break;
+      case SCREEN:
+        ScreenPayload.Builder screen =
+            new ScreenPayload.Builder().properties(valueMap(json, "properties"));
+        if (json.getString("name") != null) {
+          screen.name(json.getString("name"));
+        }
+        if (json.getString("category") != null) {
+          setCategory(screen, json.getString("category"));
+        }
+        builder = screen;
+        break;
+      case IDENTIFY:
+        builder = new IdentifyPayload.Builder().traits(valueMap(json, "traits"));
+        break;
+      case GROUP:
+        builder = new GroupPayload.Builder().groupId(json.getString("groupId"))
+            .traits(valueMap(json, "traits"));
+        break;
+      case ALIAS:
+        builder = new AliasPayload.Builder().previousId(json.getString("previousId"));
+        break;
+      default:
+        throw new IllegalArgumentException(call + " has no payload.");
+    }
+    // The builders reject nulls for fields they'd otherwise fill in themselves.
+    String timestamp = json.getString("timestamp");
+    if (timestamp != null) {
+      builder.timestamp(parseISO8601Date(timestamp));
+    }
+    if (json.getString("messageId") != null) {
+      builder.messageId(json.getString("messageId"));
+    }
+    if (json.getString("userId") != null) {
+      builder.userId(json.getString("userId"));
+    }
+    if (json.getString("anonymousId") != null) {
+      builder.anonymousId(json.getString("anonymousId"));
+    }
+    // Not chained: the setters return the raw builder type, which makes the next call unchecked.
+    builder.context(valueMap(json, "context"));
+    builder.integrations(valueMap(json, "integrations"));
+    return builder.build();
+  }
+
+  /** Screen calls recorded from older apps may still carry a category. */
+  @SuppressWarnings("deprecation")
+  private static void setCategory(ScreenPayload.Builder screen, String category) {
+    screen.category(category);
+  }
+
+  private static Map<String, Object> valueMap(ValueMap json, String key) {
+    ValueMap value = json.getValueMap(key);
+    return value == null ? Collections.<String, Object>emptyMap() : value;
+  }
+
+  private static Map<String, Object> toMap(JSONObject json) throws JSONException {
+    Map<String, Object> map = new LinkedHashMap<>(json.length());
+    Iterator<String> keys = json.keys();
+    while (keys.hasNext()) {
+      String key = keys.next();
+      map.put(key, fromJson(json.get(key)));
+    }
+    return map;
+  }
+
+  private static Object fromJson(Object value) throws JSONException {
+    if (value instanceof JSONObject) {
+      return toMap((JSONObject) value);
+    }
+    if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      List<Object> list = new ArrayList<>(array.length());
+      for (int i = 0; i < array.length(); i++) {
+        list.add(fromJson(array.get(i)));
+      }
+      return list;
+    }
+    return value == JSONObject.NULL ? null : value;
+  }
+
+  private static boolean isGzipped(File file) {
+    return file.getName().endsWith(".gz");
+  }
+}
@@ -0,0 +1,62 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers a fingerprint (the value's hash code mixed with its class) of every property last sent
+ * to Mixpanel, so that identify calls only forward properties that changed since the previous
+ * call. Mixing in the class keeps values with equal hash codes but different types, such as {@code
+ * 0}, {@code 0L}, {@code ""} and {@code false}, apart.
+ *
+ * <p>Only hashes are retained, never the values themselves. A hash collision between an old and a
+ * new value would hide that change until the next {@link #clear()}, which is an acceptable trade
+ * for not pinning user traits in memory.
+ */
+class PropertyFingerprints {
+  /** The fingerprint of null, which no hash code mixed with a class is likely to equal. */
+  private static final int NULL_FINGERPRINT = 0x9e3779b9;
+
+  private final Map<String, Integer> fingerprints = new HashMap<>();
+  private final AtomicLong suppressedWrites = new AtomicLong();
+
+  /**
+   * Returns the entries of {@code in} whose values differ from what was last recorded, and records
+   * them as sent. An empty result means the whole write can be skipped, which is counted in {@link
+   * #suppressedWrites()}.
+   */
+  <T> Map<String, T> delta(Map<String, T> in) {
+    Map<String, T> changed = new LinkedHashMap<>();
+    for (Map.Entry<String, T> entry : in.entrySet()) {
+      String key = entry.getKey();
+      int fingerprint = fingerprint(entry.getValue());
+      Integer previous = fingerprints.put(key, fingerprint);
+      if (previous == null || previous != fingerprint) {
+        changed.put(key, entry.getValue());
+      }
+    }
+    if (changed.isEmpty()) {
+      suppressedWrites.incrementAndGet();
+    }
+    return changed;
+  }
+
+  /** Forgets everything recorded so far, so the next write is forwarded in full. */
+  void clear() {
+    fingerprints.clear();
+  }
+
+  /** Number of writes skipped because none of their properties changed. */
+  long suppressedWrites() {
+    return suppressedWrites.get();
+  }
+
+  private static int fingerprint(Object value) {
+    if (value == null) {
+      return NULL_FINGERPRINT;
+    }
+    return 31 * value.getClass().hashCode() + value.hashCode();
+  }
+}
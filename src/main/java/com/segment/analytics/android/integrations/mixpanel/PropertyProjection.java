@@ -0,0 +1,143 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import com.segment.analytics.ValueMap;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Which event properties are sent to Mixpanel, and how much of each. Applied while the properties
+ * are converted to JSON, so left-out keys and values are never serialized. Install with {@link
+ * MixpanelOptions.Builder#projectProperties(PropertyProjection)} or {@link
+ * MixpanelOptions.Builder#projectProperties(String, PropertyProjection)}.
+ *
+ * <p>Key filters only look at top-level properties; the limits apply at every level.
+ */
+public final class PropertyProjection {
+  static final int UNLIMITED = Integer.MAX_VALUE;
+
+  /** Null to include every key. */
+  final Set<String> include;
+  final Set<String> exclude;
+  final int maxDepth;
+  final int maxStringLength;
+  final int maxArrayLength;
+
+  PropertyProjection(Builder builder) {
+    this.include = builder.include == null ? null : new HashSet<>(builder.include);
+    this.exclude = new HashSet<>(builder.exclude);
+    this.maxDepth = builder.maxDepth;
+    this.maxStringLength = builder.maxStringLength;
+    this.maxArrayLength = builder.maxArrayLength;
+  }
+
+  /** Reads a projection from settings of the form {@code {"include": [...], "maxDepth": 2}}. */
+  static PropertyProjection fromSettings(ValueMap settings) {
+    Builder builder = new Builder();
+    Set<String> include = MixpanelIntegration.getStringSet(settings, "include");
+    if (!include.isEmpty()) {
+      builder.include(include.toArray(new String[0]));
+    }
+    Set<String> exclude = MixpanelIntegration.getStringSet(settings, "exclude");
+    builder.exclude(exclude.toArray(new String[0]));
+    int maxDepth = settings.getInt("maxDepth", -1);
+    if (maxDepth >= 0) {
+      builder.maxDepth(maxDepth);
+    }
+    int maxStringLength = settings.getInt("maxStringLength", -1);
+    if (maxStringLength >= 0) {
+      builder.maxStringLength(maxStringLength);
+    }
+    int maxArrayLength = settings.getInt("maxArrayLength", -1);
+    if (maxArrayLength >= 0) {
+      builder.maxArrayLength(maxArrayLength);
+    }
+    return builder.build();
+  }
+
+  /** Whether the top-level property {@code key} is sent. */
+  boolean includes(String key) {
+    return (include == null || include.contains(key)) && !exclude.contains(key);
+  }
+
+  /** Whether a map or array nested {@code depth} levels below the properties is kept. */
+  boolean allowsDepth(int depth) {
+    return depth <= maxDepth;
+  }
+
+  String truncate(String value) {
+    if (value.length() <= maxStringLength) {
+      return value;
+    }
+    int end = maxStringLength;
+    if (end > 0 && Character.isHighSurrogate(value.charAt(end - 1))) {
+      end--; // Don't split a surrogate pair.
+    }
+    return value.substring(0, end);
+  }
+
+  public static final class Builder {
+    Set<String> include;
+    final Set<String> exclude;
+    int maxDepth;
+    int maxStringLength;
+    int maxArrayLength;
+
+    public Builder() {
+      include = null;
+      exclude = new HashSet<>();
+      maxDepth = UNLIMITED;
+      maxStringLength = UNLIMITED;
+      maxArrayLength = UNLIMITED;
+    }
+
+    /** Only send these top-level properties. Calling this more than once adds to the set. */
+    public Builder include(String... keys) {
+      if (include == null) {
+        include = new HashSet<>();
+      }
+      include.addAll(Arrays.asList(keys));
+      return this;
+    }
+
+    /** Never send these top-level properties, even if included. */
+    public Builder exclude(String... keys) {
+      exclude.addAll(Arrays.asList(keys));
+      return this;
+    }
+
+    /**
+     * How many levels of nested maps and arrays to keep. Zero sends only scalar properties; deeper
+     * values are left out.
+     */
+    public Builder maxDepth(int maxDepth) {
+      if (maxDepth < 0) {
+        throw new IllegalArgumentException("maxDepth must not be negative.");
+      }
+      this.maxDepth = maxDepth;
+      return this;
+    }
+
+    /** Truncate longer strings to this many characters. */
+    public Builder maxStringLength(int maxStringLength) {
+      if (maxStringLength < 0) {
+        throw new IllegalArgumentException("maxStringLength must not be negative.");
+      }
+      this.maxStringLength = maxStringLength;
+      return this;
+    }
+
+    /** Send only the first {@code maxArrayLength} elements of arrays and collections. */
+    public Builder maxArrayLength(int maxArrayLength) {
+      if (maxArrayLength < 0) {
+        throw new IllegalArgumentException("maxArrayLength must not be negative.");
+      }
+      this.maxArrayLength = maxArrayLength;
+      return this;
+    }
+
+    public PropertyProjection build() {
+      return new PropertyProjection(this);
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of "Viewed X Screen" event names, keyed by the screen name or category they
+ * were built from. Apps with heavy navigation view the same few screens over and over, so most
+ * lookups are hits; misses are built with plain concatenation rather than {@code String.format}.
+ *
+ * <p>Not thread-safe, apart from the counters, which may be read from any thread.
+ */
+class ScreenNameCache {
+  private final int maxSize;
+  private final Map<String, String> cache;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  ScreenNameCache(int maxSize) {
+    this.maxSize = maxSize;
+    this.cache = new LruMap(maxSize);
+  }
+
+  /** Returns the event name for a screen called {@code screen}. */
+  String viewedEvent(String screen) {
+    String event = cache.get(screen);
+    if (event != null) {
+      hitCount.incrementAndGet();
+      return event;
+    }
+    missCount.incrementAndGet();
+    event = "Viewed " + screen + " Screen";
+    if (maxSize > 0) {
+      cache.put(screen, event);
+    }
+    return event;
+  }
+
+  long hitCount() {
+    return hitCount.get();
+  }
+
+  long missCount() {
+    return missCount.get();
+  }
+
+  int size() {
+    return cache.size();
+  }
+
+  /** Keeps entries in access order and evicts the least recently used past the maximum size. */
+  private static final class LruMap extends LinkedHashMap<String, String> {
+    private static final long serialVersionUID = 1L;
+    private final int maxSize;
+
+    LruMap(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+      return size() > maxSize;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONObject;
+
+/**
+ * Bounded LRU cache of the events built from track and screen payloads, keyed by the payload's
+ * message id. Segment retries and duplicate deliveries carry the same message id, so they reuse
+ * the event name, JSON and revenue instead of deriving them again. A size of zero disables it.
+ *
+ * <p>Not thread-safe, apart from the counters, which may be read from any thread.
+ */
+class SerializationCache {
+  private final int maxSize;
+  private final Map<String, Event> cache;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  SerializationCache(int maxSize) {
+    this.maxSize = maxSize;
+    this.cache = new LruMap(maxSize);
+  }
+
+  /** Returns the event built for {@code messageId}, or null if it has to be built. */
+  Event get(String messageId) {
+    Event event = maxSize > 0 && messageId != null ? cache.get(messageId) : null;
+    if (event != null) {
+      hitCount.incrementAndGet();
+    } else {
+      missCount.incrementAndGet();
+    }
+    return event;
+  }
+
+  void put(String messageId, Event event) {
+    if (maxSize > 0 && messageId != null) {
+      cache.put(messageId, event);
+    }
+  }
+
+  /** Forgets every cached event, such as when the settings they were built with change. */
+  void clear() {
+    cache.clear();
+  }
+
+  long hitCount() {
+    return hitCount.get();
+  }
+
+  long missCount() {
+    return missCount.get();
+  }
+
+  int size() {
+    return cache.size();
+  }
+
+  /** Drops the least recently used event once there are more than {@code maxSize}. */
+  private static final class LruMap extends LinkedHashMap<String, Event> {
+    private static final long serialVersionUID = 1L;
+    private final int maxSize;
+
+    LruMap(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Event> eldest) {
+      return size() > maxSize;
+    }
+  }
+
+  /** An event ready for Mixpanel. The JSON is shared and must not be modified once cached. */
+  static final class Event {
+    final String name;
+    final JSONObject properties;
+    final double revenue;
+
+    Event(String name, JSONObject properties, double revenue) {
+      this.name = name;
+      this.properties = properties;
+      this.revenue = revenue;
+    }
+  }
+}
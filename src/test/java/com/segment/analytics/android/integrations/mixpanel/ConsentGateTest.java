@@ -0,0 +1,59 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class ConsentGateTest {
+  @Test public void withholdsCategoriesUntilGranted() {
+    Map<String, Collection<String>> categories = new LinkedHashMap<>();
+    categories.put("marketing", Arrays.asList("Ad *", "Campaign Opened"));
+    categories.put("analytics", Collections.singletonList("Campaign Opened"));
+    ConsentGate consent = new ConsentGate(categories);
+
+    assertThat(consent.allows("Ad Clicked")).isFalse();
+    assertThat(consent.allows("Campaign Opened")).isFalse();
+    assertThat(consent.allows("Product Viewed")).isTrue();
+
+    consent.setConsent("marketing", true);
+    assertThat(consent.allows("Ad Clicked")).isTrue();
+    // Also in a category without consent.
+    assertThat(consent.allows("Campaign Opened")).isFalse();
+
+    consent.setConsent("analytics", true);
+    assertThat(consent.allows("Campaign Opened")).isTrue();
+
+    consent.setConsent("marketing", false);
+    assertThat(consent.allows("Ad Clicked")).isFalse();
+  }
+
+  @Test public void unknownCategoriesHaveNoEffect() {
+    ConsentGate consent = new ConsentGate(
+        Collections.singletonMap("marketing", Collections.singleton("Ad Clicked")));
+
+    consent.setConsent("other", true);
+
+    assertThat(consent.allows("Ad Clicked")).isFalse();
+  }
+
+  @Test public void optedOut() {
+    ConsentGate consent = new ConsentGate(Collections.<String, Collection<String>>emptyMap());
+    assertThat(consent.isOptedOut()).isFalse();
+    assertThat(consent.allows("Anything")).isTrue();
+
+    consent.setOptedOut(true);
+
+    assertThat(consent.isOptedOut()).isTrue();
+  }
+}
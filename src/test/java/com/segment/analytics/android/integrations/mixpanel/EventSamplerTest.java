@@ -0,0 +1,59 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import java.util.Collections;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class EventSamplerTest {
+
+  @Test public void samplingIsDeterministicPerUser() {
+    for (int i = 0; i < 100; i++) {
+      String user = "user" + i;
+      boolean first = EventSampler.sampled("Scrolled", user, 0.5);
+      assertThat(EventSampler.sampled("Scrolled", user, 0.5)).isEqualTo(first);
+    }
+  }
+
+  @Test public void samplingKeepsRoughlyTheRate() {
+    int kept = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (EventSampler.sampled("Scrolled", "user" + i, 0.25)) {
+        kept++;
+      }
+    }
+    assertThat(kept).isGreaterThan(2250).isLessThan(2750);
+  }
+
+  @Test public void samplingBounds() {
+    assertThat(EventSampler.sampled("Scrolled", "user", 1)).isTrue();
+    assertThat(EventSampler.sampled("Scrolled", "user", 0)).isFalse();
+  }
+
+  @Test public void tokenBucketRefills() {
+    EventSampler.TokenBucket bucket = new EventSampler.TokenBucket(2);
+    assertThat(bucket.tryAcquire(0)).isTrue();
+    assertThat(bucket.tryAcquire(0)).isTrue();
+    assertThat(bucket.tryAcquire(1000)).isFalse();
+    assertThat(bucket.tryAcquire(30_000)).isTrue();
+    assertThat(bucket.tryAcquire(30_000)).isFalse();
+  }
+
+  @Test public void countsDroppedEvents() {
+    EventSampler sampler = new EventSampler(Collections.singletonMap("Scrolled", 0.0),
+        Collections.singletonMap("Played", 1));
+
+    assertThat(sampler.check("Scrolled", "user", 0)).isEqualTo(EventSampler.SAMPLED_OUT);
+    assertThat(sampler.check("Played", "user", 0)).isEqualTo(EventSampler.KEEP);
+    assertThat(sampler.check("Played", "user", 0)).isEqualTo(EventSampler.THROTTLED);
+    assertThat(sampler.check("Viewed", "user", 0)).isEqualTo(EventSampler.KEEP);
+    assertThat(sampler.sampledOutCount()).isEqualTo(1);
+    assertThat(sampler.throttledCount()).isEqualTo(1);
+  }
+}
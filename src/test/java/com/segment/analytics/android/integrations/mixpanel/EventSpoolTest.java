@@ -0,0 +1,252 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.integrations.Logger;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class EventSpoolTest {
+  private static final long DAY = 24 * 60 * 60 * 1000L;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final Logger logger = Logger.with(Analytics.LogLevel.NONE);
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+  private File directory;
+  private EventSpool spool;
+
+  @Before public void setUp() {
+    directory = new File(folder.getRoot(), "spool");
+    spool = new EventSpool(directory, 1024 * 1024, 1024, DAY, logger);
+  }
+
+  @After public void tearDown() {
+    spool.shutdown();
+    executor.shutdownNow();
+  }
+
+  @Test public void appendsAndReadsInOrder() throws Exception {
+    spool.append("foo", "{\"a\":1}", 1000);
+    spool.append("bar", "{}", 2000);
+
+    EventSpool.Record first = spool.next(3000);
+    assertThat(first.event).isEqualTo("foo");
+    assertThat(first.json).isEqualTo("{\"a\":1}");
+    assertThat(first.timestampMillis).isEqualTo(1000);
+    assertThat(spool.next(3000).event).isEqualTo("bar");
+    assertThat(spool.next(3000)).isNull();
+  }
+
+  @Test public void rollsSegmentsAndDeletesForwardedOnes() throws Exception {
+    for (int i = 0; i < 50; i++) {
+      spool.append("event" + i, "{}", 0);
+    }
+    assertThat(segments()).isGreaterThan(1);
+
+    for (int i = 0; i < 50; i++) {
+      assertThat(spool.next(0).event).isEqualTo("event" + i);
+    }
+    assertThat(spool.next(0)).isNull();
+    assertThat(segments()).isEqualTo(1);
+  }
+
+  @Test public void evictsOldestSegmentsPastMaxBytes() throws Exception {
+    spool = new EventSpool(directory, 2048, 512, DAY, logger);
+    for (int i = 0; i < 200; i++) {
+      spool.append("event" + i, "{}", 0);
+    }
+
+    assertThat(spool.size()).isLessThanOrEqualTo(2048);
+    assertThat(spool.evictedCount()).isGreaterThan(0);
+    long remaining = 0;
+    EventSpool.Record record;
+    String last = null;
+    while ((record = spool.next(0)) != null) {
+      remaining++;
+      last = record.event;
+    }
+    assertThat(last).isEqualTo("event199");
+    assertThat(remaining + spool.evictedCount()).isEqualTo(200);
+  }
+
+  @Test public void dropsExpiredEvents() throws Exception {
+    spool.append("old", "{}", 0);
+    spool.append("new", "{}", DAY);
+
+    assertThat(spool.next(DAY + 1).event).isEqualTo("new");
+    assertThat(spool.expiredCount()).isEqualTo(1);
+  }
+
+  @Test public void skipsCorruptRecords() throws Exception {
+    spool.append("foo", "{}", 0);
+    spool.append("bar", "{}", 0);
+    spool.shutdown();
+    File segment = new File(directory, "0.seg");
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    file.seek(file.length() - 1);
+    file.write('x');
+    file.close();
+
+    EventSpool restarted = new EventSpool(directory, 1024 * 1024, 1024, DAY, logger);
+    assertThat(restarted.next(0).event).isEqualTo("foo");
+    assertThat(restarted.next(0)).isNull();
+    assertThat(restarted.corruptCount()).isEqualTo(1);
+
+    restarted.append("baz", "{}", 0);
+    assertThat(restarted.next(0).event).isEqualTo("baz");
+    restarted.shutdown();
+  }
+
+  @Test public void resumesFromCommittedCursor() throws Exception {
+    spool.append("foo", "{}", 0);
+    spool.append("bar", "{}", 0);
+    spool.next(0);
+    spool.commit();
+    spool.shutdown();
+
+    EventSpool restarted = new EventSpool(directory, 1024 * 1024, 1024, DAY, logger);
+    assertThat(restarted.next(0).event).isEqualTo("bar");
+    assertThat(restarted.next(0)).isNull();
+    restarted.shutdown();
+  }
+
+  @Test public void drainAll() throws Exception {
+    spool.append("foo", "{\"a\":1}", 0);
+    spool.append("bar", "{}", 0);
+    final List<String> forwarded = new ArrayList<>();
+
+    spool.drainAll(new EventSpool.Sink() {
+      @Override public void track(String event, JSONObject properties) {
+        forwarded.add(event + properties);
+      }
+    }, 0);
+
+    assertThat(forwarded).containsExactly("foo{\"a\":1,\"time\":0}", "bar{\"time\":0}");
+    assertThat(spool.forwardedCount()).isEqualTo(2);
+    assertThat(spool.next(0)).isNull();
+  }
+
+  @Test public void forwardsEventsWithTheTimeTheyWereSpooled() throws Exception {
+    spool.append("foo", "{}", 1000);
+    spool.append("bar", "{\"time\":500}", 2000);
+    final List<JSONObject> forwarded = new ArrayList<>();
+
+    // Drained an hour later, as after a crash.
+    spool.drainAll(new EventSpool.Sink() {
+      @Override public void track(String event, JSONObject properties) {
+        forwarded.add(properties);
+      }
+    }, 1000 + 60 * 60 * 1000);
+
+    assertThat(forwarded).hasSize(2);
+    assertThat(forwarded.get(0).getLong("time")).isEqualTo(1000);
+    // A time set by the caller is kept.
+    assertThat(forwarded.get(1).getLong("time")).isEqualTo(500);
+  }
+
+  @Test public void drainerForwardsAtLimitedRate() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(5);
+    final List<String> forwarded = new ArrayList<>();
+    long start = System.nanoTime();
+    spool.start(new EventSpool.Sink() {
+      @Override public void track(String event, JSONObject properties) {
+        synchronized (forwarded) {
+          forwarded.add(event);
+        }
+        latch.countDown();
+      }
+    }, executor, 50);
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < 5; i++) {
+      spool.append("event" + i, "{}", now);
+    }
+
+    assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    // 50 per second is one every 20ms, and the first goes out right away.
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(80);
+    synchronized (forwarded) {
+      assertThat(forwarded).containsExactly("event0", "event1", "event2", "event3", "event4");
+    }
+  }
+
+  @Test public void drainerSurvivesSinkErrors() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final List<String> forwarded = new ArrayList<>();
+    spool.start(new EventSpool.Sink() {
+      @Override public void track(String event, JSONObject properties) {
+        if (event.equals("fails")) {
+          throw new UnsatisfiedLinkError("boom");
+        }
+        synchronized (forwarded) {
+          forwarded.add(event);
+        }
+        latch.countDown();
+      }
+    }, executor, 1000);
+    long now = System.currentTimeMillis();
+    spool.append("fails", "{}", now);
+    spool.append("after", "{}", now);
+
+    assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    synchronized (forwarded) {
+      assertThat(forwarded).containsExactly("after");
+    }
+  }
+
+  @Test public void drainerForwardsOnTheExecutor() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(2);
+    final List<Thread> threads = new ArrayList<>();
+    final Thread[] executorThread = new Thread[1];
+    executor.submit(new Runnable() {
+      @Override public void run() {
+        executorThread[0] = Thread.currentThread();
+      }
+    }).get();
+    spool.start(new EventSpool.Sink() {
+      @Override public void track(String event, JSONObject properties) {
+        synchronized (threads) {
+          threads.add(Thread.currentThread());
+        }
+        latch.countDown();
+      }
+    }, executor, 1000);
+    long now = System.currentTimeMillis();
+    spool.append("foo", "{}", now);
+    spool.append("bar", "{}", now);
+
+    assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    synchronized (threads) {
+      assertThat(threads).containsExactly(executorThread[0], executorThread[0]);
+    }
+  }
+
+  private int segments() {
+    int segments = 0;
+    for (String name : directory.list()) {
+      if (name.endsWith(".seg")) {
+        segments++;
+      }
+    }
+    return segments;
+  }
+}
@@ -0,0 +1,92 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class FlushSchedulerTest {
+
+  @Test public void coalescesRequestsWithinTheDebounceWindow() {
+    FlushScheduler scheduler = new FlushScheduler(1000, 60_000, 0);
+
+    assertThat(scheduler.request(500)).isFalse();
+    assertThat(scheduler.request(999)).isFalse();
+    assertThat(scheduler.isDue(999)).isFalse();
+    assertThat(scheduler.isDue(1000)).isTrue();
+    assertThat(scheduler.request(1000)).isTrue();
+  }
+
+  @Test public void onlyRequestedFlushesAreDue() {
+    FlushScheduler scheduler = new FlushScheduler(1000, 60_000, 0);
+    scheduler.onEvent();
+
+    assertThat(scheduler.isDue(5000)).isFalse();
+    assertThat(scheduler.hasPending()).isTrue();
+    scheduler.flushed(5000);
+    assertThat(scheduler.hasPending()).isFalse();
+    assertThat(scheduler.request(5500)).isFalse();
+    assertThat(scheduler.hasPending()).isTrue();
+  }
+
+  @Test public void fastEventsFlushAtTheDebounceWindow() {
+    FlushScheduler scheduler = new FlushScheduler(1000, 60_000, 0);
+    // 100 events a second fill a batch in half a second.
+    for (int i = 0; i < 1000; i++) {
+      scheduler.onEvent();
+    }
+    scheduler.flushed(10_000);
+
+    assertThat(scheduler.intervalMillis()).isEqualTo(1000);
+  }
+
+  @Test public void slowEventsWaitForAFullBatch() {
+    FlushScheduler scheduler = new FlushScheduler(1000, 60_000, 0);
+    // 5 events a second fill a batch in 10 seconds.
+    for (int i = 0; i < 50; i++) {
+      scheduler.onEvent();
+    }
+    scheduler.flushed(10_000);
+
+    assertThat(scheduler.intervalMillis()).isEqualTo(10_000);
+    assertThat(scheduler.request(19_999)).isFalse();
+    assertThat(scheduler.request(20_000)).isTrue();
+  }
+
+  @Test public void intervalIsCapped() {
+    FlushScheduler scheduler = new FlushScheduler(1000, 60_000, 0);
+    scheduler.onEvent();
+    scheduler.flushed(10_000);
+    assertThat(scheduler.intervalMillis()).isEqualTo(60_000);
+
+    scheduler.flushed(20_000);
+    assertThat(scheduler.intervalMillis()).isEqualTo(60_000);
+  }
+
+  @Test public void rateIsSmoothed() {
+    FlushScheduler scheduler = new FlushScheduler(100, 60_000, 0);
+    for (int i = 0; i < 50; i++) {
+      scheduler.onEvent();
+    }
+    scheduler.flushed(10_000);
+    // A burst moves the interval towards the debounce window without jumping there.
+    for (int i = 0; i < 500; i++) {
+      scheduler.onEvent();
+    }
+    scheduler.flushed(11_000);
+
+    assertThat(scheduler.intervalMillis()).isGreaterThan(100).isLessThan(10_000);
+  }
+
+  @Test public void maxIntervalIsAtLeastTheDebounceWindow() {
+    FlushScheduler scheduler = new FlushScheduler(5000, 1000, 0);
+    scheduler.flushed(10_000);
+
+    assertThat(scheduler.intervalMillis()).isEqualTo(5000);
+  }
+}
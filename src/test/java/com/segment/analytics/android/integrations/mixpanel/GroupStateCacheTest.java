@@ -0,0 +1,99 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import com.google.common.collect.ImmutableMap;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class GroupStateCacheTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void unsentTraits() {
+    GroupStateCache cache = new GroupStateCache(null);
+    Map<String, Object> traits = ImmutableMap.<String, Object>of("plan", "pro", "seats", 5);
+
+    assertThat(cache.unsentTraits("Company", "1", traits)).isEqualTo(traits);
+    assertThat(cache.unsentTraits("Company", "1", traits)).isEmpty();
+    // setOnce never overwrites, so a changed value doesn't need sending either.
+    assertThat(cache.unsentTraits("Company", "1",
+        ImmutableMap.<String, Object>of("plan", "enterprise", "region", "eu")))
+        .isEqualTo(ImmutableMap.<String, Object>of("region", "eu"));
+    assertThat(cache.unsentTraits("Company", "2", traits)).isEqualTo(traits);
+  }
+
+  @Test public void memberships() {
+    GroupStateCache cache = new GroupStateCache(null);
+    assertThat(cache.isMember("Company", "1")).isFalse();
+
+    cache.setMember("Company", "1");
+    assertThat(cache.isMember("Company", "1")).isTrue();
+    assertThat(cache.isMember("Company", "2")).isFalse();
+
+    cache.setMember("Company", "2");
+    assertThat(cache.isMember("Company", "1")).isFalse();
+  }
+
+  @Test public void membershipsArePerUser() {
+    GroupStateCache cache = new GroupStateCache(null);
+    cache.setUser("alice");
+    cache.setMember("Company", "1");
+    cache.unsentTraits("Company", "1", ImmutableMap.of("plan", "pro"));
+
+    cache.setUser("alice");
+    assertThat(cache.isMember("Company", "1")).isTrue();
+
+    cache.setUser("bob");
+    assertThat(cache.isMember("Company", "1")).isFalse();
+    // Traits are on the group's profile, which hasn't changed.
+    assertThat(cache.unsentTraits("Company", "1", ImmutableMap.of("plan", "pro"))).isEmpty();
+  }
+
+  @Test public void survivesRestart() throws Exception {
+    File file = new File(folder.getRoot(), "state/groups");
+    GroupStateCache cache = new GroupStateCache(file);
+    cache.setUser("alice");
+    cache.setMember("Company", "1");
+    cache.unsentTraits("Company", "1", ImmutableMap.of("plan", "pro"));
+    cache.persist();
+
+    GroupStateCache restored = new GroupStateCache(file);
+    restored.setUser("alice");
+    assertThat(restored.isMember("Company", "1")).isTrue();
+    assertThat(restored.unsentTraits("Company", "1", ImmutableMap.of("plan", "pro"))).isEmpty();
+  }
+
+  @Test public void clearDeletesFile() throws Exception {
+    File file = new File(folder.getRoot(), "groups");
+    GroupStateCache cache = new GroupStateCache(file);
+    cache.setMember("Company", "1");
+    cache.persist();
+    assertThat(file.exists()).isTrue();
+
+    cache.clear();
+
+    assertThat(file.exists()).isFalse();
+    assertThat(cache.isMember("Company", "1")).isFalse();
+    assertThat(new GroupStateCache(file).isMember("Company", "1")).isFalse();
+  }
+
+  @Test public void ignoresCorruptFile() throws Exception {
+    File file = folder.newFile("groups");
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[] { 0, 0, 0, 2, 0, 0, 0, 0, 9, 1 });
+    out.close();
+
+    GroupStateCache cache = new GroupStateCache(file);
+    assertThat(cache.isMember("Company", "1")).isFalse();
+  }
+}
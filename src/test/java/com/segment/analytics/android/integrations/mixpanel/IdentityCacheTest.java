@@ -0,0 +1,106 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.integrations.Logger;
+import java.io.File;
+import java.io.FileOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class IdentityCacheTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final Logger logger = Logger.with(Analytics.LogLevel.NONE);
+
+  @Test public void identify() {
+    IdentityCache cache = new IdentityCache(null, logger);
+    assertThat(cache.isIdentified("prateek")).isFalse();
+
+    cache.identified("prateek");
+    assertThat(cache.isIdentified("prateek")).isTrue();
+    assertThat(cache.isPeopleIdentified("prateek")).isFalse();
+
+    cache.identified("bob");
+    assertThat(cache.isIdentified("prateek")).isFalse();
+  }
+
+  @Test public void alias() {
+    IdentityCache cache = new IdentityCache(null, logger);
+    cache.aliased("prateek", "anonymous");
+
+    assertThat(cache.isAliased("prateek", "anonymous")).isTrue();
+    assertThat(cache.isAliased("prateek", "other")).isFalse();
+    assertThat(cache.isAliased("bob", "anonymous")).isFalse();
+  }
+
+  @Test public void forgetsOldestAliases() {
+    IdentityCache cache = new IdentityCache(null, logger);
+    for (int i = 0; i <= IdentityCache.MAX_ALIASES; i++) {
+      cache.aliased("user" + i, "anonymous");
+    }
+
+    assertThat(cache.isAliased("user0", "anonymous")).isFalse();
+    assertThat(cache.isAliased("user1", "anonymous")).isTrue();
+  }
+
+  @Test public void survivesRestart() {
+    File file = new File(folder.getRoot(), "state/identity");
+    IdentityCache cache = new IdentityCache(file, logger);
+    cache.identified("prateek");
+    cache.peopleIdentified("prateek");
+    cache.aliased("prateek", "anonymous");
+
+    IdentityCache restored = new IdentityCache(file, logger);
+    assertThat(restored.isIdentified("prateek")).isTrue();
+    assertThat(restored.isPeopleIdentified("prateek")).isTrue();
+    assertThat(restored.isAliased("prateek", "anonymous")).isTrue();
+  }
+
+  @Test public void clearSurvivesRestart() {
+    File file = new File(folder.getRoot(), "identity");
+    IdentityCache cache = new IdentityCache(file, logger);
+    cache.identified("prateek");
+
+    cache.clear();
+
+    assertThat(cache.isIdentified("prateek")).isFalse();
+    assertThat(new IdentityCache(file, logger).isIdentified("prateek")).isFalse();
+  }
+
+  @Test public void recoversFromTruncatedRecord() throws Exception {
+    File file = new File(folder.getRoot(), "identity");
+    new IdentityCache(file, logger).identified("prateek");
+    FileOutputStream out = new FileOutputStream(file, true);
+    out.write(new byte[] { 'I', 0, 10, 'b' }); // A record cut short by a crash.
+    out.close();
+
+    IdentityCache restored = new IdentityCache(file, logger);
+    assertThat(restored.isIdentified("prateek")).isTrue();
+    restored.identified("bob");
+
+    assertThat(new IdentityCache(file, logger).isIdentified("bob")).isTrue();
+  }
+
+  @Test public void compactsStaleRecords() {
+    File file = new File(folder.getRoot(), "identity");
+    IdentityCache cache = new IdentityCache(file, logger);
+    for (int i = 0; i < 100; i++) {
+      cache.identified("user" + i);
+    }
+    long length = file.length();
+
+    IdentityCache restored = new IdentityCache(file, logger);
+    assertThat(restored.isIdentified("user99")).isTrue();
+    assertThat(file.length()).isLessThan(length);
+    assertThat(new IdentityCache(file, logger).isIdentified("user99")).isTrue();
+  }
+}
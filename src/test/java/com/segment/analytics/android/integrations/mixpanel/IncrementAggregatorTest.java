@@ -0,0 +1,50 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import com.segment.analytics.Properties;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class IncrementAggregatorTest {
+
+  @Test public void accumulatesCountSumAndLastTimestamp() {
+    IncrementAggregator aggregator =
+        new IncrementAggregator(Collections.singletonMap("Played", "seconds"), 1000);
+    aggregator.add("Played", new Properties().putValue("seconds", 2), 0, 100);
+    aggregator.add("Played", new Properties().putValue("seconds", 3.5), 10, 200);
+    aggregator.add("Liked", new Properties(), 20, 300);
+
+    Map<String, IncrementAggregator.Aggregate> drained = aggregator.drain();
+    assertThat(drained).hasSize(2);
+    IncrementAggregator.Aggregate played = drained.get("Played");
+    assertThat(played.count).isEqualTo(2);
+    assertThat(played.sum).isEqualTo(5.5);
+    assertThat(played.lastTimestampMillis).isEqualTo(200);
+    IncrementAggregator.Aggregate liked = drained.get("Liked");
+    assertThat(liked.count).isEqualTo(1);
+    assertThat(liked.sumProperty).isNull();
+    assertThat(aggregator.isEmpty()).isTrue();
+  }
+
+  @Test public void windowStartsAtFirstPendingEvent() {
+    IncrementAggregator aggregator =
+        new IncrementAggregator(Collections.<String, String>emptyMap(), 1000);
+    assertThat(aggregator.isWindowElapsed(5000)).isFalse();
+
+    aggregator.add("Played", new Properties(), 5000, 0);
+    assertThat(aggregator.isWindowElapsed(5999)).isFalse();
+    assertThat(aggregator.isWindowElapsed(6000)).isTrue();
+
+    aggregator.drain();
+    aggregator.add("Played", new Properties(), 7000, 0);
+    assertThat(aggregator.isWindowElapsed(7500)).isFalse();
+  }
+}
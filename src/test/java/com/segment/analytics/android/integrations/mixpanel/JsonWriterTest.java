@@ -0,0 +1,83 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import com.segment.analytics.Properties;
+import com.segment.analytics.Traits;
+import com.segment.analytics.ValueMap;
+import java.util.Arrays;
+import java.util.Collections;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.skyscreamer.jsonassert.JSONAssert;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class JsonWriterTest {
+
+  @Test public void renamesReservedTraits() throws JSONException {
+    Traits traits = new Traits()
+        .putEmail("friends@segment.com")
+        .putPhone("1-844-611-0621")
+        .putFirstName("Prateek")
+        .putLastName("Srivastava")
+        .putUsername("segmentio")
+        .putCreatedAt("15th Feb, 2015");
+
+    JSONObject expected = new JSONObject();
+    expected.put("$email", "friends@segment.com");
+    expected.put("$phone", "1-844-611-0621");
+    expected.put("$first_name", "Prateek");
+    expected.put("$last_name", "Srivastava");
+    expected.put("$username", "segmentio");
+    expected.put("$created", "15th Feb, 2015");
+    JSONAssert.assertEquals(expected, JsonWriter.writeTraits(traits), true);
+  }
+
+  @Test public void matchesValueMapSerialization() throws JSONException {
+    Traits traits = new Traits()
+        .putAge(25)
+        .putValue("address", new ValueMap().putValue("city", "San Francisco"))
+        .putValue("tags", Arrays.asList("a", "b"))
+        .putValue("nothing", null)
+        .putValue("nested", Collections.singletonList(Collections.singletonMap("foo", "bar")));
+
+    JSONAssert.assertEquals(traits.toJsonObject(), JsonWriter.writeTraits(traits), true);
+  }
+
+  @Test public void writesPropertiesWithoutRenaming() throws JSONException {
+    Properties properties = new Properties()
+        .putName("foo")
+        .putRevenue(20)
+        .putValue("email", "friends@segment.com")
+        .putValue("cart", Collections.singletonList(new ValueMap().putValue("sku", "123")));
+
+    JSONAssert.assertEquals(properties.toJsonObject(), JsonWriter.writeProperties(properties),
+        true);
+  }
+
+  @Test public void writesNestedMapKeysAsStrings() throws JSONException {
+    Properties properties = new Properties()
+        .putValue("sizes", Collections.singletonMap(42, Collections.singletonMap("eu", 44)));
+
+    JSONAssert.assertEquals("{\"sizes\":{\"42\":{\"eu\":44}}}",
+        JsonWriter.writeProperties(properties), true);
+  }
+
+  @Test public void leavesOtherKeysAlone() {
+    assertThat(JsonWriter.mixpanelKey("age")).isEqualTo("age");
+    assertThat(JsonWriter.mixpanelKey("$email")).isEqualTo("$email");
+    assertThat(JsonWriter.mixpanelKey("createdAt")).isEqualTo("$created");
+  }
+
+  @Test public void utf8Length() throws Exception {
+    for (String s : new String[] { "", "abc", "caf\u00e9", "\u20ac5", "\ud83d\ude00!" }) {
+      assertThat(JsonWriter.utf8Length(s)).isEqualTo(s.getBytes("UTF-8").length);
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import com.segment.analytics.Properties;
+import com.segment.analytics.ValueMap;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.skyscreamer.jsonassert.JSONAssert;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class LazyJsonObjectTest {
+  private final Properties properties = new Properties()
+      .putName("foo")
+      .putRevenue(20)
+      .putValue("nothing", null)
+      .putValue("ratio", Double.NaN)
+      .putValue("tags", Arrays.asList("a", "b"))
+      .putValue("address", new ValueMap().putValue("city", "San Francisco"))
+      .putValue("cart", Collections.singletonList(new ValueMap().putValue("sku", "123")));
+
+  @Test public void matchesToJsonObject() throws JSONException {
+    JSONObject expected = properties.toJsonObject();
+    LazyJsonObject json = new LazyJsonObject(properties);
+
+    assertThat(json.toString()).isEqualTo(expected.toString());
+    JSONAssert.assertEquals(expected, json, true);
+    assertThat(json.length()).isEqualTo(expected.length());
+    assertThat(json.names().toString()).isEqualTo(expected.names().toString());
+  }
+
+  @Test public void readsLikeToJsonObject() throws JSONException {
+    LazyJsonObject json = new LazyJsonObject(properties);
+
+    assertThat(json.getString("name")).isEqualTo("foo");
+    assertThat(json.getDouble("revenue")).isEqualTo(20.0);
+    assertThat(json.has("nothing")).isTrue();
+    assertThat(json.isNull("nothing")).isTrue();
+    // NaN can't be represented in JSON, so it's left out.
+    assertThat(json.has("ratio")).isFalse();
+    assertThat(json.opt("missing")).isNull();
+    assertThat(json.getJSONObject("address").getString("city")).isEqualTo("San Francisco");
+    try {
+      json.get("missing");
+      fail();
+    } catch (JSONException expected) {
+    }
+  }
+
+  @Test public void matchesJsonWriterForArrays() throws JSONException {
+    Properties properties = new Properties().putValue("ids", new int[] { 1, 2 });
+
+    JSONObject json = new LazyJsonObject(properties);
+
+    assertThat(json.toString()).isEqualTo(JsonWriter.writeProperties(properties).toString());
+    assertThat(json.getJSONArray("ids").getInt(1)).isEqualTo(2);
+  }
+
+  @Test public void copiesLikeMixpanel() throws JSONException {
+    LazyJsonObject json = new LazyJsonObject(properties);
+
+    // Mixpanel merges an event's properties into its own object like this.
+    JSONObject copy = new JSONObject();
+    Iterator<String> keys = json.keys();
+    while (keys.hasNext()) {
+      String key = keys.next();
+      copy.put(key, json.opt(key));
+    }
+
+    assertThat(copy.toString()).isEqualTo(properties.toJsonObject().toString());
+  }
+
+  @Test public void convertsNestedValuesOnlyWhenRead() throws JSONException {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("name", "foo");
+    map.put("nested", new ExplodingMap());
+    LazyJsonObject json = new LazyJsonObject(map);
+
+    assertThat(json.length()).isEqualTo(2);
+    assertThat(json.has("nested")).isTrue();
+    assertThat(json.getString("name")).isEqualTo("foo");
+    try {
+      json.opt("nested");
+      fail();
+    } catch (UnsupportedOperationException expected) {
+    }
+  }
+
+  @Test public void convertsNestedValuesOnce() {
+    LazyJsonObject json = new LazyJsonObject(properties);
+
+    assertThat(json.opt("address")).isSameAs(json.opt("address"));
+    assertThat(json.opt("tags")).isSameAs(json.opt("tags"));
+  }
+
+  @Test public void copiesMapOnFirstChange() throws JSONException {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("name", "foo");
+    map.put("address", new ValueMap().putValue("city", "San Francisco"));
+    LazyJsonObject json = new LazyJsonObject(map);
+    JSONObject address = json.getJSONObject("address");
+
+    json.put("count", 1);
+    map.put("name", "bar");
+    address.put("zip", "94107");
+
+    JSONAssert.assertEquals("{\"name\":\"foo\",\"address\":{\"city\":\"San Francisco\","
+        + "\"zip\":\"94107\"},\"count\":1}", json, true);
+    assertThat(json.remove("name")).isEqualTo("foo");
+    assertThat(json.toString())
+        .isEqualTo("{\"address\":{\"city\":\"San Francisco\",\"zip\":\"94107\"},\"count\":1}");
+  }
+
+  @Test public void empty() {
+    LazyJsonObject json = new LazyJsonObject(new Properties());
+
+    assertThat(json.toString()).isEqualTo("{}");
+    assertThat(json.length()).isEqualTo(0);
+    assertThat(json.names()).isNull();
+    assertThat(json.keys().hasNext()).isFalse();
+  }
+
+  /** A map that fails if anything reads its entries. */
+  static class ExplodingMap extends AbstractMap<String, Object> {
+    @Override public Set<Entry<String, Object>> entrySet() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import java.io.File;
+import java.io.FileOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class MessageIdFilterTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void dropsRepeatedIds() {
+    MessageIdFilter filter = new MessageIdFilter(100, 0.001, 1000, null);
+
+    assertThat(filter.isDuplicate("a", 0)).isFalse();
+    assertThat(filter.isDuplicate("b", 0)).isFalse();
+    assertThat(filter.isDuplicate("a", 10)).isTrue();
+    assertThat(filter.isDuplicate("b", 20)).isTrue();
+    assertThat(filter.duplicateCount()).isEqualTo(2);
+  }
+
+  @Test public void remembersIdsForAtLeastOneWindow() {
+    MessageIdFilter filter = new MessageIdFilter(100, 0.001, 1000, null);
+    filter.isDuplicate("a", 0);
+    filter.isDuplicate("b", 900);
+
+    // Rotated at 1000, "b" is in the previous generation now.
+    assertThat(filter.isDuplicate("c", 1000)).isFalse();
+    assertThat(filter.isDuplicate("b", 1800)).isTrue();
+    // Rotated again at 2000, "b" is gone.
+    assertThat(filter.isDuplicate("d", 2000)).isFalse();
+    assertThat(filter.isDuplicate("b", 2100)).isFalse();
+  }
+
+  @Test public void forgetsEverythingAfterTwoWindows() {
+    MessageIdFilter filter = new MessageIdFilter(100, 0.001, 1000, null);
+    filter.isDuplicate("a", 0);
+
+    assertThat(filter.isDuplicate("a", 2000)).isFalse();
+  }
+
+  @Test public void rotatesWhenFull() {
+    MessageIdFilter filter = new MessageIdFilter(10, 0.001, 1000, null);
+    for (int i = 0; i < 20; i++) {
+      filter.isDuplicate("id-" + i, 0);
+    }
+
+    // The last full generation is still remembered, the one before it isn't.
+    assertThat(filter.isDuplicate("id-19", 0)).isTrue();
+    assertThat(filter.isDuplicate("id-10", 0)).isTrue();
+    assertThat(filter.isDuplicate("id-0", 0)).isFalse();
+  }
+
+  @Test public void falsePositiveRateStaysWithinBound() {
+    MessageIdFilter filter = new MessageIdFilter(10_000, 0.01, 1000, null);
+    for (int i = 0; i < 10_000; i++) {
+      filter.isDuplicate("seen-" + i, 0);
+    }
+
+    long filling = filter.duplicateCount();
+
+    // The first lookup moves the full generation to previous, the lookups then fill current.
+    int falsePositives = 0;
+    for (int i = 0; i < 10_000; i++) {
+      if (filter.isDuplicate("new-" + i, 0)) {
+        falsePositives++;
+      }
+    }
+    assertThat(falsePositives).isLessThan(100);
+    assertThat(filter.duplicateCount() - filling).isEqualTo(falsePositives);
+    assertThat(filter.falsePositiveRate()).isLessThan(0.01);
+  }
+
+  @Test public void estimatesFalsePositiveRate() {
+    MessageIdFilter filter = new MessageIdFilter(1000, 0.01, 1000, null);
+    assertThat(filter.falsePositiveRate()).isEqualTo(0.0);
+
+    for (int i = 0; i < 999; i++) {
+      filter.isDuplicate("id-" + i, 0);
+    }
+    // A full generation uses up about half of the budget.
+    assertThat(filter.falsePositiveRate()).isCloseTo(0.005, offset(0.002));
+  }
+
+  @Test public void sizeFollowsCapacityAndRate() {
+    assertThat(new MessageIdFilter(10_000, 0.001, 1000, null).sizeBytes())
+        .isBetween(38_000, 42_000);
+    assertThat(new MessageIdFilter(1000, 0.001, 1000, null).sizeBytes())
+        .isBetween(3_800, 4_200);
+  }
+
+  @Test public void survivesRestart() throws Exception {
+    File file = new File(folder.getRoot(), "state/message-ids");
+    MessageIdFilter filter = new MessageIdFilter(100, 0.001, 1000, file);
+    filter.load();
+    filter.isDuplicate("a", 0);
+    filter.persist();
+
+    MessageIdFilter restored = new MessageIdFilter(100, 0.001, 1000, file);
+    restored.load();
+    assertThat(restored.isDuplicate("a", 500)).isTrue();
+    assertThat(restored.isDuplicate("b", 500)).isFalse();
+  }
+
+  @Test public void ignoresFileSizedDifferently() throws Exception {
+    File file = folder.newFile("message-ids");
+    MessageIdFilter filter = new MessageIdFilter(100, 0.001, 1000, file);
+    filter.load();
+    filter.isDuplicate("a", 0);
+    filter.persist();
+
+    MessageIdFilter resized = new MessageIdFilter(1000, 0.001, 1000, file);
+    resized.load();
+    assertThat(resized.isDuplicate("a", 0)).isFalse();
+  }
+
+  @Test public void ignoresCorruptFile() throws Exception {
+    File file = folder.newFile("message-ids");
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[] { 0, 0, 0, 1, 0 });
+    out.close();
+
+    MessageIdFilter filter = new MessageIdFilter(100, 0.001, 1000, file);
+    filter.load();
+    assertThat(filter.isDuplicate("a", 0)).isFalse();
+    assertThat(filter.isDuplicate("a", 0)).isTrue();
+  }
+
+  @Test public void mergesIdsSeenBeforeLoading() throws Exception {
+    File file = folder.newFile("message-ids");
+    MessageIdFilter filter = new MessageIdFilter(100, 0.001, 1000, file);
+    filter.isDuplicate("a", 0);
+    filter.load();
+    filter.persist();
+
+    MessageIdFilter restored = new MessageIdFilter(100, 0.001, 1000, file);
+    restored.isDuplicate("b", 500);
+    // Nothing is written before the file is read, it would lose "a".
+    restored.persist();
+    restored.load();
+
+    assertThat(restored.isDuplicate("a", 600)).isTrue();
+    assertThat(restored.isDuplicate("b", 600)).isTrue();
+    assertThat(restored.isDuplicate("c", 600)).isFalse();
+    // Still the generation started at 0, so "a" is forgotten after two windows.
+    assertThat(restored.isDuplicate("a", 2000)).isFalse();
+  }
+
+  @Test public void dropsLoadedIdsOutsideTheWindow() throws Exception {
+    File file = folder.newFile("message-ids");
+    MessageIdFilter filter = new MessageIdFilter(100, 0.001, 1000, file);
+    filter.isDuplicate("a", 0);
+    filter.load();
+    filter.persist();
+
+    MessageIdFilter restored = new MessageIdFilter(100, 0.001, 1000, file);
+    restored.isDuplicate("b", 5000);
+    restored.load();
+
+    assertThat(restored.isDuplicate("a", 5000)).isFalse();
+    assertThat(restored.isDuplicate("b", 5000)).isTrue();
+  }
+}
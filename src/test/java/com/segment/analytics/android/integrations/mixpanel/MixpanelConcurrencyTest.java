@@ -0,0 +1,228 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.Properties;
+import com.segment.analytics.integrations.GroupPayload;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.test.IdentifyPayloadBuilder;
+import com.segment.analytics.test.ScreenPayloadBuilder;
+import com.segment.analytics.test.TrackPayloadBuilder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.segment.analytics.Utils.createTraits;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Calls the integration from several threads at once and checks that every payload reaches
+ * Mixpanel, that Mixpanel is never called from two threads at the same time, and that the
+ * counters add up.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class MixpanelConcurrencyTest {
+  private static final int THREADS = 8;
+  private static final int CALLS_PER_THREAD = 1000;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+  private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+  private final Recorder recorder = new Recorder();
+  private final MixpanelAPI.Group group = mock(MixpanelAPI.Group.class, recorder);
+  private final MixpanelAPI.People people = mock(MixpanelAPI.People.class, recorder);
+  private final MixpanelAPI mixpanel = mock(MixpanelAPI.class, withSettings().stubOnly()
+      .defaultAnswer(recorder));
+
+  @After public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test public void inlineTracks() throws Exception {
+    concurrentTracks(new MixpanelOptions.Builder());
+  }
+
+  @Test public void asyncTracks() throws Exception {
+    concurrentTracks(new MixpanelOptions.Builder().asyncDispatch(true));
+  }
+
+  private void concurrentTracks(MixpanelOptions.Builder options) throws Exception {
+    MixpanelMetrics metrics = new MixpanelMetrics();
+    final MixpanelIntegration integration = integration(options.metricsListener(metrics));
+
+    run(new Task() {
+      @Override public void call(int thread, int i) {
+        integration.track(new TrackPayloadBuilder().event(i % 10 == 0 ? "Purchased" : "Viewed")
+            .properties(new Properties().putValue("thread", thread).putValue("i", i))
+            .build());
+      }
+    });
+    integration.flush();
+
+    int total = THREADS * CALLS_PER_THREAD;
+    assertThat(recorder.count("track")).isEqualTo(total);
+    // "Purchased" is an increment event.
+    assertThat(recorder.count("increment")).isEqualTo(total / 10);
+    assertThat(metrics.callCount(MixpanelMetricsListener.Call.TRACK)).isEqualTo(total);
+    assertThat(recorder.overlaps.get()).isEqualTo(0);
+  }
+
+  @Test public void inlineMixedCalls() throws Exception {
+    mixedCalls(new MixpanelOptions.Builder());
+  }
+
+  @Test public void asyncMixedCalls() throws Exception {
+    mixedCalls(new MixpanelOptions.Builder().asyncDispatch(true));
+  }
+
+  private void mixedCalls(MixpanelOptions.Builder options) throws Exception {
+    final MixpanelIntegration integration = integration(options.cacheGroupState(true)
+        .cacheIdentity(true)
+        .deduplicateEvents(true)
+        .serializationCacheSize(16)
+        .storageDirectory(folder.getRoot()));
+    final AtomicInteger tracks = new AtomicInteger();
+
+    run(new Task() {
+      @Override public void call(int thread, int i) {
+        String userId = "user" + thread;
+        switch (i % 50) {
+          case 0:
+            integration.identify(new IdentifyPayloadBuilder()
+                .traits(createTraits(userId).putValue("step", i))
+                .build());
+            break;
+          case 1:
+            integration.group(new GroupPayload.Builder().userId(userId)
+                .groupId("group" + (i % 3))
+                .build());
+            break;
+          case 2:
+            integration.screen(new ScreenPayloadBuilder().name("Home").build());
+            break;
+          case 3:
+            integration.flush();
+            break;
+          case 4:
+            if (thread == 0) {
+              integration.reset();
+            }
+            break;
+          default:
+            integration.track(new TrackPayloadBuilder().event("Viewed").build());
+            tracks.incrementAndGet();
+        }
+      }
+    });
+    integration.flush();
+
+    int screens = THREADS * CALLS_PER_THREAD / 50;
+    // Every message id is new, so any duplicates are the filters' rare false positives.
+    long falsePositives = integration.getDuplicateEvents();
+    assertThat(falsePositives).isLessThan(10);
+    assertThat((long) recorder.count("track")).isEqualTo(tracks.get() + screens - falsePositives);
+    assertThat(recorder.overlaps.get()).isEqualTo(0);
+  }
+
+  @Test public void rateLimitsHoldAcrossThreads() throws Exception {
+    final MixpanelIntegration integration =
+        integration(new MixpanelOptions.Builder().rateLimitEvent("Limited", 100));
+
+    run(new Task() {
+      @Override public void call(int thread, int i) {
+        integration.track(new TrackPayloadBuilder().event("Limited").build());
+      }
+    });
+
+    int sent = recorder.count("track");
+    // The bucket refills by one or two events while the test runs.
+    assertThat(sent).isBetween(100, 110);
+    assertThat(integration.getThrottledEvents()).isEqualTo(THREADS * CALLS_PER_THREAD - sent);
+  }
+
+  private MixpanelIntegration integration(MixpanelOptions.Builder options) {
+    return new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setMixpanelPeople(people)
+        .setIsPeopleEnabled(true)
+        .setIncrements(Collections.singleton("Purchased"))
+        .setLogger(Logger.with(Analytics.LogLevel.NONE))
+        .setOptions(options.build())
+        .createMixpanelIntegration();
+  }
+
+  /** Calls {@code task} {@link #CALLS_PER_THREAD} times on each of {@link #THREADS} threads. */
+  private void run(final Task task) throws Exception {
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Future<Void>> futures = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      final int thread = t;
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override public Void call() throws Exception {
+          start.await();
+          for (int i = 0; i < CALLS_PER_THREAD; i++) {
+            task.call(thread, i);
+          }
+          return null;
+        }
+      }));
+    }
+    start.countDown();
+    for (Future<Void> future : futures) {
+      // Rethrows anything a thread failed with.
+      future.get(30, TimeUnit.SECONDS);
+    }
+  }
+
+  interface Task {
+    void call(int thread, int i);
+  }
+
+  /** Counts Mixpanel calls by method name and notices calls that overlap. */
+  class Recorder implements Answer<Object> {
+    final AtomicInteger overlaps = new AtomicInteger();
+    private final AtomicInteger inside = new AtomicInteger();
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override public Object answer(InvocationOnMock invocation) throws Throwable {
+      if (inside.incrementAndGet() > 1) {
+        overlaps.incrementAndGet();
+      }
+      try {
+        calls.add(invocation.getMethod().getName());
+        Thread.yield();
+        if (invocation.getMethod().getReturnType() == MixpanelAPI.Group.class) {
+          return group;
+        }
+        return RETURNS_DEFAULTS.answer(invocation);
+      } finally {
+        inside.decrementAndGet();
+      }
+    }
+
+    int count(String method) {
+      synchronized (calls) {
+        return Collections.frequency(calls, method);
+      }
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.integrations.Logger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class MixpanelDispatcherTest {
+  private final Logger logger = Logger.with(Analytics.LogLevel.NONE);
+  private final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+  @Test public void runsTasksInOrder() {
+    MixpanelDispatcher dispatcher =
+        new MixpanelDispatcher(10, MixpanelOptions.OverflowPolicy.BLOCK, logger);
+    for (int i = 0; i < 5; i++) {
+      dispatcher.enqueue(record("task" + i), i % 2 == 0);
+    }
+    dispatcher.drain();
+
+    assertThat(ran).containsExactly("task0", "task1", "task2", "task3", "task4");
+    assertThat(dispatcher.size()).isEqualTo(0);
+  }
+
+  @Test public void dropNewestDiscardsIncomingDroppableTask() throws InterruptedException {
+    MixpanelDispatcher dispatcher =
+        new MixpanelDispatcher(1, MixpanelOptions.OverflowPolicy.DROP_NEWEST, logger);
+    CountDownLatch release = blockWorker(dispatcher);
+
+    assertThat(dispatcher.enqueue(record("queued"), true)).isTrue();
+    assertThat(dispatcher.enqueue(record("dropped"), true)).isFalse();
+    release.countDown();
+    dispatcher.drain();
+
+    assertThat(ran).containsExactly("queued");
+    assertThat(dispatcher.droppedCount()).isEqualTo(1);
+  }
+
+  @Test public void dropOldestEvictsQueuedDroppableTask() throws InterruptedException {
+    MixpanelDispatcher dispatcher =
+        new MixpanelDispatcher(2, MixpanelOptions.OverflowPolicy.DROP_OLDEST, logger);
+    CountDownLatch release = blockWorker(dispatcher);
+
+    dispatcher.enqueue(record("identify"), false);
+    dispatcher.enqueue(record("track1"), true);
+    assertThat(dispatcher.enqueue(record("track2"), true)).isFalse();
+    release.countDown();
+    dispatcher.drain();
+
+    assertThat(ran).containsExactly("identify", "track2");
+    assertThat(dispatcher.droppedCount()).isEqualTo(1);
+  }
+
+  @Test public void failingTaskDoesNotStopWorker() {
+    MixpanelDispatcher dispatcher =
+        new MixpanelDispatcher(10, MixpanelOptions.OverflowPolicy.BLOCK, logger);
+    dispatcher.enqueue(new Runnable() {
+      @Override public void run() {
+        throw new IllegalStateException("boom");
+      }
+    }, true);
+    dispatcher.enqueue(record("after"), true);
+    dispatcher.drain();
+
+    assertThat(ran).containsExactly("after");
+  }
+
+  @Test public void taskThrowingAnErrorDoesNotStopWorker() {
+    MixpanelDispatcher dispatcher =
+        new MixpanelDispatcher(10, MixpanelOptions.OverflowPolicy.BLOCK, logger);
+    dispatcher.enqueue(new Runnable() {
+      @Override public void run() {
+        throw new UnsatisfiedLinkError("boom");
+      }
+    }, false);
+    dispatcher.enqueue(record("after"), false);
+    dispatcher.drain();
+
+    assertThat(ran).containsExactly("after");
+  }
+
+  @Test public void idleWorkerStopsAndRestarts() throws InterruptedException {
+    MixpanelDispatcher dispatcher =
+        new MixpanelDispatcher(10, MixpanelOptions.OverflowPolicy.BLOCK, logger, 10);
+    assertThat(dispatcher.isWorkerAlive()).isFalse();
+
+    dispatcher.enqueue(record("first"), false);
+    dispatcher.drain();
+    for (int i = 0; i < 100 && dispatcher.isWorkerAlive(); i++) {
+      Thread.sleep(10);
+    }
+    assertThat(dispatcher.isWorkerAlive()).isFalse();
+
+    dispatcher.enqueue(record("second"), false);
+    dispatcher.drain();
+    assertThat(ran).containsExactly("first", "second");
+  }
+
+  /** Occupies the worker thread until the returned latch is released. */
+  private CountDownLatch blockWorker(MixpanelDispatcher dispatcher) throws InterruptedException {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    dispatcher.enqueue(new Runnable() {
+      @Override public void run() {
+        started.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, false);
+    started.await();
+    return release;
+  }
+
+  private Runnable record(final String name) {
+    return new Runnable() {
+      @Override public void run() {
+        ran.add(name);
+      }
+    };
+  }
+}
@@ -20,6 +20,7 @@ class MixpanelIntegrationBuilder {
   private boolean setAllTraitsByDefault;
   private Set<String> peopleProperties;
   private Set<String> superProperties;
+  private MixpanelOptions options;
 
   MixpanelIntegrationBuilder() {
     isPeopleEnabled = false;
@@ -32,6 +33,7 @@ class MixpanelIntegrationBuilder {
     setAllTraitsByDefault = true;
     peopleProperties = Collections.emptySet();
     superProperties = Collections.emptySet();
+    options = MixpanelOptions.DEFAULT;
     logger = Logger.with(Analytics.LogLevel.DEBUG);
   }
 
@@ -100,9 +102,14 @@ class MixpanelIntegrationBuilder {
     return this;
   }
 
+  MixpanelIntegrationBuilder setOptions(MixpanelOptions options) {
+    this.options = options;
+    return this;
+  }
+
   MixpanelIntegration createMixpanelIntegration() {
     return new MixpanelIntegration(mixpanel, mixpanelPeople, isPeopleEnabled, consolidatedPageCalls,
         trackAllPages, trackCategorizedPages, trackNamedPages, token, logger, increments,
-        setAllTraitsByDefault, peopleProperties, superProperties);
+        setAllTraitsByDefault, peopleProperties, superProperties, options);
   }
 }
\ No newline at end of file
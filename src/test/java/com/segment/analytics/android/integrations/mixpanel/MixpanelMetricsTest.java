@@ -0,0 +1,48 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import com.segment.analytics.android.integrations.mixpanel.MixpanelMetricsListener.Call;
+import com.segment.analytics.android.integrations.mixpanel.MixpanelMetricsListener.Drop;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class MixpanelMetricsTest {
+
+  @Test public void buckets() {
+    assertThat(MixpanelMetrics.bucket(0)).isEqualTo(0);
+    assertThat(MixpanelMetrics.bucket(1)).isEqualTo(1);
+    assertThat(MixpanelMetrics.bucket(3)).isEqualTo(2);
+    assertThat(MixpanelMetrics.bucket(4)).isEqualTo(3);
+    assertThat(MixpanelMetrics.bucket(Long.MAX_VALUE)).isEqualTo(MixpanelMetrics.BUCKETS - 1);
+
+    assertThat(MixpanelMetrics.bucketUpperBoundMicros(3)).isEqualTo(8);
+    assertThat(MixpanelMetrics.bucketUpperBoundMicros(MixpanelMetrics.BUCKETS - 1))
+        .isEqualTo(Long.MAX_VALUE);
+  }
+
+  @Test public void accumulatesPerCall() {
+    MixpanelMetrics metrics = new MixpanelMetrics();
+    metrics.onCall(Call.TRACK);
+    metrics.onCall(Call.TRACK);
+    metrics.onCall(Call.IDENTIFY);
+    metrics.onSerialized(Call.TRACK, 500, 10);
+    metrics.onSerialized(Call.TRACK, 3000, 20);
+    metrics.onDropped(Drop.QUEUE_FULL);
+
+    assertThat(metrics.callCount(Call.TRACK)).isEqualTo(2);
+    assertThat(metrics.callCount(Call.IDENTIFY)).isEqualTo(1);
+    assertThat(metrics.callCount(Call.SCREEN)).isEqualTo(0);
+    assertThat(metrics.payloadBytes(Call.TRACK)).isEqualTo(30);
+    long[] histogram = metrics.serializationHistogram(Call.TRACK);
+    assertThat(histogram[0]).isEqualTo(1);
+    assertThat(histogram[2]).isEqualTo(1);
+    assertThat(metrics.droppedCount(Drop.QUEUE_FULL)).isEqualTo(1);
+    assertThat(metrics.droppedCount(Drop.THROTTLED)).isEqualTo(0);
+  }
+}
@@ -0,0 +1,55 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import com.segment.analytics.ValueMap;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class MixpanelSettingsTest {
+
+  @Test public void defaults() {
+    MixpanelSettings settings = MixpanelSettings.fromSettings(new ValueMap());
+
+    assertThat(settings.consolidatedPageCalls).isTrue();
+    assertThat(settings.trackAllPages).isFalse();
+    assertThat(settings.trackCategorizedPages).isFalse();
+    assertThat(settings.trackNamedPages).isFalse();
+    assertThat(settings.increments).isEmpty();
+    assertThat(settings.lastEventKeys).isEmpty();
+    assertThat(settings.setAllTraitsByDefault).isTrue();
+    assertThat(settings.peopleProperties).isEmpty();
+    assertThat(settings.superProperties).isEmpty();
+  }
+
+  @Test public void fromSettings() {
+    MixpanelSettings settings = MixpanelSettings.fromSettings(new ValueMap()
+        .putValue("consolidatedPageCalls", false)
+        .putValue("trackAllPages", true)
+        .putValue("increments", Arrays.asList("Purchased", "Shared"))
+        .putValue("setAllTraitsByDefault", false)
+        .putValue("peopleProperties", Arrays.asList("email"))
+        .putValue("superProperties", Arrays.asList("plan")));
+
+    assertThat(settings.consolidatedPageCalls).isFalse();
+    assertThat(settings.trackAllPages).isTrue();
+    assertThat(settings.increments).hasSize(2).contains("Purchased", "Shared");
+    assertThat(settings.lastEventKeys.get("Purchased")).isEqualTo("Last Purchased");
+    assertThat(settings.lastEventKeys.get("Shared")).isEqualTo("Last Shared");
+    assertThat(settings.setAllTraitsByDefault).isFalse();
+    assertThat(settings.peopleProperties).containsExactly("email");
+    assertThat(settings.superProperties).containsExactly("plan");
+  }
+
+  @Test(expected = UnsupportedOperationException.class) public void isImmutable() {
+    MixpanelSettings settings = MixpanelSettings.fromSettings(
+        new ValueMap().putValue("increments", Arrays.asList("Purchased")));
+    settings.increments.add("Shared");
+  }
+}
@@ -2,6 +2,7 @@ package com.segment.analytics.android.integrations.mixpanel;
 
 import android.app.Activity;
 import android.app.Application;
+import android.content.Context;
 import android.os.Build;
 import android.os.Bundle;
 import com.google.common.collect.ImmutableMap;
@@ -10,23 +11,34 @@ import com.segment.analytics.Analytics;
 import com.segment.analytics.Properties;
 import com.segment.analytics.Traits;
 import com.segment.analytics.ValueMap;
+import com.segment.analytics.integrations.AliasPayload;
 import com.segment.analytics.integrations.GroupPayload;
 import com.segment.analytics.integrations.IdentifyPayload;
 import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.ScreenPayload;
+import com.segment.analytics.integrations.TrackPayload;
 import com.segment.analytics.test.AliasPayloadBuilder;
 import com.segment.analytics.test.IdentifyPayloadBuilder;
 import com.segment.analytics.test.ScreenPayloadBuilder;
 import com.segment.analytics.test.TrackPayloadBuilder;
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
@@ -40,16 +52,22 @@ import static com.segment.analytics.Utils.createTraits;
 import static com.segment.analytics.android.integrations.mixpanel.MixpanelIntegration.filter;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyMapOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.refEq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.MockitoAnnotations.initMocks;
 import static org.powermock.api.mockito.PowerMockito.mock;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
 import static org.powermock.api.mockito.PowerMockito.verifyNoMoreInteractions;
+import static org.powermock.api.mockito.PowerMockito.verifyStatic;
 import static org.powermock.api.mockito.PowerMockito.when;
 
 @RunWith(RobolectricTestRunner.class)
@@ -57,6 +75,7 @@ import static org.powermock.api.mockito.PowerMockito.when;
 @PowerMockIgnore({ "org.mockito.*", "org.robolectric.*", "android.*", "org.json.*" })
 @PrepareForTest(MixpanelAPI.class) public class MixpanelTest {
 
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
   @Rule public PowerMockRule rule = new PowerMockRule();
   @Mock MixpanelAPI mixpanel;
   @Mock Application context;
@@ -93,11 +112,11 @@ import static org.powermock.api.mockito.PowerMockito.when;
     verify(mixpanel, never()).getPeople();
 
     assertThat(integration.token).isEqualTo("foo");
-    assertThat(integration.trackAllPages).isTrue();
-    assertThat(integration.trackCategorizedPages).isFalse();
-    assertThat(integration.trackNamedPages).isTrue();
-    assertThat(integration.increments).isNotNull().isEmpty();
-    assertThat(integration.setAllTraitsByDefault).isTrue();
+    assertThat(integration.settings().trackAllPages).isTrue();
+    assertThat(integration.settings().trackCategorizedPages).isFalse();
+    assertThat(integration.settings().trackNamedPages).isTrue();
+    assertThat(integration.settings().increments).isNotNull().isEmpty();
+    assertThat(integration.settings().setAllTraitsByDefault).isTrue();
   }
 
   @Test public void initializeWithIncrementsAndPeople() throws IllegalStateException {
@@ -114,12 +133,12 @@ import static org.powermock.api.mockito.PowerMockito.when;
     MixpanelAPI.getInstance(context, "foo", false);
     verify(mixpanel).getPeople();
     assertThat(integration.token).isEqualTo("foo");
-    assertThat(integration.trackAllPages).isTrue();
-    assertThat(integration.trackCategorizedPages).isFalse();
-    assertThat(integration.trackNamedPages).isTrue();
+    assertThat(integration.settings().trackAllPages).isTrue();
+    assertThat(integration.settings().trackCategorizedPages).isFalse();
+    assertThat(integration.settings().trackNamedPages).isTrue();
     verify(mixpanel).getPeople();
     // Don't use containsExactly since the ordering differs between JDK versions.
-    assertThat(integration.increments).hasSize(3).contains("qux", "baz", "qaz");
+    assertThat(integration.settings().increments).hasSize(3).contains("qux", "baz", "qaz");
   }
 
   @Test public void activityCreate() {
@@ -130,6 +149,31 @@ import static org.powermock.api.mockito.PowerMockito.when;
     verifyNoMoreInteractions(mixpanel);
   }
 
+  @Test public void activityCreateWithoutAppLinkSkipsGetInstance() {
+    Activity activity = mock(Activity.class);
+
+    integration.onActivityCreated(activity, null);
+
+    verifyStatic(MixpanelAPI.class, never());
+    MixpanelAPI.getInstance(any(Context.class), anyString(), anyBoolean());
+    assertThat(integration.getSkippedAppLinkChecks()).isEqualTo(1);
+  }
+
+  @Test public void activityCreateWithAppLinkPredicate() {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setOptions(new MixpanelOptions.Builder()
+            .appLinkPredicate(MixpanelOptions.AppLinkPredicate.ALWAYS)
+            .build())
+        .createMixpanelIntegration();
+    Activity activity = mock(Activity.class);
+
+    integration.onActivityCreated(activity, null);
+
+    verifyStatic(MixpanelAPI.class);
+    MixpanelAPI.getInstance(activity, "foo", false);
+    assertThat(integration.getSkippedAppLinkChecks()).isEqualTo(0);
+  }
+
   @Test public void activityStart() {
     Activity activity = mock(Activity.class);
     integration.onActivityStarted(activity);
@@ -190,6 +234,19 @@ import static org.powermock.api.mockito.PowerMockito.when;
     verifyNoMoreMixpanelInteractions();
   }
 
+  @Test public void screenAllPagesCachesEventName() {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setConsolidatedPageCalls(false)
+        .setTrackAllPages(true)
+        .createMixpanelIntegration();
+
+    integration.screen(new ScreenPayloadBuilder().name("foo").build());
+    integration.screen(new ScreenPayloadBuilder().name("foo").build());
+    verify(mixpanel, times(2)).track(eq("Viewed foo Screen"), jsonEq(new JSONObject()));
+    assertThat(integration.getScreenNameCacheHits()).isEqualTo(1);
+    assertThat(integration.getScreenNameCacheMisses()).isEqualTo(1);
+  }
+
   @Test public void screenConsolidatedPages() {
     integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
         .setMixpanelPeople(mixpanelPeople)
@@ -204,6 +261,24 @@ import static org.powermock.api.mockito.PowerMockito.when;
     verifyNoMoreMixpanelInteractions();
   }
 
+  @Test public void screenConsolidatedPagesWithProperties() throws JSONException {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setMixpanelPeople(mixpanelPeople)
+        .setIsPeopleEnabled(true)
+        .createMixpanelIntegration();
+
+    Properties properties = new Properties().putValue("name", "ignored").putRevenue(20);
+    integration.screen(new ScreenPayloadBuilder().name("foo").properties(properties).build());
+
+    JSONObject expected = new JSONObject();
+    expected.put("name", "foo");
+    expected.put("revenue", 20.0);
+    verify(mixpanel).track(eq("Loaded a Screen"), jsonEq(expected));
+    verify(mixpanelPeople).trackCharge(eq(20.0), jsonEq(expected));
+    verifyNoMoreMixpanelInteractions();
+    assertThat(properties.get("name")).isEqualTo("ignored");
+  }
+
   @Test public void screenNamedPages() {
     integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
         .setMixpanelPeople(mixpanelPeople)
@@ -242,6 +317,22 @@ import static org.powermock.api.mockito.PowerMockito.when;
     verifyNoMoreMixpanelInteractions();
   }
 
+  @Test public void trackSampledAndRateLimited() {
+    ValueMap settings = new ValueMap().putValue("token", "foo")
+        .putValue("sampledEvents", new ValueMap().putValue("Scrolled", 0.0))
+        .putValue("rateLimits", new ValueMap().putValue("Played", 1));
+    integration = (MixpanelIntegration) MixpanelIntegration.FACTORY.create(settings, analytics);
+
+    integration.track(new TrackPayloadBuilder().event("Scrolled").build());
+    integration.track(new TrackPayloadBuilder().event("Played").build());
+    integration.track(new TrackPayloadBuilder().event("Played").build());
+
+    verify(mixpanel).track(eq("Played"), jsonEq(new JSONObject()));
+    verify(mixpanel, never()).track(eq("Scrolled"), any(JSONObject.class));
+    assertThat(integration.getSampledOutEvents()).isEqualTo(1);
+    assertThat(integration.getThrottledEvents()).isEqualTo(1);
+  }
+
   @Test public void trackIncrement() {
     integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
         .setMixpanelPeople(mixpanelPeople)
@@ -261,6 +352,87 @@ import static org.powermock.api.mockito.PowerMockito.when;
     verifyNoMoreMixpanelInteractions();
   }
 
+  @Test public void trackIncrementPattern() {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setMixpanelPeople(mixpanelPeople)
+        .setIsPeopleEnabled(true)
+        .setIncrements(Collections.singleton("checkout_*"))
+        .createMixpanelIntegration();
+
+    integration.track(new TrackPayloadBuilder().event("checkout_started").build());
+    integration.track(new TrackPayloadBuilder().event("checkout").build());
+
+    verify(mixpanelPeople).increment("checkout_started", 1);
+    verify(mixpanelPeople).set(eq("Last checkout_started"), any());
+    verify(mixpanelPeople, never()).increment("checkout", 1);
+  }
+
+  @Test public void trackIncrementAggregated() throws JSONException {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setMixpanelPeople(mixpanelPeople)
+        .setIsPeopleEnabled(true)
+        .setIncrements(Collections.singleton("baz"))
+        .setOptions(new MixpanelOptions.Builder().aggregateIncrements(true)
+            .sumIncrementProperty("baz", "seconds")
+            .build())
+        .createMixpanelIntegration();
+
+    for (int i = 1; i <= 3; i++) {
+      integration.track(new TrackPayloadBuilder().event("baz")
+          .properties(new Properties().putValue("seconds", i))
+          .build());
+    }
+    verify(mixpanelPeople, never()).increment(anyString(), anyDouble());
+    verify(mixpanelPeople, never()).increment(anyMapOf(String.class, Double.class));
+
+    integration.flush();
+
+    verify(mixpanelPeople).increment(eq(ImmutableMap.of("baz", 3.0, "baz seconds", 6.0)));
+    ArgumentCaptor<JSONObject> lastEvents = ArgumentCaptor.forClass(JSONObject.class);
+    verify(mixpanelPeople).set(lastEvents.capture());
+    assertThat(lastEvents.getValue().has("Last baz")).isTrue();
+    verify(mixpanelPeople, never()).set(eq("Last baz"), any());
+  }
+
+  @Test public void aggregatedIncrementsSentBeforeIdentityChanges() {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setMixpanelPeople(mixpanelPeople)
+        .setIsPeopleEnabled(true)
+        .setIncrements(Collections.singleton("baz"))
+        .setOptions(new MixpanelOptions.Builder().aggregateIncrements(true).build())
+        .createMixpanelIntegration();
+
+    integration.identify(new IdentifyPayloadBuilder().traits(createTraits("prateek")).build());
+    integration.track(new TrackPayloadBuilder().event("baz").build());
+    integration.track(new TrackPayloadBuilder().event("baz").build());
+    integration.identify(new IdentifyPayloadBuilder().traits(createTraits("prateek")).build());
+    integration.identify(new IdentifyPayloadBuilder().traits(createTraits("bob")).build());
+    integration.track(new TrackPayloadBuilder().event("baz").build());
+    integration.flush();
+
+    InOrder inOrder = inOrder(mixpanelPeople);
+    inOrder.verify(mixpanelPeople).identify("prateek");
+    inOrder.verify(mixpanelPeople).increment(eq(ImmutableMap.of("baz", 2.0)));
+    inOrder.verify(mixpanelPeople).identify("bob");
+    inOrder.verify(mixpanelPeople).increment(eq(ImmutableMap.of("baz", 1.0)));
+  }
+
+  @Test public void aggregatedIncrementsSentWhenActivityStops() {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setMixpanelPeople(mixpanelPeople)
+        .setIsPeopleEnabled(true)
+        .setIncrements(Collections.singleton("baz"))
+        .setOptions(new MixpanelOptions.Builder().aggregateIncrements(true).build())
+        .createMixpanelIntegration();
+
+    integration.track(new TrackPayloadBuilder().event("baz").build());
+    integration.onActivityStopped(mock(Activity.class));
+    integration.onActivityStopped(mock(Activity.class));
+
+    verify(mixpanelPeople).increment(eq(ImmutableMap.of("baz", 1.0)));
+    verify(mixpanelPeople).set(any(JSONObject.class));
+  }
+
   @Test public void trackIncrementWithoutPeople() {
     // Disabling people should do a regular track call
     integration.track(new TrackPayloadBuilder().event("baz").build());
@@ -399,6 +571,91 @@ import static org.powermock.api.mockito.PowerMockito.when;
   }
 
 
+  @Test public void identifyWithPropertyPatterns() throws JSONException {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setMixpanelPeople(mixpanelPeople)
+        .setIsPeopleEnabled(true)
+        .setPeopleProperties(Collections.singleton("parasite_*"))
+        .setSetAllTraitsByDefault(false)
+        .createMixpanelIntegration();
+
+    Traits traits = createTraits("foo").putValue("parasite_name", "Pencilvester")
+        .putValue("parasite_kind", "Memory")
+        .putValue("parasites", 1);
+    JSONObject expected = new JSONObject();
+    expected.put("parasite_name", "Pencilvester");
+    expected.put("parasite_kind", "Memory");
+
+    integration.identify(new IdentifyPayloadBuilder().traits(traits).build());
+    verify(mixpanel).identify("foo");
+    verify(mixpanelPeople).set(jsonEq(expected));
+    verify(mixpanelPeople).identify("foo");
+    verifyNoMoreMixpanelInteractions();
+  }
+
+  @Test public void identifySkipsUnchangedProperties() throws JSONException {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setMixpanelPeople(mixpanelPeople)
+        .setIsPeopleEnabled(true)
+        .createMixpanelIntegration();
+
+    integration.identify(new IdentifyPayload.Builder()
+        .userId("prateek")
+        .traits(new Traits().putAge(25).putValue("plan", "free"))
+        .build());
+    integration.identify(new IdentifyPayload.Builder()
+        .userId("prateek")
+        .traits(new Traits().putAge(25).putValue("plan", "free"))
+        .build());
+    integration.identify(new IdentifyPayload.Builder()
+        .userId("prateek")
+        .traits(new Traits().putAge(25).putValue("plan", "pro"))
+        .build());
+
+    ArgumentCaptor<JSONObject> superProperties = ArgumentCaptor.forClass(JSONObject.class);
+    verify(mixpanel, times(2)).registerSuperProperties(superProperties.capture());
+    ArgumentCaptor<JSONObject> peopleProperties = ArgumentCaptor.forClass(JSONObject.class);
+    verify(mixpanelPeople, times(2)).set(peopleProperties.capture());
+    JSONObject initial = new JSONObject(ImmutableMap.of("age", 25, "plan", "free"));
+    JSONObject changed = new JSONObject(ImmutableMap.of("plan", "pro"));
+    JSONAssert.assertEquals(initial, superProperties.getAllValues().get(0), true);
+    JSONAssert.assertEquals(changed, superProperties.getAllValues().get(1), true);
+    JSONAssert.assertEquals(initial, peopleProperties.getAllValues().get(0), true);
+    JSONAssert.assertEquals(changed, peopleProperties.getAllValues().get(1), true);
+    assertThat(integration.getSuppressedPropertyWrites()).isEqualTo(2);
+  }
+
+  @Test public void identifyResendsPeoplePropertiesForNewUser() {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setMixpanelPeople(mixpanelPeople)
+        .setIsPeopleEnabled(true)
+        .createMixpanelIntegration();
+
+    integration.identify(new IdentifyPayload.Builder()
+        .userId("prateek")
+        .traits(new Traits().putAge(25))
+        .build());
+    integration.identify(new IdentifyPayload.Builder()
+        .userId("rick")
+        .traits(new Traits().putAge(25))
+        .build());
+
+    JSONObject expected = new JSONObject(ImmutableMap.of("age", 25));
+    verify(mixpanel).registerSuperProperties(jsonEq(expected));
+    verify(mixpanelPeople, times(2)).set(jsonEq(expected));
+  }
+
+  @Test public void resetClearsPropertyFingerprints() {
+    Traits traits = new Traits().putAge(25);
+    integration.identify(new IdentifyPayload.Builder().userId("prateek").traits(traits).build());
+    integration.reset();
+    integration.identify(new IdentifyPayload.Builder().userId("prateek").traits(traits).build());
+
+    verify(mixpanel, times(2))
+        .registerSuperProperties(jsonEq(new JSONObject(ImmutableMap.of("age", 25))));
+    assertThat(integration.getSuppressedPropertyWrites()).isEqualTo(0);
+  }
+
   @Test public void group(){
     Traits traits = createTraits();
     integration.group(new GroupPayload.Builder()
@@ -444,6 +701,134 @@ import static org.powermock.api.mockito.PowerMockito.when;
   }
 
 
+  @Test public void groupStateCache() throws JSONException {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setOptions(new MixpanelOptions.Builder().cacheGroupState(true).build())
+        .createMixpanelIntegration();
+    GroupPayload group = new GroupPayload.Builder().userId("foo")
+        .groupId("testGroupId")
+        .traits(createTraits().putValue("plan", "pro"))
+        .build();
+
+    integration.group(group);
+    integration.group(group);
+    integration.group(new GroupPayload.Builder().userId("foo")
+        .groupId("testGroupId")
+        .traits(createTraits().putValue("plan", "pro").putValue("seats", 5))
+        .build());
+
+    ArgumentCaptor<JSONObject> setOnce = ArgumentCaptor.forClass(JSONObject.class);
+    verify(mixpanelGroup, times(2)).setOnce(setOnce.capture());
+    JSONAssert.assertEquals(new JSONObject().put("plan", "pro"), setOnce.getAllValues().get(0),
+        JSONCompareMode.LENIENT);
+    JSONAssert.assertEquals(new JSONObject().put("seats", 5), setOnce.getAllValues().get(1),
+        JSONCompareMode.STRICT);
+    verify(mixpanel).setGroup("[Segment] Group", "testGroupId");
+
+    integration.reset();
+    integration.group(group);
+    verify(mixpanel, times(2)).setGroup("[Segment] Group", "testGroupId");
+  }
+
+  @Test public void groupStateCacheIsPerUser() {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setMixpanelPeople(mixpanelPeople)
+        .setIsPeopleEnabled(true)
+        .setOptions(new MixpanelOptions.Builder().cacheGroupState(true).build())
+        .createMixpanelIntegration();
+    GroupPayload group = new GroupPayload.Builder().userId("foo").groupId("testGroupId").build();
+
+    integration.identify(new IdentifyPayloadBuilder().traits(createTraits("prateek")).build());
+    integration.group(group);
+    integration.identify(new IdentifyPayloadBuilder().traits(createTraits("prateek")).build());
+    integration.group(group);
+    verify(mixpanel).setGroup("[Segment] Group", "testGroupId");
+
+    integration.identify(new IdentifyPayloadBuilder().traits(createTraits("bob")).build());
+    integration.group(group);
+
+    InOrder inOrder = inOrder(mixpanel);
+    inOrder.verify(mixpanel).identify("prateek");
+    inOrder.verify(mixpanel).setGroup("[Segment] Group", "testGroupId");
+    inOrder.verify(mixpanel).identify("bob");
+    inOrder.verify(mixpanel).setGroup("[Segment] Group", "testGroupId");
+  }
+
+  @Test public void identityCache() {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setMixpanelPeople(mixpanelPeople)
+        .setIsPeopleEnabled(true)
+        .setOptions(new MixpanelOptions.Builder().cacheIdentity(true).build())
+        .createMixpanelIntegration();
+    IdentifyPayload identify = new IdentifyPayload.Builder().userId("prateek").build();
+    AliasPayload alias = new AliasPayloadBuilder().traits(createTraits("qaz")).newId("qux")
+        .build();
+
+    integration.identify(identify);
+    integration.identify(identify);
+    integration.alias(alias);
+    integration.alias(alias);
+
+    verify(mixpanel).identify("prateek");
+    verify(mixpanelPeople).identify("prateek");
+    verify(mixpanel).alias("qux", "qaz");
+
+    integration.reset();
+    integration.identify(identify);
+    integration.alias(alias);
+
+    verify(mixpanel, times(2)).identify("prateek");
+    verify(mixpanelPeople, times(2)).identify("prateek");
+    verify(mixpanel, times(2)).alias("qux", "qaz");
+  }
+
+  @Test public void identityCacheSurvivesRestart() throws Exception {
+    MixpanelOptions options = new MixpanelOptions.Builder().cacheIdentity(true)
+        .storageDirectory(folder.newFolder())
+        .build();
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setOptions(options)
+        .createMixpanelIntegration();
+    integration.identify(new IdentifyPayload.Builder().userId("prateek").build());
+
+    MixpanelIntegration restarted = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setOptions(options)
+        .createMixpanelIntegration();
+    restarted.identify(new IdentifyPayload.Builder().userId("prateek").build());
+    restarted.identify(new IdentifyPayload.Builder().userId("bob").build());
+
+    verify(mixpanel).identify("prateek");
+    verify(mixpanel).identify("bob");
+  }
+
+  @Test public void spoolForwardsEventsBeforeIdentityChanges() throws Exception {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setOptions(new MixpanelOptions.Builder().spoolEvents(true)
+            .spoolEventsPerSecond(1)
+            .storageDirectory(folder.newFolder())
+            .build())
+        .createMixpanelIntegration();
+
+    integration.track(new TrackPayloadBuilder().event("foo").build());
+    integration.track(new TrackPayloadBuilder().event("bar").build());
+    integration.identify(new IdentifyPayload.Builder().userId("prateek").build());
+    integration.flush();
+
+    InOrder inOrder = inOrder(mixpanel);
+    ArgumentCaptor<JSONObject> properties = ArgumentCaptor.forClass(JSONObject.class);
+    inOrder.verify(mixpanel).track(eq("foo"), properties.capture());
+    inOrder.verify(mixpanel).track(eq("bar"), properties.capture());
+    inOrder.verify(mixpanel).identify("prateek");
+    inOrder.verify(mixpanel).flush();
+    for (JSONObject forwarded : properties.getAllValues()) {
+      // Spooled events keep the time they were tracked at.
+      assertThat(forwarded.length()).isEqualTo(1);
+      assertThat(forwarded.getLong("time")).isGreaterThan(0);
+    }
+    assertThat(integration.getSpooledEvents()).isEqualTo(2);
+    assertThat(integration.getSpoolForwardedEvents()).isEqualTo(2);
+  }
+
   @Test public void testFilter() {
     Map<String, String> map = Collections.singletonMap("foo", "bar");
     assertThat(filter(map, Collections.<String>emptySet())).isEqualTo(Collections.emptyMap());
@@ -494,6 +879,518 @@ import static org.powermock.api.mockito.PowerMockito.when;
     verifyNoMoreMixpanelInteractions();
   }
 
+  @Test public void factoryWithAsyncDispatch() {
+    ValueMap settings = new ValueMap().putValue("token", "foo")
+        .putValue("asyncDispatch", true)
+        .putValue("dispatchQueueCapacity", 10)
+        .putValue("dispatchOverflowPolicy", "dropNewest");
+
+    MixpanelIntegration integration =
+        (MixpanelIntegration) MixpanelIntegration.FACTORY.create(settings, analytics);
+
+    assertThat(integration.dispatcher).isNotNull();
+    assertThat(this.integration.dispatcher).isNull();
+  }
+
+  @Test public void asyncDispatchPreservesOrderAndFlushIsBarrier() {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setMixpanelPeople(mixpanelPeople)
+        .setIsPeopleEnabled(true)
+        .setOptions(new MixpanelOptions.Builder().asyncDispatch(true).build())
+        .createMixpanelIntegration();
+
+    integration.identify(new IdentifyPayload.Builder().userId("prateek").build());
+    integration.track(new TrackPayloadBuilder().event("foo").build());
+    integration.alias(new AliasPayloadBuilder().traits(createTraits("prateek")).newId("bar")
+        .build());
+    integration.flush();
+
+    InOrder inOrder = inOrder(mixpanel, mixpanelPeople);
+    inOrder.verify(mixpanel).identify("prateek");
+    inOrder.verify(mixpanelPeople).identify("prateek");
+    inOrder.verify(mixpanel).track(eq("foo"), jsonEq(new JSONObject()));
+    inOrder.verify(mixpanel).alias("bar", "prateek");
+    inOrder.verify(mixpanel).flush();
+    verifyNoMoreMixpanelInteractions();
+  }
+
+  @Test public void asyncDispatchResetIsBarrier() {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setOptions(new MixpanelOptions.Builder().asyncDispatch(true).build())
+        .createMixpanelIntegration();
+
+    integration.track(new TrackPayloadBuilder().event("foo").build());
+    integration.reset();
+
+    InOrder inOrder = inOrder(mixpanel);
+    inOrder.verify(mixpanel).track(eq("foo"), jsonEq(new JSONObject()));
+    inOrder.verify(mixpanel).reset();
+    verifyNoMoreMixpanelInteractions();
+  }
+
+  @Test public void factoryWithLazyInitialization() {
+    ValueMap settings = new ValueMap().putValue("token", "foo")
+        .putValue("people", true)
+        .putValue("lazyInitialization", true);
+
+    MixpanelIntegration integration =
+        (MixpanelIntegration) MixpanelIntegration.FACTORY.create(settings, analytics);
+
+    assertThat(integration.dispatcher).isNotNull();
+    assertThat(integration.getUnderlyingInstance()).isSameAs(mixpanel);
+    assertThat(integration.mixpanelPeople).isSameAs(mixpanelPeople);
+  }
+
+  @Test public void lazyInitializationReplaysBufferedPayloadsInOrder() throws Exception {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(null)
+        .setMixpanelPeople(null)
+        .setIsPeopleEnabled(true)
+        .setOptions(new MixpanelOptions.Builder().lazyInitialization(true).build())
+        .createMixpanelIntegration();
+    final CountDownLatch ready = new CountDownLatch(1);
+    integration.initializeLazily(new Callable<MixpanelAPI>() {
+      @Override public MixpanelAPI call() throws Exception {
+        ready.await();
+        return mixpanel;
+      }
+    });
+
+    integration.identify(new IdentifyPayload.Builder().userId("prateek").build());
+    integration.track(new TrackPayloadBuilder().event("foo").build());
+    verify(mixpanel, never()).track(anyString(), any(JSONObject.class));
+
+    ready.countDown();
+    integration.flush();
+
+    InOrder inOrder = inOrder(mixpanel, mixpanelPeople);
+    inOrder.verify(mixpanel).getPeople();
+    inOrder.verify(mixpanel).identify("prateek");
+    inOrder.verify(mixpanelPeople).identify("prateek");
+    inOrder.verify(mixpanel).track(eq("foo"), jsonEq(new JSONObject()));
+    inOrder.verify(mixpanel).flush();
+    verifyNoMoreMixpanelInteractions();
+  }
+
+  @Test public void payloadsAfterLazyInitializationFailureAreSkipped() {
+    // Inline dispatch, so a payload that reached the missing instance would throw here.
+    integration = new MixpanelIntegrationBuilder().setMixpanel(null)
+        .setIsPeopleEnabled(true)
+        .setLogger(Logger.with(Analytics.LogLevel.NONE))
+        .createMixpanelIntegration();
+    integration.initializeLazily(new Callable<MixpanelAPI>() {
+      @Override public MixpanelAPI call() {
+        throw new IllegalStateException("No Context.");
+      }
+    });
+
+    integration.identify(new IdentifyPayloadBuilder().traits(createTraits("prateek")).build());
+    integration.track(new TrackPayloadBuilder().event("foo")
+        .properties(new Properties().putRevenue(20))
+        .build());
+    integration.screen(new ScreenPayloadBuilder().name("bar").build());
+    integration.group(new GroupPayload.Builder().userId("prateek").groupId("segment").build());
+    integration.alias(new AliasPayloadBuilder().traits(createTraits("foo")).newId("bar").build());
+    integration.flush();
+    integration.reset();
+
+    assertThat(integration.getUnderlyingInstance()).isNull();
+  }
+
+  @Test public void lazyInitializationFailure() {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(null)
+        .setLogger(Logger.with(Analytics.LogLevel.NONE))
+        .setOptions(new MixpanelOptions.Builder().lazyInitialization(true).build())
+        .createMixpanelIntegration();
+    integration.initializeLazily(new Callable<MixpanelAPI>() {
+      @Override public MixpanelAPI call() {
+        throw new IllegalStateException("No Context.");
+      }
+    });
+
+    integration.track(new TrackPayloadBuilder().event("foo").build());
+    integration.flush();
+    integration.reset();
+
+    assertThat(integration.getUnderlyingInstance()).isNull();
+  }
+
+  @Test public void metrics() {
+    MixpanelMetrics metrics = new MixpanelMetrics();
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setMixpanelPeople(mixpanelPeople)
+        .setIsPeopleEnabled(true)
+        .setSetAllTraitsByDefault(true)
+        .setOptions(new MixpanelOptions.Builder().metricsListener(metrics)
+            .rateLimitEvent("spam", 0)
+            .build())
+        .createMixpanelIntegration();
+
+    integration.track(new TrackPayloadBuilder().event("foo")
+        .properties(new Properties().putValue("bar", "baz"))
+        .build());
+    integration.track(new TrackPayloadBuilder().event("spam").build());
+    IdentifyPayload identify = new IdentifyPayloadBuilder().traits(createTraits("prateek")).build();
+    integration.identify(identify);
+    integration.identify(identify);
+
+    assertThat(metrics.callCount(MixpanelMetricsListener.Call.TRACK)).isEqualTo(2);
+    assertThat(metrics.callCount(MixpanelMetricsListener.Call.IDENTIFY)).isEqualTo(2);
+    assertThat(metrics.payloadBytes(MixpanelMetricsListener.Call.TRACK))
+        .isEqualTo("{\"bar\":\"baz\"}".length());
+    long serialized = 0;
+    for (long count : metrics.serializationHistogram(MixpanelMetricsListener.Call.TRACK)) {
+      serialized += count;
+    }
+    assertThat(serialized).isEqualTo(1);
+    assertThat(metrics.droppedCount(MixpanelMetricsListener.Drop.THROTTLED)).isEqualTo(1);
+    // The second identify changes neither super nor people properties.
+    assertThat(metrics.droppedCount(MixpanelMetricsListener.Drop.UNCHANGED_PROPERTIES))
+        .isEqualTo(2);
+  }
+
+  @Test public void serializationCacheReusesRedeliveredPayloads() throws JSONException {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setMixpanelPeople(mixpanelPeople)
+        .setIsPeopleEnabled(true)
+        .setOptions(new MixpanelOptions.Builder().serializationCacheSize(8).build())
+        .createMixpanelIntegration();
+    Properties properties = new Properties().putValue("bar", "baz").putRevenue(20);
+    TrackPayload track = new TrackPayloadBuilder().event("foo").properties(properties).build();
+
+    integration.track(track);
+    integration.track(track);
+    integration.track(new TrackPayloadBuilder().event("foo").properties(properties).build());
+
+    JSONObject expected = new JSONObject();
+    expected.put("bar", "baz");
+    expected.put("revenue", 20.0);
+    verify(mixpanel, times(3)).track(eq("foo"), jsonEq(expected));
+    verify(mixpanelPeople, times(3)).trackCharge(eq(20.0), jsonEq(expected));
+    assertThat(integration.getSerializationCacheHits()).isEqualTo(1);
+    assertThat(integration.getSerializationCacheMisses()).isEqualTo(2);
+  }
+
+  @Test public void deduplicateEvents() {
+    MixpanelMetrics metrics = new MixpanelMetrics();
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setOptions(new MixpanelOptions.Builder().deduplicateEvents(true)
+            .metricsListener(metrics)
+            .build())
+        .createMixpanelIntegration();
+    TrackPayload track = new TrackPayloadBuilder().event("foo").build();
+    ScreenPayload screen = new ScreenPayloadBuilder().name("bar").build();
+
+    integration.track(track);
+    integration.track(track);
+    integration.screen(screen);
+    integration.screen(screen);
+    integration.track(new TrackPayloadBuilder().event("foo").build());
+
+    verify(mixpanel, times(2)).track(eq("foo"), jsonEq(new JSONObject()));
+    verify(mixpanel).track(eq("Loaded a Screen"), any(JSONObject.class));
+    assertThat(integration.getDuplicateEvents()).isEqualTo(2);
+    assertThat(metrics.droppedCount(MixpanelMetricsListener.Drop.DUPLICATE)).isEqualTo(2);
+    assertThat(integration.getDuplicateFalsePositiveRate()).isBetween(0.0, 0.001);
+  }
+
+  @Test public void deduplicationReplacesSerializationCache() {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setOptions(new MixpanelOptions.Builder().deduplicateEvents(true)
+            .serializationCacheSize(8)
+            .build())
+        .createMixpanelIntegration();
+    TrackPayload track = new TrackPayloadBuilder().event("foo").build();
+
+    integration.track(track);
+    integration.track(track);
+
+    verify(mixpanel).track(eq("foo"), jsonEq(new JSONObject()));
+    assertThat(integration.getDuplicateEvents()).isEqualTo(1);
+    assertThat(integration.getSerializationCacheHits()).isZero();
+  }
+
+  @Test public void deduplicationLoadsPersistedIds() throws IOException {
+    MixpanelOptions options = new MixpanelOptions.Builder().deduplicateEvents(true)
+        .storageDirectory(folder.newFolder())
+        .build();
+    TrackPayload track = new TrackPayloadBuilder().event("foo").build();
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setOptions(options)
+        .createMixpanelIntegration();
+    integration.track(track);
+    integration.onActivityStopped(mock(Activity.class));
+
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setOptions(options)
+        .createMixpanelIntegration();
+    integration.track(track);
+
+    verify(mixpanel).track(eq("foo"), jsonEq(new JSONObject()));
+    assertThat(integration.getDuplicateEvents()).isEqualTo(1);
+  }
+
+  @Test public void skipWhenOptedOut() {
+    MixpanelMetrics metrics = new MixpanelMetrics();
+    when(mixpanel.hasOptedOutTracking()).thenReturn(true);
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setMixpanelPeople(mixpanelPeople)
+        .setIsPeopleEnabled(true)
+        .setOptions(new MixpanelOptions.Builder().skipWhenOptedOut(true)
+            .metricsListener(metrics)
+            .build())
+        .createMixpanelIntegration();
+
+    integration.track(new TrackPayloadBuilder().event("foo").build());
+    integration.screen(new ScreenPayloadBuilder().name("bar").build());
+    integration.identify(new IdentifyPayloadBuilder().traits(createTraits("prateek")).build());
+    integration.group(new GroupPayload.Builder().userId("prateek").groupId("group").build());
+    integration.alias(new AliasPayloadBuilder().traits(createTraits("foo")).newId("prateek").build());
+
+    verify(mixpanel).hasOptedOutTracking();
+    verifyNoMoreMixpanelInteractions();
+    assertThat(integration.getOptedOutPayloads()).isEqualTo(5);
+    assertThat(metrics.droppedCount(MixpanelMetricsListener.Drop.OPTED_OUT)).isEqualTo(5);
+
+    // Opted in on MixpanelAPI directly, picked up on reset.
+    when(mixpanel.hasOptedOutTracking()).thenReturn(false);
+    integration.reset();
+    integration.track(new TrackPayloadBuilder().event("foo").build());
+
+    verify(mixpanel).track(eq("foo"), jsonEq(new JSONObject()));
+  }
+
+  @Test public void optOutAndInTracking() {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setOptions(new MixpanelOptions.Builder().skipWhenOptedOut(true).build())
+        .createMixpanelIntegration();
+
+    integration.optOutTracking();
+    integration.track(new TrackPayloadBuilder().event("foo").build());
+    verify(mixpanel).optOutTracking();
+    verify(mixpanel, never()).track(anyString(), any(JSONObject.class));
+
+    integration.optInTracking();
+    integration.track(new TrackPayloadBuilder().event("foo").build());
+    verify(mixpanel).optInTracking();
+    verify(mixpanel).track(eq("foo"), jsonEq(new JSONObject()));
+
+    when(mixpanel.hasOptedOutTracking()).thenReturn(true);
+    integration.refreshOptOut();
+    integration.track(new TrackPayloadBuilder().event("foo").build());
+    verify(mixpanel).track(eq("foo"), jsonEq(new JSONObject()));
+    assertThat(integration.getOptedOutPayloads()).isEqualTo(2);
+  }
+
+  @Test public void optedOutIsIgnoredByDefault() {
+    integration.optOutTracking();
+    integration.track(new TrackPayloadBuilder().event("foo").build());
+
+    verify(mixpanel).optOutTracking();
+    verify(mixpanel).track(eq("foo"), jsonEq(new JSONObject()));
+    verifyNoMoreMixpanelInteractions();
+  }
+
+  @Test public void consentCategories() {
+    MixpanelMetrics metrics = new MixpanelMetrics();
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setOptions(new MixpanelOptions.Builder()
+            .consentCategory("marketing", Arrays.asList("Ad *", "Campaign Opened"))
+            .metricsListener(metrics)
+            .build())
+        .createMixpanelIntegration();
+
+    integration.track(new TrackPayloadBuilder().event("Ad Clicked").build());
+    integration.track(new TrackPayloadBuilder().event("Campaign Opened").build());
+    integration.track(new TrackPayloadBuilder().event("foo").build());
+    verify(mixpanel).track(eq("foo"), jsonEq(new JSONObject()));
+    verifyNoMoreMixpanelInteractions();
+    assertThat(integration.getWithheldEvents()).isEqualTo(2);
+    assertThat(metrics.droppedCount(MixpanelMetricsListener.Drop.NO_CONSENT)).isEqualTo(2);
+
+    integration.setConsent("marketing", true);
+    integration.track(new TrackPayloadBuilder().event("Ad Clicked").build());
+    verify(mixpanel).track(eq("Ad Clicked"), jsonEq(new JSONObject()));
+  }
+
+  @Test public void consentOptionsFromSettings() {
+    MixpanelOptions options = MixpanelOptions.fromSettings(
+        new ValueMap().putValue("skipWhenOptedOut", true)
+            .putValue("consentCategories",
+                new ValueMap().putValue("marketing", Arrays.asList("Ad *"))));
+
+    assertThat(options.skipWhenOptedOut).isTrue();
+    assertThat(options.consentCategories).hasSize(1);
+    assertThat(options.consentCategories.get("marketing")).containsExactly("Ad *");
+    assertThat(MixpanelOptions.DEFAULT.skipWhenOptedOut).isFalse();
+    assertThat(MixpanelOptions.DEFAULT.consentCategories).isEmpty();
+  }
+
+  @Test public void recordTrace() throws IOException {
+    File traceFile = new File(folder.getRoot(), "trace.ndjson");
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setOptions(new MixpanelOptions.Builder().recordTrace(traceFile).build())
+        .createMixpanelIntegration();
+
+    integration.track(new TrackPayloadBuilder().event("foo").build());
+    integration.screen(new ScreenPayloadBuilder().name("bar").build());
+    integration.reset();
+    integration.flush();
+
+    PayloadTrace.Reader reader = new PayloadTrace.Reader(traceFile);
+    List<PayloadTrace.Entry> entries = reader.readAll();
+    reader.close();
+    assertThat(entries).hasSize(4);
+    assertThat(((TrackPayload) entries.get(0).payload).event()).isEqualTo("foo");
+    assertThat(((ScreenPayload) entries.get(1).payload).name()).isEqualTo("bar");
+    assertThat(entries.get(2).call).isEqualTo(MixpanelMetricsListener.Call.RESET);
+    assertThat(entries.get(3).call).isEqualTo(MixpanelMetricsListener.Call.FLUSH);
+  }
+
+  @Test public void adaptiveFlushCoalescesRequests() {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setOptions(new MixpanelOptions.Builder().adaptiveFlush(true)
+            .flushDebounceMillis(60 * 60 * 1000)
+            .build())
+        .createMixpanelIntegration();
+
+    integration.flush();
+    integration.track(new TrackPayloadBuilder().event("foo").build());
+    integration.flush();
+    verify(mixpanel, never()).flush();
+    assertThat(integration.getFlushRequests()).isEqualTo(2);
+    assertThat(integration.getPerformedFlushes()).isEqualTo(0);
+
+    // Pending events go out when the app may be going to the background.
+    integration.onActivityStopped(mock(Activity.class));
+    verify(mixpanel).flush();
+    assertThat(integration.getPerformedFlushes()).isEqualTo(1);
+
+    // Nothing is pending any more.
+    integration.onActivityStopped(mock(Activity.class));
+    verify(mixpanel).flush();
+  }
+
+  @Test public void adaptiveFlushSendsRevenueStraightAway() {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setOptions(new MixpanelOptions.Builder().adaptiveFlush(true)
+            .flushDebounceMillis(60 * 60 * 1000)
+            .build())
+        .createMixpanelIntegration();
+
+    integration.track(new TrackPayloadBuilder().event("foo").build());
+    verify(mixpanel, never()).flush();
+    integration.track(new TrackPayloadBuilder().event("Purchased")
+        .properties(new Properties().putRevenue(20))
+        .build());
+
+    InOrder inOrder = inOrder(mixpanel);
+    inOrder.verify(mixpanel).track(eq("Purchased"), any(JSONObject.class));
+    inOrder.verify(mixpanel).flush();
+  }
+
+  @Test public void adaptiveFlushSendsIncrementsWithRevenue() {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setMixpanelPeople(mixpanelPeople)
+        .setIsPeopleEnabled(true)
+        .setIncrements(Collections.singleton("Purchased"))
+        .setOptions(new MixpanelOptions.Builder().adaptiveFlush(true)
+            .flushDebounceMillis(60 * 60 * 1000)
+            .build())
+        .createMixpanelIntegration();
+
+    integration.track(new TrackPayloadBuilder().event("Purchased")
+        .properties(new Properties().putRevenue(20))
+        .build());
+
+    InOrder inOrder = inOrder(mixpanel, mixpanelPeople);
+    inOrder.verify(mixpanelPeople).trackCharge(eq(20.0), any(JSONObject.class));
+    inOrder.verify(mixpanelPeople).increment("Purchased", 1);
+    inOrder.verify(mixpanel).flush();
+  }
+
+  @Test public void flushCountsWithoutAdaptiveFlush() {
+    integration.flush();
+    integration.flush();
+
+    verify(mixpanel, times(2)).flush();
+    assertThat(integration.getFlushRequests()).isEqualTo(2);
+    assertThat(integration.getPerformedFlushes()).isEqualTo(2);
+  }
+
+  @Test public void adaptiveFlushOptionsFromSettings() {
+    MixpanelOptions options = MixpanelOptions.fromSettings(
+        new ValueMap().putValue("adaptiveFlush", true)
+            .putValue("flushDebounceMillis", 2000)
+            .putValue("maxFlushIntervalMillis", 30_000));
+
+    assertThat(options.adaptiveFlush).isTrue();
+    assertThat(options.flushDebounceMillis).isEqualTo(2000);
+    assertThat(options.maxFlushIntervalMillis).isEqualTo(30_000);
+    assertThat(MixpanelOptions.DEFAULT.adaptiveFlush).isFalse();
+    assertThat(MixpanelOptions.DEFAULT.flushDebounceMillis).isEqualTo(5000);
+    assertThat(MixpanelOptions.DEFAULT.maxFlushIntervalMillis).isEqualTo(60_000);
+  }
+
+  @Test public void updateSettings() {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setMixpanelPeople(mixpanelPeople)
+        .setIsPeopleEnabled(true)
+        .createMixpanelIntegration();
+    integration.screen(new ScreenPayloadBuilder().name("foo").build());
+    integration.track(new TrackPayloadBuilder().event("bar").build());
+    verify(mixpanel).track(eq("Loaded a Screen"), any(JSONObject.class));
+    verify(mixpanelPeople, never()).increment("bar", 1);
+
+    integration.updateSettings(new ValueMap().putValue("consolidatedPageCalls", false)
+        .putValue("trackNamedPages", true)
+        .putValue("increments", Arrays.asList("bar")));
+    integration.screen(new ScreenPayloadBuilder().name("foo").build());
+    integration.track(new TrackPayloadBuilder().event("bar").build());
+
+    verify(mixpanel).track(eq("Viewed foo Screen"), any(JSONObject.class));
+    verify(mixpanelPeople).increment("bar", 1);
+    assertThat(integration.settings().increments).containsExactly("bar");
+  }
+
+  @Test public void updateSettingsRebuildsRedeliveredPayloads() {
+    integration =
+        new MixpanelIntegrationBuilder().setMixpanel(mixpanel).createMixpanelIntegration();
+    ScreenPayload screen = new ScreenPayloadBuilder().name("foo").build();
+    integration.screen(screen);
+
+    integration.updateSettings(new ValueMap().putValue("consolidatedPageCalls", false)
+        .putValue("trackNamedPages", true));
+    integration.screen(screen);
+
+    verify(mixpanel).track(eq("Loaded a Screen"), any(JSONObject.class));
+    verify(mixpanel).track(eq("Viewed foo Screen"), any(JSONObject.class));
+    assertThat(integration.getSerializationCacheHits()).isZero();
+  }
+
+  @Test public void propertyProjections() throws JSONException {
+    integration = new MixpanelIntegrationBuilder().setMixpanel(mixpanel)
+        .setOptions(new MixpanelOptions.Builder()
+            .projectProperties(new PropertyProjection.Builder().exclude("debug").build())
+            .projectProperties("Order Completed",
+                new PropertyProjection.Builder().include("total").build())
+            .build())
+        .createMixpanelIntegration();
+    Properties properties = new Properties().putValue("total", 10)
+        .putValue("debug", "blob")
+        .putValue("sku", "123");
+
+    integration.track(new TrackPayloadBuilder().event("Order Completed")
+        .properties(properties)
+        .build());
+    integration.track(new TrackPayloadBuilder().event("Product Viewed")
+        .properties(properties)
+        .build());
+
+    verify(mixpanel).track(eq("Order Completed"), jsonEq(new JSONObject().put("total", 10)));
+    verify(mixpanel).track(eq("Product Viewed"),
+        jsonEq(new JSONObject().put("total", 10).put("sku", "123")));
+  }
+
   private void verifyNoMoreMixpanelInteractions() {
     verifyNoMoreInteractions(MixpanelAPI.class);
     verifyNoMoreInteractions(mixpanel);
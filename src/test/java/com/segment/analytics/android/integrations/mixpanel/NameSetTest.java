@@ -0,0 +1,97 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class NameSetTest {
+
+  @Test public void containsNames() {
+    NameSet set = NameSet.of(Arrays.asList("Purchased", "Shared", "Signed Up"));
+
+    assertThat(set.contains("Purchased")).isTrue();
+    assertThat(set.contains("Signed Up")).isTrue();
+    assertThat(set.contains("purchased")).isFalse();
+    assertThat(set.contains("Purchase")).isFalse();
+    assertThat(set.contains("")).isFalse();
+    assertThat(set.contains(null)).isFalse();
+    assertThat(set.contains(1)).isFalse();
+  }
+
+  @Test public void matchesHashSet() {
+    List<String> names = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      names.add("Event " + i);
+    }
+    // Longer than the length bit set tracks individually.
+    names.add("An event name that is longer than sixty-four characters, which is rare");
+    NameSet set = NameSet.of(names);
+    Set<String> expected = new HashSet<>(names);
+
+    for (int i = 0; i < 1000; i++) {
+      assertThat(set.contains("Event " + i)).isEqualTo(expected.contains("Event " + i));
+    }
+    assertThat(set.contains(names.get(500))).isTrue();
+    assertThat(set.contains(names.get(500) + "!")).isFalse();
+    assertThat(set).hasSize(501);
+  }
+
+  @Test public void patterns() {
+    NameSet set = NameSet.of(Arrays.asList("checkout_*", "*_failed", "order * step *", "Exact"));
+
+    assertThat(set.hasPatterns()).isTrue();
+    assertThat(set.contains("checkout_")).isTrue();
+    assertThat(set.contains("checkout_started")).isTrue();
+    assertThat(set.contains("checkout")).isFalse();
+    assertThat(set.contains("payment_failed")).isTrue();
+    assertThat(set.contains("payment_failed_twice")).isFalse();
+    assertThat(set.contains("order 1 step 2")).isTrue();
+    assertThat(set.contains("order step ")).isFalse();
+    assertThat(set.contains("order 1 stepped")).isFalse();
+    assertThat(set.contains("Exact")).isTrue();
+  }
+
+  @Test public void starMatchesEverything() {
+    NameSet set = NameSet.of(Collections.singleton("*"));
+
+    assertThat(set.contains("")).isTrue();
+    assertThat(set.contains("anything")).isTrue();
+  }
+
+  @Test public void patternPartsDoNotOverlap() {
+    NameSet set = NameSet.of(Collections.singleton("ab*ba"));
+
+    assertThat(set.contains("aba")).isFalse();
+    assertThat(set.contains("abba")).isTrue();
+  }
+
+  @Test public void iteratesEntriesAsConfigured() {
+    NameSet set = NameSet.of(Arrays.asList("b", "a*", "b", null));
+
+    assertThat(set).containsExactly("b", "a*");
+    assertThat(set.hasPatterns()).isTrue();
+    assertThat(NameSet.of(Collections.singleton("b")).hasPatterns()).isFalse();
+  }
+
+  @Test public void empty() {
+    assertThat(NameSet.of(Collections.<String>emptySet())).isSameAs(NameSet.EMPTY);
+    assertThat(NameSet.EMPTY.contains("")).isFalse();
+    assertThat(NameSet.EMPTY).isEmpty();
+  }
+
+  @Test(expected = UnsupportedOperationException.class) public void isImmutable() {
+    NameSet.of(Collections.singleton("a")).add("b");
+  }
+}
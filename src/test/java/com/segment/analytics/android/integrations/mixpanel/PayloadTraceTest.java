@@ -0,0 +1,131 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import com.segment.analytics.Analytics;
+import com.segment.analytics.Properties;
+import com.segment.analytics.Traits;
+import com.segment.analytics.ValueMap;
+import com.segment.analytics.android.integrations.mixpanel.MixpanelMetricsListener.Call;
+import com.segment.analytics.integrations.AliasPayload;
+import com.segment.analytics.integrations.GroupPayload;
+import com.segment.analytics.integrations.IdentifyPayload;
+import com.segment.analytics.integrations.Logger;
+import com.segment.analytics.integrations.ScreenPayload;
+import com.segment.analytics.integrations.TrackPayload;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class PayloadTraceTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+  private final Logger logger = Logger.with(Analytics.LogLevel.NONE);
+
+  @Test public void roundTrip() throws IOException {
+    roundTrip(new File(folder.getRoot(), "trace.ndjson"));
+  }
+
+  @Test public void roundTripGzipped() throws IOException {
+    roundTrip(new File(folder.getRoot(), "trace.ndjson.gz"));
+  }
+
+  private void roundTrip(File file) throws IOException {
+    TrackPayload track = new TrackPayload.Builder().event("Purchased")
+        .properties(new Properties().putRevenue(20)
+            .putValue("cart", Arrays.asList(new ValueMap().putValue("sku", "123"))))
+        .userId("prateek")
+        .timestamp(new Date(1_500_000_000_000L))
+        .messageId("message-1")
+        .build();
+    ScreenPayload screen = new ScreenPayload.Builder().name("Home")
+        .anonymousId("anonymous")
+        .build();
+    IdentifyPayload identify = new IdentifyPayload.Builder().userId("prateek")
+        .traits(new Traits().putEmail("friends@segment.com").putAge(25))
+        .build();
+    GroupPayload group = new GroupPayload.Builder().userId("prateek")
+        .groupId("segment")
+        .traits(new Traits().putName("Segment"))
+        .build();
+    AliasPayload alias = new AliasPayload.Builder().previousId("anonymous")
+        .userId("prateek")
+        .build();
+
+    PayloadTrace.Recorder recorder = new PayloadTrace.Recorder(file, logger);
+    recorder.record(Call.TRACK, track);
+    recorder.record(Call.SCREEN, screen);
+    recorder.record(Call.IDENTIFY, identify);
+    recorder.record(Call.GROUP, group);
+    recorder.record(Call.ALIAS, alias);
+    recorder.record(Call.FLUSH, null);
+    recorder.flush();
+
+    PayloadTrace.Reader reader = new PayloadTrace.Reader(file);
+    List<PayloadTrace.Entry> entries = reader.readAll();
+    reader.close();
+
+    assertThat(entries).hasSize(6);
+    TrackPayload readTrack = (TrackPayload) entries.get(0).payload;
+    assertThat(entries.get(0).call).isEqualTo(Call.TRACK);
+    assertThat(readTrack.event()).isEqualTo("Purchased");
+    assertThat(readTrack.userId()).isEqualTo("prateek");
+    assertThat(readTrack.messageId()).isEqualTo("message-1");
+    assertThat(readTrack.timestamp()).isEqualTo(new Date(1_500_000_000_000L));
+    assertThat(readTrack.properties().revenue()).isEqualTo(20.0);
+    assertThat(readTrack.properties().getList("cart", ValueMap.class).get(0).getString("sku"))
+        .isEqualTo("123");
+    assertThat(((ScreenPayload) entries.get(1).payload).name()).isEqualTo("Home");
+    assertThat(entries.get(1).payload.anonymousId()).isEqualTo("anonymous");
+    assertThat(((IdentifyPayload) entries.get(2).payload).traits().email())
+        .isEqualTo("friends@segment.com");
+    assertThat(((GroupPayload) entries.get(3).payload).groupId()).isEqualTo("segment");
+    assertThat(((AliasPayload) entries.get(4).payload).previousId()).isEqualTo("anonymous");
+    assertThat(entries.get(5).call).isEqualTo(Call.FLUSH);
+    assertThat(entries.get(5).payload).isNull();
+    for (int i = 1; i < entries.size(); i++) {
+      assertThat(entries.get(i).atMillis).isGreaterThanOrEqualTo(entries.get(i - 1).atMillis);
+    }
+  }
+
+  @Test public void rejectsInvalidEntries() throws IOException {
+    File file = folder.newFile("trace.ndjson");
+    FileOutputStream out = new FileOutputStream(file);
+    out.write("{\"at\":0,\"call\":\"reset\"}\n\n{\"at\":1,\"call\":\"nope\"}\n".getBytes("UTF-8"));
+    out.close();
+
+    PayloadTrace.Reader reader = new PayloadTrace.Reader(file);
+    assertThat(reader.next().call).isEqualTo(Call.RESET);
+    try {
+      reader.next();
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected).hasMessage("Invalid trace entry on line 3");
+    }
+    reader.close();
+  }
+
+  @Test public void stopsRecordingOnWriteErrors() throws IOException {
+    File notADirectory = folder.newFile("file");
+    PayloadTrace.Recorder recorder =
+        new PayloadTrace.Recorder(new File(notADirectory, "trace.ndjson"), logger);
+
+    recorder.record(Call.FLUSH, null);
+    recorder.record(Call.FLUSH, null);
+    recorder.flush();
+
+    assertThat(notADirectory.length()).isEqualTo(0);
+  }
+}
@@ -0,0 +1,46 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class PropertyFingerprintsTest {
+
+  @Test public void unchangedValuesAreSuppressed() {
+    PropertyFingerprints fingerprints = new PropertyFingerprints();
+
+    assertThat(fingerprints.delta(Collections.singletonMap("a", "foo"))).containsEntry("a", "foo");
+    assertThat(fingerprints.delta(Collections.singletonMap("a", "foo"))).isEmpty();
+    assertThat(fingerprints.suppressedWrites()).isEqualTo(1);
+  }
+
+  @Test public void valuesWithEqualHashCodesAreChanges() {
+    PropertyFingerprints fingerprints = new PropertyFingerprints();
+    // Each of these hashes to 0, or to the hash of the one before it.
+    Object[] values = { null, 0, "", 0L, false, 1237, null };
+
+    for (Object value : values) {
+      Map<String, Object> changed = fingerprints.delta(Collections.singletonMap("a", value));
+      assertThat(changed).as("change to %s", value).containsEntry("a", value);
+    }
+    assertThat(fingerprints.suppressedWrites()).isZero();
+  }
+
+  @Test public void clearForwardsEverything() {
+    PropertyFingerprints fingerprints = new PropertyFingerprints();
+    fingerprints.delta(Collections.<String, Object>singletonMap("a", null));
+
+    fingerprints.clear();
+
+    assertThat(fingerprints.delta(Collections.<String, Object>singletonMap("a", null)))
+        .containsKey("a");
+  }
+}
@@ -0,0 +1,93 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import com.segment.analytics.Properties;
+import com.segment.analytics.ValueMap;
+import java.util.Arrays;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.skyscreamer.jsonassert.JSONAssert;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class PropertyProjectionTest {
+
+  @Test public void includeAndExclude() throws JSONException {
+    PropertyProjection projection = new PropertyProjection.Builder().include("sku", "price", "debug")
+        .exclude("debug")
+        .build();
+    Properties properties = new Properties().putValue("sku", "123")
+        .putValue("price", 10)
+        .putValue("debug", "blob")
+        .putValue("other", true);
+
+    JSONAssert.assertEquals(new JSONObject().put("sku", "123").put("price", 10),
+        JsonWriter.writeProperties(properties, projection), true);
+  }
+
+  @Test public void limits() throws JSONException {
+    PropertyProjection projection = new PropertyProjection.Builder().maxDepth(1)
+        .maxStringLength(3)
+        .maxArrayLength(2)
+        .build();
+    Properties properties = new Properties().putValue("name", "Segment")
+        .putValue("tags", Arrays.asList("a", "b", "c"))
+        .putValue("sizes", new int[] { 1, 2, 3 })
+        .putValue("cart", Arrays.asList(new ValueMap().putValue("sku", "123")))
+        .putValue("product", new ValueMap().putValue("sku", "123456")
+            .putValue("variant", new ValueMap().putValue("color", "red")));
+
+    JSONObject expected = new JSONObject("{\"name\":\"Seg\",\"tags\":[\"a\",\"b\"],"
+        + "\"sizes\":[1,2],\"cart\":[],\"product\":{\"sku\":\"123\"}}");
+    JSONAssert.assertEquals(expected, JsonWriter.writeProperties(properties, projection), true);
+  }
+
+  @Test public void maxDepthZeroKeepsScalars() throws JSONException {
+    PropertyProjection projection = new PropertyProjection.Builder().maxDepth(0).build();
+    Properties properties = new Properties().putValue("sku", "123")
+        .putValue("product", new ValueMap().putValue("sku", "123"));
+
+    JSONAssert.assertEquals(new JSONObject().put("sku", "123"),
+        JsonWriter.writeProperties(properties, projection), true);
+  }
+
+  @Test public void noProjectionWritesEverything() throws JSONException {
+    Properties properties = new Properties().putValue("sku", "123")
+        .putValue("product", new ValueMap().putValue("sku", "123"));
+
+    JSONAssert.assertEquals(properties.toJsonObject(),
+        JsonWriter.writeProperties(properties, null), true);
+  }
+
+  @Test public void truncateKeepsSurrogatePairs() {
+    PropertyProjection projection = new PropertyProjection.Builder().maxStringLength(2).build();
+    assertThat(projection.truncate("a\ud83d\ude00")).isEqualTo("a");
+    assertThat(projection.truncate("ab")).isEqualTo("ab");
+  }
+
+  @Test public void fromSettings() {
+    ValueMap settings = new ValueMap().putValue("propertyProjections", new ValueMap()
+        .putValue("*", new ValueMap().putValue("exclude", Arrays.asList("debug")))
+        .putValue("Order Completed", new ValueMap().putValue("include", Arrays.asList("total"))
+            .putValue("maxDepth", 1)
+            .putValue("maxStringLength", 100)
+            .putValue("maxArrayLength", 10)));
+
+    MixpanelOptions options = MixpanelOptions.fromSettings(settings);
+
+    assertThat(options.defaultPropertyProjection.includes("debug")).isFalse();
+    assertThat(options.defaultPropertyProjection.includes("total")).isTrue();
+    PropertyProjection projection = options.propertyProjections.get("Order Completed");
+    assertThat(projection.includes("total")).isTrue();
+    assertThat(projection.includes("debug")).isFalse();
+    assertThat(projection.maxDepth).isEqualTo(1);
+    assertThat(projection.maxStringLength).isEqualTo(100);
+    assertThat(projection.maxArrayLength).isEqualTo(10);
+  }
+}
@@ -0,0 +1,54 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class ScreenNameCacheTest {
+
+  @Test public void matchesFormat() {
+    ScreenNameCache cache = new ScreenNameCache(2);
+    assertThat(cache.viewedEvent("Home")).isEqualTo(String.format("Viewed %s Screen", "Home"));
+    assertThat(cache.viewedEvent(null)).isEqualTo(String.format("Viewed %s Screen", (Object) null));
+  }
+
+  @Test public void countsHitsAndMisses() {
+    ScreenNameCache cache = new ScreenNameCache(2);
+    cache.viewedEvent("Home");
+    cache.viewedEvent("Home");
+    cache.viewedEvent("Settings");
+
+    assertThat(cache.hitCount()).isEqualTo(1);
+    assertThat(cache.missCount()).isEqualTo(2);
+  }
+
+  @Test public void evictsLeastRecentlyUsed() {
+    ScreenNameCache cache = new ScreenNameCache(2);
+    cache.viewedEvent("Home");
+    cache.viewedEvent("Settings");
+    cache.viewedEvent("Home");
+    cache.viewedEvent("Profile");
+
+    assertThat(cache.size()).isEqualTo(2);
+    cache.viewedEvent("Home");
+    assertThat(cache.hitCount()).isEqualTo(2);
+    cache.viewedEvent("Settings");
+    assertThat(cache.missCount()).isEqualTo(4);
+  }
+
+  @Test public void zeroSizeDisablesCaching() {
+    ScreenNameCache cache = new ScreenNameCache(0);
+    cache.viewedEvent("Home");
+    cache.viewedEvent("Home");
+
+    assertThat(cache.size()).isEqualTo(0);
+    assertThat(cache.hitCount()).isEqualTo(0);
+    assertThat(cache.missCount()).isEqualTo(2);
+  }
+}
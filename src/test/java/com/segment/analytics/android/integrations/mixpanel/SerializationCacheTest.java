@@ -0,0 +1,71 @@
+package com.segment.analytics.android.integrations.mixpanel;
+
+import android.os.Build;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P, manifest = Config.NONE)
+public class SerializationCacheTest {
+
+  @Test public void countsHitsAndMisses() {
+    SerializationCache cache = new SerializationCache(2);
+    SerializationCache.Event event = event("foo");
+    assertThat(cache.get("a")).isNull();
+    cache.put("a", event);
+
+    assertThat(cache.get("a")).isSameAs(event);
+    assertThat(cache.get("b")).isNull();
+    assertThat(cache.hitCount()).isEqualTo(1);
+    assertThat(cache.missCount()).isEqualTo(2);
+  }
+
+  @Test public void evictsLeastRecentlyUsed() {
+    SerializationCache cache = new SerializationCache(2);
+    cache.put("a", event("foo"));
+    cache.put("b", event("bar"));
+    cache.get("a");
+    cache.put("c", event("qaz"));
+
+    assertThat(cache.size()).isEqualTo(2);
+    assertThat(cache.get("a")).isNotNull();
+    assertThat(cache.get("b")).isNull();
+    assertThat(cache.get("c")).isNotNull();
+  }
+
+  @Test public void zeroSizeDisablesCaching() {
+    SerializationCache cache = new SerializationCache(0);
+    cache.put("a", event("foo"));
+
+    assertThat(cache.get("a")).isNull();
+    assertThat(cache.size()).isEqualTo(0);
+    assertThat(cache.missCount()).isEqualTo(1);
+  }
+
+  @Test public void ignoresMissingMessageIds() {
+    SerializationCache cache = new SerializationCache(2);
+    cache.put(null, event("foo"));
+
+    assertThat(cache.get(null)).isNull();
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  @Test public void clear() {
+    SerializationCache cache = new SerializationCache(2);
+    cache.put("a", event("foo"));
+
+    cache.clear();
+
+    assertThat(cache.get("a")).isNull();
+    assertThat(cache.size()).isEqualTo(0);
+  }
+
+  private static SerializationCache.Event event(String name) {
+    return new SerializationCache.Event(name, new JSONObject(), 0);
+  }
+}